@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import org.bukkit.NamespacedKey;
+import org.bukkit.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collection of default entities and values put by listening plugins.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CollectBenchmark {
+    @Param({"1", "10", "50"})
+    public int plugins;
+
+    @Param({"0", "10", "100"})
+    public int customKeys;
+
+    @Param({"LONG", "STRING", "MAP"})
+    public Stubs.Shape shape;
+
+    private MetricsLite.Reporter reporter;
+    private Server server;
+
+    @Setup
+    public void setUp() {
+        Stubs.Fixture fixture = Stubs.fixture(this.plugins, this.customKeys, this.shape);
+        this.reporter = fixture.reporter;
+        this.server = fixture.server;
+    }
+
+    @Benchmark
+    public Map<NamespacedKey, Object> collectData() {
+        return this.reporter.collectData(this.server);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * In-memory transport, which hands every request to a {@link Handler} and
+ * keeps it until {@link #drain()}. Lets the whole reporting pipeline run
+ * without a network.
+ */
+public class LoopbackTransport implements Transport {
+    private final Handler handler;
+    private final List<Exchange> exchanges = new ArrayList<>();
+
+    /**
+     * Accept every request with 204 No Content.
+     */
+    public LoopbackTransport() {
+        this((request, body) -> new Response(HttpURLConnection.HTTP_NO_CONTENT, Collections.emptyMap()));
+    }
+
+    public LoopbackTransport(Handler handler) {
+        this.handler = Objects.requireNonNull(handler, "handler");
+    }
+
+    @Override
+    public Response send(Request request) throws IOException {
+        Objects.requireNonNull(request, "request");
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        request.getBody().writeTo(outputStream);
+        byte[] body = outputStream.toByteArray();
+
+        long contentLength = request.getContentLength();
+        if (contentLength >= 0L && contentLength != body.length) {
+            throw new IOException("Declared " + contentLength + " byte(s), but " + body.length + " were written.");
+        }
+
+        Exchange exchange = new Exchange(request, body);
+        synchronized (this.exchanges) {
+            this.exchanges.add(exchange);
+        }
+        return Objects.requireNonNull(this.handler.handle(request, body), "response");
+    }
+
+    /**
+     * @return Requests sent since the last call, in the order they were sent.
+     */
+    public List<Exchange> drain() {
+        synchronized (this.exchanges) {
+            List<Exchange> drained = new ArrayList<>(this.exchanges);
+            this.exchanges.clear();
+            return drained;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * @param request Request sent.
+         * @param body Body of the request, as it was sent.
+         * @return Response to the request.
+         */
+        Response handle(Request request, byte[] body) throws IOException;
+    }
+
+    public static final class Exchange {
+        private final Request request;
+        private final byte[] body;
+
+        Exchange(Request request, byte[] body) {
+            this.request = Objects.requireNonNull(request, "request");
+            this.body = Objects.requireNonNull(body, "body");
+        }
+
+        public Request getRequest() {
+            return this.request;
+        }
+
+        /**
+         * @return Body of the request, as it was sent.
+         */
+        public byte[] getBody() {
+            return this.body.clone();
+        }
+
+        /**
+         * @return Body of the request with its Content-Encoding undone.
+         */
+        public byte[] decodeBody() throws IOException {
+            String encoding = this.request.getHeaders().get("Content-Encoding");
+            if (encoding == null || encoding.equals(UrlEndpoint.ContentEncoding.IDENTITY.getName())) {
+                return this.getBody();
+            }
+
+            InputStream inputStream = new ByteArrayInputStream(this.body);
+            if (encoding.equals(UrlEndpoint.ContentEncoding.GZIP.getName())) {
+                inputStream = new GZIPInputStream(inputStream);
+            } else if (encoding.equals(UrlEndpoint.ContentEncoding.DEFLATE.getName())) {
+                inputStream = new InflaterInputStream(inputStream);
+            } else {
+                throw new IOException("Unknown Content-Encoding " + encoding);
+            }
+
+            try (InputStream decoded = inputStream) {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream(this.body.length * 4);
+                byte[] buffer = new byte[1024];
+                int read;
+                while ((read = decoded.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                }
+                return outputStream.toByteArray();
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import com.google.gson.JsonParser;
+import org.bukkit.NamespacedKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of collected data into a reused buffer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializeBenchmark {
+    @Param({"1", "10", "50"})
+    public int plugins;
+
+    @Param({"0", "10", "100"})
+    public int customKeys;
+
+    @Param({"LONG", "STRING", "MAP"})
+    public Stubs.Shape shape;
+
+    @Param({"JSON", "CBOR"})
+    public UrlEndpoint.Format format;
+
+    private MetricsLite.Reporter reporter;
+    private Map<NamespacedKey, Object> data;
+    private String namespace;
+    private List<Map.Entry<NamespacedKey, Object>> category;
+
+    private ReportBuffer buffer;
+    private ReportWriter writer;
+    private long start;
+
+    private Map<NamespacedKey, Long> previous;
+    private Map<NamespacedKey, Long> fingerprints;
+
+    // limits are enforced, but never hit, so every value is written
+    private final PayloadBudget budget = new PayloadBudget(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        Stubs.Fixture fixture = Stubs.fixture(this.plugins, this.customKeys, this.shape);
+        this.reporter = fixture.reporter;
+
+        // let static entities be computed in the background first
+        this.reporter.collectData(fixture.server);
+        Thread.sleep(100L);
+        this.data = this.reporter.collectData(fixture.server);
+        this.namespace = "plugin0";
+        this.category = this.reporter.groupByNamespace(this.data).get(this.namespace);
+
+        this.buffer = new ReportBuffer();
+        this.writer = ReportWriter.create(this.buffer, this.format);
+        this.start = this.writer.checkpoint();
+
+        this.previous = new HashMap<>();
+        this.reporter.serializeData(this.writer, this.data, null, this.previous, this.budget);
+        this.fingerprints = new HashMap<>(this.previous.size() * 2);
+    }
+
+    /**
+     * Full report.
+     */
+    @Benchmark
+    public int serializeData() throws IOException {
+        this.writer.rollback(this.start);
+        this.reporter.serializeData(this.writer, this.data, null, null, this.budget);
+        return this.writer.size();
+    }
+
+    /**
+     * Delta report of unchanged data, every value is fingerprinted.
+     */
+    @Benchmark
+    public int serializeDataDelta() throws IOException {
+        this.writer.rollback(this.start);
+        this.fingerprints.clear();
+        this.reporter.serializeData(this.writer, this.data, this.previous, this.fingerprints, this.budget);
+        return this.writer.size();
+    }
+
+    /**
+     * Full report with keys referred to by their IDs.
+     */
+    @Benchmark
+    public int serializeCompactData() throws IOException {
+        this.writer.rollback(this.start);
+        this.reporter.serializeCompactData(this.writer, this.data, Integer.MAX_VALUE, null, null, this.budget);
+        return this.writer.size();
+    }
+
+    /**
+     * Single category, the unit getOrCreateCategory used to build.
+     */
+    @Benchmark
+    public int serializeCategory() throws IOException {
+        this.writer.rollback(this.start);
+        this.writer.beginObject();
+        this.reporter.serializeCategory(this.writer, this.namespace, this.category, null, null, this.budget);
+        this.writer.endObject();
+        return this.writer.size();
+    }
+
+    /**
+     * Full report serialized and decoded again, the work of both ends.
+     */
+    @Benchmark
+    public Object roundTrip() throws IOException {
+        int size = this.serializeData();
+        if (this.format == UrlEndpoint.Format.CBOR) {
+            return CborDecoder.decode(this.buffer.asByteBuffer());
+        }
+        return new JsonParser().parse(new InputStreamReader(
+                new ByteArrayInputStream(this.buffer.array(), 0, size), ReportBuffer.CHARSET));
+    }
+}
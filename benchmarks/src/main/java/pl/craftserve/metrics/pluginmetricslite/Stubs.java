@@ -0,0 +1,257 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import com.google.gson.GsonBuilder;
+import org.bukkit.NamespacedKey;
+import org.bukkit.Server;
+import org.bukkit.event.Event;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginManager;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bukkit stand-ins for benchmarks. Every method not handled explicitly
+ * returns a zero value of its return type.
+ */
+final class Stubs {
+    static final UUID SERVER_ID = new UUID(0x0123456789abcdefL, 0xfedcba9876543210L);
+
+    /**
+     * Shape of values put by plugins listening to {@link MetricSubmitEvent}.
+     */
+    enum Shape {
+        LONG {
+            @Override
+            Object value(int index) {
+                return (long) index * 31L;
+            }
+        },
+        STRING {
+            @Override
+            Object value(int index) {
+                return "value-" + index;
+            }
+        },
+        LIST {
+            @Override
+            Object value(int index) {
+                List<Object> list = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    list.add(index + i);
+                }
+                return list;
+            }
+        },
+        MAP {
+            @Override
+            Object value(int index) {
+                Map<String, Object> map = new LinkedHashMap<>();
+                map.put("name", "entry-" + index);
+                map.put("count", index);
+                map.put("enabled", index % 2 == 0);
+                return map;
+            }
+        };
+
+        abstract Object value(int index);
+    }
+
+    private Stubs() {
+    }
+
+    /**
+     * Reporter collecting from a stub server.
+     */
+    static final class Fixture {
+        final Server server;
+        final MetricsLite.Reporter reporter;
+
+        private Fixture(Server server, MetricsLite.Reporter reporter) {
+            this.server = Objects.requireNonNull(server, "server");
+            this.reporter = Objects.requireNonNull(reporter, "reporter");
+        }
+    }
+
+    /**
+     * @param plugins Number of plugins attached to the reporting instance.
+     * @param customKeys Number of keys each plugin puts in every report.
+     * @param shape Shape of the values put in every report.
+     * @return Reporter collecting from a stub server.
+     */
+    static Fixture fixture(int plugins, int customKeys, Shape shape) {
+        Objects.requireNonNull(shape, "shape");
+
+        List<Plugin> attached = new ArrayList<>();
+        Map<NamespacedKey, Object> values = new LinkedHashMap<>();
+        Server server = server(event -> {
+            // stands in for the listeners of all attached plugins
+            if (event instanceof MetricSubmitEvent) {
+                ((MetricSubmitEvent) event).getData().putAll(values);
+            }
+        }, attached);
+
+        Logger logger = Logger.getLogger("Benchmark");
+        logger.setLevel(Level.WARNING);
+
+        UrlEndpoint endpoint = new UrlEndpoint(UrlEndpoint.CRAFTSERVE_METRICS, new LoopbackTransport());
+        MetricsLite metrics = new MetricsLite(logger, new GsonBuilder().create(), new ServerIdResolver(new File("unused")),
+                endpoint, Duration.ofMinutes(1));
+
+        for (int i = 0; i < plugins; i++) {
+            Plugin plugin = plugin(server, "Plugin" + i);
+            attached.add(plugin);
+            metrics.attach(plugin);
+
+            for (int j = 0; j < customKeys; j++) {
+                values.put(new NamespacedKey(plugin, "key_" + j), shape.value(j));
+            }
+        }
+
+        return new Fixture(server, metrics.new Reporter(server, SERVER_ID));
+    }
+
+    static Server server(Consumer<Event> listeners, List<Plugin> plugins) {
+        Objects.requireNonNull(listeners, "listeners");
+        Objects.requireNonNull(plugins, "plugins");
+
+        PluginManager pluginManager = stub(PluginManager.class, (name, args) -> {
+            switch (name) {
+                case "callEvent":
+                    listeners.accept((Event) args[0]);
+                    return null;
+                case "getPlugins":
+                    return plugins.toArray(new Plugin[0]);
+                default:
+                    return NOT_HANDLED;
+            }
+        });
+
+        return stub(Server.class, (name, args) -> {
+            switch (name) {
+                case "getName":
+                    return "Stub";
+                case "getVersion":
+                    return "stub-1.0 (MC: 1.14.4)";
+                case "getBukkitVersion":
+                    return "1.14.4-R0.1-SNAPSHOT";
+                case "getMaxPlayers":
+                    return 100;
+                case "getViewDistance":
+                    return 10;
+                case "getPluginManager":
+                    return pluginManager;
+                case "getOnlinePlayers":
+                    return Collections.emptyList();
+                default:
+                    return NOT_HANDLED;
+            }
+        });
+    }
+
+    static Plugin plugin(Server server, String name) {
+        Objects.requireNonNull(server, "server");
+        Objects.requireNonNull(name, "name");
+
+        PluginDescriptionFile description = new PluginDescriptionFile(name, "1.0", "stub." + name);
+        return stub(Plugin.class, (method, args) -> {
+            switch (method) {
+                case "getName":
+                    return name;
+                case "getServer":
+                    return server;
+                case "getDescription":
+                    return description;
+                case "isEnabled":
+                    return true;
+                default:
+                    return NOT_HANDLED;
+            }
+        });
+    }
+
+    //
+    // Proxies
+    //
+
+    private static final Object NOT_HANDLED = new Object();
+
+    private static final Map<Class<?>, Object> ZERO_VALUES = new HashMap<>();
+
+    static {
+        ZERO_VALUES.put(boolean.class, false);
+        ZERO_VALUES.put(byte.class, (byte) 0);
+        ZERO_VALUES.put(short.class, (short) 0);
+        ZERO_VALUES.put(char.class, (char) 0);
+        ZERO_VALUES.put(int.class, 0);
+        ZERO_VALUES.put(long.class, 0L);
+        ZERO_VALUES.put(float.class, 0F);
+        ZERO_VALUES.put(double.class, 0D);
+        ZERO_VALUES.put(List.class, Collections.emptyList());
+        ZERO_VALUES.put(Set.class, Collections.emptySet());
+        ZERO_VALUES.put(Map.class, Collections.emptyMap());
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        /**
+         * @return Result of the call, or {@link #NOT_HANDLED}.
+         */
+        Object handle(String name, Object[] args);
+    }
+
+    private static <T> T stub(Class<T> type, Handler handler) {
+        Object proxy = Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] {type}, (self, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return self == args[0];
+                case "hashCode":
+                    return System.identityHashCode(self);
+                case "toString":
+                    return type.getSimpleName() + "Stub";
+            }
+
+            Object result = handler.handle(method.getName(), args);
+            if (result != NOT_HANDLED) {
+                return result;
+            }
+
+            Class<?> returnType = method.getReturnType();
+            if (returnType.isAssignableFrom(List.class) && returnType != Object.class) {
+                return Collections.emptyList();
+            }
+            return ZERO_VALUES.get(returnType);
+        });
+        return type.cast(proxy);
+    }
+}
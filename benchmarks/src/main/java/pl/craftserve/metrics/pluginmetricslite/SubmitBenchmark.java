@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Submission of a single report to a stub server on the loopback interface.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SubmitBenchmark {
+    public enum TransportType {
+        LOOPBACK,
+        URL_CONNECTION,
+        HTTP_CLIENT
+    }
+
+    @Param({"LOOPBACK", "URL_CONNECTION", "HTTP_CLIENT"})
+    public TransportType transport;
+
+    @Param({"IDENTITY", "GZIP"})
+    public UrlEndpoint.ContentEncoding encoding;
+
+    @Param({"1024", "65536"})
+    public int reportSize;
+
+    private HttpServer server;
+    private UrlEndpoint endpoint;
+    private ReportBuffer report;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext("/", exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                byte[] buffer = new byte[8 * 1024];
+                while (body.read(buffer) != -1) {
+                    // discard
+                }
+            }
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_NO_CONTENT, -1L);
+            exchange.close();
+        });
+        this.server.start();
+
+        URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), this.server.getAddress().getPort(), "/");
+        this.endpoint = new UrlEndpoint(url, this.createTransport());
+        this.endpoint.setCompression(this.encoding, 0, Deflater.DEFAULT_COMPRESSION);
+        this.endpoint.setRetries(1, Duration.ZERO, Duration.ZERO);
+
+        this.report = new ReportBuffer();
+        Writer writer = this.report.writer();
+        writer.write('{');
+        for (int i = 0; this.report.size() < this.reportSize; i++) {
+            writer.write((i == 0 ? "" : ",") + "\"key_" + i + "\":\"value-" + i + "\"");
+            writer.flush();
+        }
+        writer.write('}');
+        writer.flush();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.server.stop(0);
+    }
+
+    @Benchmark
+    public void submit() throws Throwable {
+        this.endpoint.submit(this.report);
+    }
+
+    private Transport createTransport() {
+        switch (this.transport) {
+            case LOOPBACK:
+                return new LoopbackTransport() {
+                    @Override
+                    public Response send(Request request) throws IOException {
+                        Response response = super.send(request);
+                        this.drain(); // don't keep every request for the whole run
+                        return response;
+                    }
+                };
+            case URL_CONNECTION:
+                return new UrlConnectionTransport();
+            case HTTP_CLIENT:
+                Transport transport = HttpClientTransport.create();
+                if (transport == null) {
+                    throw new IllegalStateException("java.net.http.HttpClient is not available on this runtime");
+                }
+                return transport;
+            default:
+                throw new AssertionError(this.transport);
+        }
+    }
+}
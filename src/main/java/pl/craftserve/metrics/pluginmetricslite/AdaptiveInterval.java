@@ -0,0 +1,119 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the interval until the next report.
+ *
+ * The interval doubles while the server is under load, so reporting backs
+ * off from a struggling game loop, and while reports don't change. Once
+ * values change again it halves back to the base interval, or below it down
+ * to the minimum if most of them changed. An interval asked for by the
+ * endpoint is never undercut.
+ */
+class AdaptiveInterval {
+    /**
+     * A healthy server ticks every 50 ms, ticks further apart on average than
+     * this mean the game loop is struggling.
+     */
+    static final long LOADED_TICK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(55L);
+    static final double LOADED_TPS = 18D;
+    /**
+     * Share of wall time spent in GC pauses.
+     */
+    static final double LOADED_GC_FRACTION = 0.05D;
+    /**
+     * Share of values which changed since the previous report, above which
+     * data is considered to change quickly.
+     */
+    static final double FAST_CHANGE = 0.5D;
+
+    private final long baseNanos;
+    private final long minNanos;
+    private final long maxNanos;
+
+    private long currentNanos;
+    private long hintNanos;
+
+    /**
+     * @param interval Interval of a server which isn't loaded, reporting
+     *                 values which change at a normal rate.
+     * @param minInterval Shortest interval, while data changes quickly.
+     * @param maxInterval Longest interval, while the server is loaded or data
+     *                    doesn't change.
+     */
+    AdaptiveInterval(Duration interval, Duration minInterval, Duration maxInterval) {
+        Objects.requireNonNull(interval, "interval");
+        Objects.requireNonNull(minInterval, "minInterval");
+        Objects.requireNonNull(maxInterval, "maxInterval");
+        if (minInterval.isNegative() || minInterval.isZero()) {
+            throw new IllegalArgumentException("minInterval must be positive");
+        } else if (interval.compareTo(minInterval) < 0) {
+            throw new IllegalArgumentException("interval must not be shorter than minInterval");
+        } else if (maxInterval.compareTo(interval) < 0) {
+            throw new IllegalArgumentException("maxInterval must not be shorter than interval");
+        }
+
+        this.baseNanos = interval.toNanos();
+        this.minNanos = minInterval.toNanos();
+        this.maxNanos = maxInterval.toNanos();
+        this.currentNanos = this.baseNanos;
+    }
+
+    /**
+     * @param meanTickIntervalNanos Mean time between ticks, or 0 if unknown.
+     * @param tps Ticks per second, or a negative value if unknown.
+     * @param gcFraction Share of wall time spent in GC pauses.
+     * @return Whether the server is under load.
+     */
+    static boolean isLoaded(long meanTickIntervalNanos, double tps, double gcFraction) {
+        return meanTickIntervalNanos > LOADED_TICK_INTERVAL_NANOS || (tps >= 0D && tps < LOADED_TPS) || gcFraction > LOADED_GC_FRACTION;
+    }
+
+    /**
+     * @param loaded Whether the server is under load.
+     * @param changed Share of values which changed since the previous report,
+     *                from 0 to 1.
+     * @return Interval until the next report.
+     */
+    synchronized Duration next(boolean loaded, double changed) {
+        long current = this.currentNanos;
+        if (loaded || changed <= 0D) {
+            current = current >= this.maxNanos / 2L ? this.maxNanos : current * 2L;
+        } else if (changed >= FAST_CHANGE) {
+            current = Math.max(current / 2L, this.minNanos);
+        } else if (current > this.baseNanos) {
+            current = Math.max(current / 2L, this.baseNanos);
+        }
+        this.currentNanos = current;
+
+        return Duration.ofNanos(Math.max(current, this.hintNanos));
+    }
+
+    /**
+     * @param hint Interval asked for by the endpoint, or {@code null} to
+     *             forget the previous one.
+     */
+    synchronized void setHint(Duration hint) {
+        this.hintNanos = hint != null ? Math.max(hint.toNanos(), 0L) : 0L;
+    }
+}
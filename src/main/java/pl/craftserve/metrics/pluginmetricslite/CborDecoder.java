@@ -0,0 +1,304 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Decodes CBOR written by {@link CborReportWriter}, to validate reports and
+ * transcode them to JSON. Maps decode to {@link Map}s, arrays to
+ * {@link List}s, integers to {@link Long}s (or {@link BigInteger}s if they
+ * don't fit), floats to {@link Double}s and typed arrays of integers and
+ * floats to {@code long[]} and {@code double[]}. Other tags are ignored.
+ */
+final class CborDecoder {
+    private static final Object BREAK_MARKER = new Object();
+
+    private final ByteBuffer input;
+
+    private CborDecoder(ByteBuffer input) {
+        this.input = Objects.requireNonNull(input, "input").order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * @param input Encoded data item, read from its position to its limit.
+     * @return Decoded data item.
+     * @throws IOException When the input is malformed or has trailing bytes.
+     */
+    static Object decode(ByteBuffer input) throws IOException {
+        CborDecoder decoder = new CborDecoder(input.slice());
+        try {
+            Object value = decoder.read();
+            if (value == BREAK_MARKER) {
+                throw new IOException("Unexpected break");
+            } else if (decoder.input.hasRemaining()) {
+                throw new IOException(decoder.input.remaining() + " trailing byte(s)");
+            }
+            return value;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Unexpected end of input", e);
+        }
+    }
+
+    static Object decode(byte[] input) throws IOException {
+        return decode(ByteBuffer.wrap(input));
+    }
+
+    private Object read() throws IOException {
+        int initial = this.input.get() & 0xff;
+        int major = initial >>> 5;
+        int additional = initial & 0x1f;
+
+        if (major == CborReportWriter.MAJOR_SIMPLE) {
+            return this.simple(additional);
+        } else if (additional == CborReportWriter.INDEFINITE) {
+            return this.indefinite(major);
+        }
+
+        long argument = this.argument(additional);
+        switch (major) {
+            case CborReportWriter.MAJOR_UNSIGNED:
+                return argument >= 0L ? (Object) argument : unsigned(argument);
+            case CborReportWriter.MAJOR_NEGATIVE:
+                return argument >= 0L ? (Object) ~argument : unsigned(argument).not();
+            case CborReportWriter.MAJOR_BYTES:
+                return this.bytes(this.length(argument));
+            case CborReportWriter.MAJOR_TEXT:
+                return new String(this.bytes(this.length(argument)), StandardCharsets.UTF_8);
+            case CborReportWriter.MAJOR_ARRAY: {
+                int length = this.length(argument);
+                List<Object> list = new ArrayList<>(Math.min(length, this.input.remaining()));
+                for (int i = 0; i < length; i++) {
+                    list.add(this.item());
+                }
+                return list;
+            }
+            case CborReportWriter.MAJOR_MAP: {
+                int length = this.length(argument);
+                Map<Object, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < length; i++) {
+                    map.put(this.item(), this.item());
+                }
+                return map;
+            }
+            case CborReportWriter.MAJOR_TAG:
+            default:
+                return this.tagged(argument, this.item());
+        }
+    }
+
+    /**
+     * Data item which must not be a break.
+     */
+    private Object item() throws IOException {
+        Object item = this.read();
+        if (item == BREAK_MARKER) {
+            throw new IOException("Unexpected break");
+        }
+        return item;
+    }
+
+    private Object indefinite(int major) throws IOException {
+        switch (major) {
+            case CborReportWriter.MAJOR_BYTES:
+            case CborReportWriter.MAJOR_TEXT: {
+                ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+                Object chunk;
+                while ((chunk = this.read()) != BREAK_MARKER) {
+                    if (chunk instanceof String && major == CborReportWriter.MAJOR_TEXT) {
+                        chunks.write(((String) chunk).getBytes(StandardCharsets.UTF_8));
+                    } else if (chunk instanceof byte[] && major == CborReportWriter.MAJOR_BYTES) {
+                        chunks.write((byte[]) chunk);
+                    } else {
+                        throw new IOException("Invalid chunk of an indefinite length string");
+                    }
+                }
+                byte[] bytes = chunks.toByteArray();
+                return major == CborReportWriter.MAJOR_TEXT ? new String(bytes, StandardCharsets.UTF_8) : bytes;
+            }
+            case CborReportWriter.MAJOR_ARRAY: {
+                List<Object> list = new ArrayList<>();
+                Object item;
+                while ((item = this.read()) != BREAK_MARKER) {
+                    list.add(item);
+                }
+                return list;
+            }
+            case CborReportWriter.MAJOR_MAP: {
+                Map<Object, Object> map = new LinkedHashMap<>();
+                Object key;
+                while ((key = this.read()) != BREAK_MARKER) {
+                    map.put(key, this.item());
+                }
+                return map;
+            }
+            default:
+                throw new IOException("Major type " + major + " can't have an indefinite length");
+        }
+    }
+
+    private Object simple(int additional) throws IOException {
+        switch (additional) {
+            case CborReportWriter.FALSE & 0x1f:
+                return false;
+            case CborReportWriter.TRUE & 0x1f:
+                return true;
+            case CborReportWriter.NULL & 0x1f:
+            case 23: // undefined
+                return null;
+            case 25: // half precision
+                return halfToDouble(this.input.getShort());
+            case CborReportWriter.FLOAT32 & 0x1f:
+                return (double) this.input.getFloat();
+            case CborReportWriter.FLOAT64 & 0x1f:
+                return this.input.getDouble();
+            case CborReportWriter.INDEFINITE:
+                return BREAK_MARKER;
+            default:
+                throw new IOException("Unsupported simple value " + additional);
+        }
+    }
+
+    private Object tagged(long tag, Object item) throws IOException {
+        if (tag < 64L || tag > 87L || !(item instanceof byte[])) {
+            return item;
+        }
+
+        ByteBuffer bytes = ByteBuffer.wrap((byte[]) item);
+        int flags = (int) tag - 64;
+        boolean floating = (flags & 0x10) != 0;
+        if ((flags & 0x04) != 0) {
+            bytes.order(ByteOrder.LITTLE_ENDIAN); // or clamped, for uint8
+        }
+
+        if (floating) {
+            int width = 2 << (flags & 0x03);
+            if (width > Double.BYTES) {
+                return item; // 128-bit floats
+            }
+            double[] values = new double[this.elements(bytes, width)];
+            for (int i = 0; i < values.length; i++) {
+                switch (width) {
+                    case 2:
+                        values[i] = halfToDouble(bytes.getShort());
+                        break;
+                    case Float.BYTES:
+                        values[i] = bytes.getFloat();
+                        break;
+                    default:
+                        values[i] = bytes.getDouble();
+                        break;
+                }
+            }
+            return values;
+        }
+
+        boolean signed = (flags & 0x08) != 0;
+        int width = 1 << (flags & 0x03);
+        long[] values = new long[this.elements(bytes, width)];
+        for (int i = 0; i < values.length; i++) {
+            long value;
+            switch (width) {
+                case Byte.BYTES:
+                    value = signed ? bytes.get() : bytes.get() & 0xffL;
+                    break;
+                case Short.BYTES:
+                    value = signed ? bytes.getShort() : bytes.getShort() & 0xffffL;
+                    break;
+                case Integer.BYTES:
+                    value = signed ? bytes.getInt() : bytes.getInt() & 0xffffffffL;
+                    break;
+                default:
+                    value = bytes.getLong();
+                    if (!signed && value < 0L) {
+                        throw new IOException("uint64 element out of range");
+                    }
+                    break;
+            }
+            values[i] = value;
+        }
+        return values;
+    }
+
+    private int elements(ByteBuffer bytes, int width) throws IOException {
+        if (bytes.remaining() % width != 0) {
+            throw new IOException("Typed array of " + bytes.remaining() + " byte(s) isn't a multiple of " + width);
+        }
+        return bytes.remaining() / width;
+    }
+
+    private long argument(int additional) throws IOException {
+        switch (additional) {
+            case 24:
+                return this.input.get() & 0xffL;
+            case 25:
+                return this.input.getShort() & 0xffffL;
+            case 26:
+                return this.input.getInt() & 0xffffffffL;
+            case 27:
+                return this.input.getLong(); // negative if above Long.MAX_VALUE
+            default:
+                if (additional < 24) {
+                    return additional;
+                }
+                throw new IOException("Reserved additional information " + additional);
+        }
+    }
+
+    private int length(long argument) throws IOException {
+        if (argument < 0L || argument > this.input.remaining()) {
+            throw new IOException("Length " + Long.toUnsignedString(argument) + " exceeds the input");
+        }
+        return (int) argument;
+    }
+
+    private byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        this.input.get(bytes);
+        return bytes;
+    }
+
+    private static BigInteger unsigned(long value) {
+        return new BigInteger(Long.toUnsignedString(value));
+    }
+
+    private static double halfToDouble(short half) {
+        int exponent = half >>> 10 & 0x1f;
+        int mantissa = half & 0x3ff;
+        double value;
+        if (exponent == 0) {
+            value = Math.scalb((double) mantissa, -24);
+        } else if (exponent != 31) {
+            value = Math.scalb((double) (mantissa + 1024), exponent - 25);
+        } else {
+            value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        }
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+}
@@ -0,0 +1,642 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Streams CBOR (RFC 8949) into a {@link ReportBuffer}.
+ *
+ * Tokens are encoded straight into the backing array of the report buffer,
+ * through a window {@link ReportBuffer#allocate(int) allocated} ahead and
+ * trimmed back to what was written whenever the writer is flushed. Objects and
+ * arrays are written with indefinite lengths, since their sizes aren't known
+ * up front and entries may be rolled back. Integers take as few bytes as
+ * their value needs. Arrays of numbers are written as typed arrays
+ * (RFC 8746) of the narrowest element type which holds all of them.
+ *
+ * Values are taken from {@link Gson} as it emits them, rather than from a
+ * tree built up front, so an oversized value is cut off at the limit
+ * without being held in memory first.
+ */
+class CborReportWriter extends ReportWriter {
+    static final int MAJOR_UNSIGNED = 0;
+    static final int MAJOR_NEGATIVE = 1;
+    static final int MAJOR_BYTES = 2;
+    static final int MAJOR_TEXT = 3;
+    static final int MAJOR_ARRAY = 4;
+    static final int MAJOR_MAP = 5;
+    static final int MAJOR_TAG = 6;
+    static final int MAJOR_SIMPLE = 7;
+
+    static final int INDEFINITE = 31;
+    static final int FALSE = 0xf4;
+    static final int TRUE = 0xf5;
+    static final int NULL = 0xf6;
+    static final int FLOAT32 = 0xfa;
+    static final int FLOAT64 = 0xfb;
+    static final int BREAK = 0xff;
+
+    /**
+     * Typed array tags, big endian.
+     */
+    static final int TAG_SINT8 = 72;
+    static final int TAG_SINT16 = 73;
+    static final int TAG_SINT32 = 74;
+    static final int TAG_SINT64 = 75;
+    static final int TAG_FLOAT32 = 81;
+    static final int TAG_FLOAT64 = 82;
+
+    private static final int WINDOW_SIZE = 1024;
+
+    /**
+     * Allocated, but not yet written region of the report buffer, or
+     * {@code null} when flushed.
+     */
+    private ByteBuffer window;
+
+    private ValueWriter valueWriter;
+
+    CborReportWriter(ReportBuffer buffer) {
+        super(buffer);
+    }
+
+    @Override
+    ReportWriter beginObject() {
+        this.ensure(1).put((byte) (MAJOR_MAP << 5 | INDEFINITE));
+        return this;
+    }
+
+    @Override
+    ReportWriter endObject() {
+        this.ensure(1).put((byte) BREAK);
+        return this;
+    }
+
+    @Override
+    ReportWriter beginArray() {
+        this.ensure(1).put((byte) (MAJOR_ARRAY << 5 | INDEFINITE));
+        return this;
+    }
+
+    @Override
+    ReportWriter endArray() {
+        this.ensure(1).put((byte) BREAK);
+        return this;
+    }
+
+    @Override
+    ReportWriter name(String name) {
+        Objects.requireNonNull(name, "name");
+        this.text(name);
+        return this;
+    }
+
+    @Override
+    ReportWriter value(String value) {
+        Objects.requireNonNull(value, "value");
+        this.text(value);
+        return this;
+    }
+
+    @Override
+    ReportWriter value(long value) {
+        if (value >= 0L) {
+            this.head(MAJOR_UNSIGNED, value);
+        } else {
+            this.head(MAJOR_NEGATIVE, ~value); // -1 - value
+        }
+        return this;
+    }
+
+    @Override
+    ReportWriter value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            this.simple(NULL); // same as JSON
+        } else if ((float) value == value) {
+            this.ensure(5).put((byte) FLOAT32).putFloat((float) value);
+        } else {
+            this.ensure(9).put((byte) FLOAT64).putDouble(value);
+        }
+        return this;
+    }
+
+    @Override
+    ReportWriter value(boolean value) {
+        this.simple(value ? TRUE : FALSE);
+        return this;
+    }
+
+    @Override
+    ReportWriter value(Gson gson, Object value) throws IOException {
+        Objects.requireNonNull(gson, "gson");
+        Objects.requireNonNull(value, "value");
+
+        if (value instanceof long[]) {
+            this.integers((long[]) value);
+        } else if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            long[] values = new long[array.length];
+            for (int i = 0; i < array.length; i++) {
+                values[i] = array[i];
+            }
+            this.integers(values);
+        } else if (value instanceof double[] && isFinite((double[]) value)) {
+            this.floats((double[]) value);
+        } else {
+            // NaN and infinities are left to Gson, which refuses them like it
+            // does for JSON unless told otherwise
+            if (this.valueWriter == null) {
+                this.valueWriter = new ValueWriter();
+            }
+
+            try {
+                gson.toJson(value, value.getClass(), this.valueWriter);
+            } catch (Throwable throwable) {
+                // the writer state is undefined now, don't reuse it
+                this.valueWriter = null;
+                throw throwable;
+            }
+        }
+        return this;
+    }
+
+    private void element(JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            this.simple(NULL);
+        } else if (element.isJsonObject()) {
+            this.beginObject();
+            for (Map.Entry<String, JsonElement> entry : ((JsonObject) element).entrySet()) {
+                this.text(entry.getKey());
+                this.element(entry.getValue());
+            }
+            this.endObject();
+        } else if (element.isJsonArray()) {
+            this.array((JsonArray) element);
+        } else {
+            JsonPrimitive primitive = (JsonPrimitive) element;
+            if (primitive.isBoolean()) {
+                this.value(primitive.getAsBoolean());
+            } else if (primitive.isNumber()) {
+                Number number = primitive.getAsNumber();
+                Long integer = integer(number);
+                if (integer != null) {
+                    this.value(integer.longValue());
+                } else {
+                    this.value(number.doubleValue());
+                }
+            } else {
+                this.text(primitive.getAsString());
+            }
+        }
+    }
+
+    private void array(JsonArray array) {
+        int size = array.size();
+        boolean numeric = size > 1;
+        boolean integral = true;
+        for (int i = 0; i < size && numeric; i++) {
+            JsonElement element = array.get(i);
+            numeric = element.isJsonPrimitive() && ((JsonPrimitive) element).isNumber();
+            integral &= numeric && integer(element.getAsNumber()) != null;
+        }
+
+        if (!numeric) {
+            this.beginArray();
+            for (int i = 0; i < size; i++) {
+                this.element(array.get(i));
+            }
+            this.endArray();
+        } else if (integral) {
+            long[] values = new long[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = integer(array.get(i).getAsNumber());
+            }
+            this.integers(values);
+        } else {
+            double[] values = new double[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = array.get(i).getAsDouble();
+            }
+            this.floats(values);
+        }
+    }
+
+    private static boolean isFinite(double[] values) {
+        for (double value : values) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The given number as a long, or {@code null} if it's not an
+     * integer which fits in one.
+     */
+    static Long integer(Number number) {
+        if (number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte) {
+            return number.longValue();
+        } else if (number instanceof Double || number instanceof Float) {
+            return null; // written with a fraction by JSON, even if it's zero
+        }
+
+        // lazily parsed, BigDecimal or BigInteger
+        try {
+            BigInteger integer = new BigDecimal(number.toString()).toBigIntegerExact();
+            return integer.bitLength() < Long.SIZE ? integer.longValue() : null;
+        } catch (ArithmeticException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void integers(long[] values) {
+        if (values.length == 0) {
+            this.head(MAJOR_ARRAY, 0L);
+            return;
+        }
+
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (long value : values) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        int tag;
+        int width;
+        if (min >= Byte.MIN_VALUE && max <= Byte.MAX_VALUE) {
+            tag = TAG_SINT8;
+            width = Byte.BYTES;
+        } else if (min >= Short.MIN_VALUE && max <= Short.MAX_VALUE) {
+            tag = TAG_SINT16;
+            width = Short.BYTES;
+        } else if (min >= Integer.MIN_VALUE && max <= Integer.MAX_VALUE) {
+            tag = TAG_SINT32;
+            width = Integer.BYTES;
+        } else {
+            tag = TAG_SINT64;
+            width = Long.BYTES;
+        }
+
+        this.head(MAJOR_TAG, tag);
+        this.head(MAJOR_BYTES, (long) values.length * width);
+        for (long value : values) {
+            ByteBuffer window = this.ensure(width);
+            switch (width) {
+                case Byte.BYTES:
+                    window.put((byte) value);
+                    break;
+                case Short.BYTES:
+                    window.putShort((short) value);
+                    break;
+                case Integer.BYTES:
+                    window.putInt((int) value);
+                    break;
+                default:
+                    window.putLong(value);
+                    break;
+            }
+        }
+    }
+
+    private void floats(double[] values) {
+        if (values.length == 0) {
+            this.head(MAJOR_ARRAY, 0L);
+            return;
+        }
+
+        boolean single = true;
+        for (double value : values) {
+            single &= (float) value == value || Double.isNaN(value);
+        }
+
+        int width = single ? Float.BYTES : Double.BYTES;
+        this.head(MAJOR_TAG, single ? TAG_FLOAT32 : TAG_FLOAT64);
+        this.head(MAJOR_BYTES, (long) values.length * width);
+        for (double value : values) {
+            ByteBuffer window = this.ensure(width);
+            if (single) {
+                window.putFloat((float) value);
+            } else {
+                window.putDouble(value);
+            }
+        }
+    }
+
+    private void text(String value) {
+        int length = value.length();
+        this.head(MAJOR_TEXT, utf8Length(value));
+
+        for (int i = 0; i < length; i++) {
+            ByteBuffer window = this.ensure(4);
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                window.put((byte) c);
+            } else if (c < 0x800) {
+                window.put((byte) (0xc0 | c >> 6));
+                window.put((byte) (0x80 | c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                window.put((byte) (0xf0 | codePoint >> 18));
+                window.put((byte) (0x80 | codePoint >> 12 & 0x3f));
+                window.put((byte) (0x80 | codePoint >> 6 & 0x3f));
+                window.put((byte) (0x80 | codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                window.put((byte) '?'); // unpaired, as the JSON encoder does
+            } else {
+                window.put((byte) (0xe0 | c >> 12));
+                window.put((byte) (0x80 | c >> 6 & 0x3f));
+                window.put((byte) (0x80 | c & 0x3f));
+            }
+        }
+    }
+
+    static int utf8Length(String value) {
+        int length = value.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes += 1;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Write the initial byte of a data item, followed by its argument in as
+     * few bytes as it fits in.
+     */
+    private void head(int major, long argument) {
+        ByteBuffer window = this.ensure(9);
+        int type = major << 5;
+        if (argument < 24L) {
+            window.put((byte) (type | (int) argument));
+        } else if (argument <= 0xffL) {
+            window.put((byte) (type | 24)).put((byte) argument);
+        } else if (argument <= 0xffffL) {
+            window.put((byte) (type | 25)).putShort((short) argument);
+        } else if (argument <= 0xffffffffL) {
+            window.put((byte) (type | 26)).putInt((int) argument);
+        } else {
+            window.put((byte) (type | 27)).putLong(argument);
+        }
+    }
+
+    private void simple(int value) {
+        this.ensure(1).put((byte) value);
+    }
+
+    /**
+     * @return Window with room for at least the given number of bytes.
+     */
+    private ByteBuffer ensure(int length) {
+        ByteBuffer window = this.window;
+        if (window == null || window.remaining() < length) {
+            this.flush();
+
+            // never allocated past the limit, so writes within the window fit
+            int available = this.getLimit() - this.buffer.size();
+            if (available < length) {
+                throw new LimitExceededException(this.getLimit());
+            }
+            window = this.window = this.buffer.allocate(Math.min(Math.max(length, WINDOW_SIZE), available));
+        }
+        return window;
+    }
+
+    /**
+     * @return Size of the report, including what's written to the window.
+     */
+    private int position() {
+        ByteBuffer window = this.window;
+        return this.buffer.size() - (window != null ? window.remaining() : 0);
+    }
+
+    @Override
+    void setLimit(int limit) {
+        super.setLimit(limit);
+        this.flush(); // the window may reach past a lower limit
+    }
+
+    @Override
+    boolean isSeparatorPending() {
+        return false; // CBOR has no separators
+    }
+
+    @Override
+    void setSeparatorPending(boolean separatorPending) {
+    }
+
+    @Override
+    void flush() {
+        ByteBuffer window = this.window;
+        if (window != null) {
+            this.buffer.rewind(this.buffer.size() - window.remaining());
+            this.window = null;
+        }
+    }
+
+    /**
+     * Encodes values as {@link Gson} emits them. Numbers are held back while
+     * they are the only elements of the innermost array, to be written as a
+     * typed array if it ends that way.
+     */
+    private class ValueWriter extends JsonWriter {
+        private String deferredName;
+        private JsonArray numbers;
+
+        ValueWriter() {
+            super(new Writer() {
+                @Override
+                public void write(char[] chars, int offset, int length) {
+                    throw new UnsupportedOperationException("Raw JSON can't be written as CBOR");
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+        }
+
+        /**
+         * Write whatever is held back, before a token other than a number.
+         */
+        private void open() {
+            if (this.deferredName != null) {
+                CborReportWriter.this.text(this.deferredName);
+                this.deferredName = null;
+            } else if (this.numbers != null) {
+                JsonArray numbers = this.numbers;
+                this.numbers = null;
+
+                CborReportWriter.this.beginArray();
+                for (JsonElement number : numbers) {
+                    CborReportWriter.this.element(number);
+                }
+            }
+        }
+
+        private JsonWriter number(JsonPrimitive number) {
+            JsonArray numbers = this.numbers;
+            if (numbers == null) {
+                this.open();
+                CborReportWriter.this.element(number);
+                return this;
+            }
+
+            // every number takes at least a byte
+            numbers.add(number);
+            int limit = CborReportWriter.this.getLimit();
+            if ((long) CborReportWriter.this.position() + numbers.size() > limit) {
+                throw new LimitExceededException(limit);
+            }
+            return this;
+        }
+
+        @Override
+        public JsonWriter beginArray() {
+            this.open();
+            this.numbers = new JsonArray();
+            return this;
+        }
+
+        @Override
+        public JsonWriter endArray() {
+            JsonArray numbers = this.numbers;
+            if (numbers != null) {
+                this.numbers = null;
+                CborReportWriter.this.array(numbers);
+            } else {
+                CborReportWriter.this.endArray();
+            }
+            return this;
+        }
+
+        @Override
+        public JsonWriter beginObject() {
+            this.open();
+            CborReportWriter.this.beginObject();
+            return this;
+        }
+
+        @Override
+        public JsonWriter endObject() {
+            CborReportWriter.this.endObject();
+            return this;
+        }
+
+        @Override
+        public JsonWriter name(String name) {
+            Objects.requireNonNull(name, "name");
+            this.deferredName = name;
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(String value) {
+            if (value == null) {
+                return this.nullValue();
+            }
+
+            this.open();
+            CborReportWriter.this.text(value);
+            return this;
+        }
+
+        @Override
+        public JsonWriter nullValue() {
+            if (this.deferredName != null && !this.getSerializeNulls()) {
+                this.deferredName = null; // skip the whole entry
+                return this;
+            }
+
+            this.open();
+            CborReportWriter.this.simple(NULL);
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(boolean value) {
+            this.open();
+            CborReportWriter.this.value(value);
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(Boolean value) {
+            return value != null ? this.value(value.booleanValue()) : this.nullValue();
+        }
+
+        // overrides it in Gson versions which have it
+        public JsonWriter value(float value) {
+            return this.number(new JsonPrimitive(value));
+        }
+
+        @Override
+        public JsonWriter value(double value) {
+            return this.number(new JsonPrimitive(value));
+        }
+
+        @Override
+        public JsonWriter value(long value) {
+            return this.number(new JsonPrimitive(value));
+        }
+
+        @Override
+        public JsonWriter value(Number value) {
+            return value != null ? this.number(new JsonPrimitive(value)) : this.nullValue();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
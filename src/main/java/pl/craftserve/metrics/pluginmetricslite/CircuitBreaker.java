@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Stops submission attempts once the endpoint failed a number of times in a
+ * row. After a cool-down a single trial submission is let through, which
+ * either closes the circuit again or opens it for twice as long.
+ */
+class CircuitBreaker {
+    private final int failureThreshold;
+    private final long minOpenNanos;
+    private final long maxOpenNanos;
+
+    private UrlEndpoint.CircuitState state = UrlEndpoint.CircuitState.CLOSED;
+    private int failures;
+    private long openNanos;
+    private long openedAt;
+    private boolean trialInProgress;
+
+    CircuitBreaker(int failureThreshold, Duration openDuration, Duration maxOpenDuration) {
+        Objects.requireNonNull(openDuration, "openDuration");
+        Objects.requireNonNull(maxOpenDuration, "maxOpenDuration");
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("failureThreshold must be positive");
+        } else if (openDuration.isNegative() || openDuration.isZero()) {
+            throw new IllegalArgumentException("openDuration must be positive");
+        } else if (maxOpenDuration.compareTo(openDuration) < 0) {
+            throw new IllegalArgumentException("maxOpenDuration must not be shorter than openDuration");
+        }
+
+        this.failureThreshold = failureThreshold;
+        this.minOpenNanos = openDuration.toNanos();
+        this.maxOpenNanos = maxOpenDuration.toNanos();
+        this.openNanos = this.minOpenNanos;
+    }
+
+    /**
+     * @return Whether a submission may be attempted now. Every permitted
+     * attempt must be followed by {@link #onSuccess()} or {@link #onFailure()}.
+     */
+    synchronized boolean tryAcquire() {
+        switch (this.state) {
+            case OPEN:
+                if (System.nanoTime() - this.openedAt < this.openNanos) {
+                    return false;
+                }
+                this.state = UrlEndpoint.CircuitState.HALF_OPEN;
+                return this.tryStartTrial();
+            case HALF_OPEN:
+                return this.tryStartTrial();
+            case CLOSED:
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Only a single trial submission is permitted while half-open.
+     */
+    private boolean tryStartTrial() {
+        if (this.trialInProgress) {
+            return false;
+        }
+        this.trialInProgress = true;
+        return true;
+    }
+
+    synchronized void onSuccess() {
+        this.state = UrlEndpoint.CircuitState.CLOSED;
+        this.failures = 0;
+        this.openNanos = this.minOpenNanos;
+        this.trialInProgress = false;
+    }
+
+    synchronized void onFailure() {
+        if (this.state == UrlEndpoint.CircuitState.HALF_OPEN) {
+            // still down, back off further
+            this.openNanos = Math.min(this.openNanos << 1, this.maxOpenNanos);
+            this.open();
+        } else if (this.state == UrlEndpoint.CircuitState.CLOSED && ++this.failures >= this.failureThreshold) {
+            this.open();
+        }
+    }
+
+    synchronized UrlEndpoint.CircuitState getState() {
+        return this.state;
+    }
+
+    /**
+     * @return Time left until a trial submission is let through, zero unless
+     * the circuit is open.
+     */
+    synchronized Duration getRemainingOpenTime() {
+        if (this.state != UrlEndpoint.CircuitState.OPEN) {
+            return Duration.ZERO;
+        }
+
+        long remaining = this.openNanos - (System.nanoTime() - this.openedAt);
+        return Duration.ofNanos(Math.max(0L, remaining));
+    }
+
+    private void open() {
+        this.state = UrlEndpoint.CircuitState.OPEN;
+        this.openedAt = System.nanoTime();
+        this.trialInProgress = false;
+    }
+}
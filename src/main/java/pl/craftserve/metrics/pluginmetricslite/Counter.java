@@ -0,0 +1,67 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter, reported as the number of events since the previous
+ * report. Updates are striped across cells, so concurrent increments from
+ * many threads don't contend on a single value.
+ *
+ * @see MetricsLite#counter(org.bukkit.plugin.Plugin, String)
+ */
+public final class Counter implements Instrument {
+    private final LongAdder count = new LongAdder();
+    private long reported;
+
+    Counter() {
+    }
+
+    public void increment() {
+        this.count.increment();
+    }
+
+    public void add(long delta) {
+        if (delta < 0L) {
+            throw new IllegalArgumentException("Counters can only increase");
+        }
+
+        this.count.add(delta);
+    }
+
+    @Override
+    public void snapshot(ReportWriter writer) throws IOException {
+        writer.value(this.snapshot());
+    }
+
+    @Override
+    public synchronized Long snapshot() {
+        long count = this.count.sumThenReset();
+        this.reported += count;
+        return count;
+    }
+
+    /**
+     * @return Number of events since the counter was created, regardless of
+     * snapshots.
+     */
+    synchronized long cumulative() {
+        return this.reported + this.count.sum();
+    }
+}
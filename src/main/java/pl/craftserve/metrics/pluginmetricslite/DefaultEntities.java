@@ -23,24 +23,133 @@ import org.bukkit.plugin.PluginDescriptionFile;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 class DefaultEntities {
+    /**
+     * How long entities which change only on administrative action are cached.
+     */
+    private static final Duration SETTINGS_TTL = Duration.ofMinutes(10L);
+
+    private final List<EntityProvider> providers = new ArrayList<>();
+    private final Set<NamespacedKey> keys = new HashSet<>();
+    private final Set<NamespacedKey> liveKeys = new HashSet<>();
+    private final Executor executor;
+
+    DefaultEntities() {
+        this(Executors.newCachedThreadPool(ReportScheduler.threadFactory("Metrics-Lite-Entities")));
+    }
+
+    DefaultEntities(Executor executor) {
+        this.executor = Objects.requireNonNull(executor, "executor");
+
+        this.registerBukkit(this.providers);
+        this.registerCraftserve(this.providers);
+        this.registerJava(this.providers);
+        this.registerSystem(this.providers);
+
+        for (EntityProvider provider : this.providers) {
+            this.keys.add(provider.getKey());
+            if (provider.getRefresh() == EntityProvider.Refresh.LIVE) {
+                this.liveKeys.add(provider.getKey());
+            }
+        }
+        this.keys.add(AFFECTED_PLUGINS);
+    }
+
+    /**
+     * @return Whether the key is one of these entities.
+     */
+    public boolean isCore(NamespacedKey key) {
+        return this.keys.contains(key);
+    }
+
+    /**
+     * @return Whether the key is one of the entities handed over by
+     * {@link #sample(Server, BiConsumer)}.
+     */
+    public boolean isSampled(NamespacedKey key) {
+        return this.liveKeys.contains(key);
+    }
+
+    /**
+     * @return Whether the namespace belongs to this library, rather than to
+     * a plugin.
+     */
+    public static boolean isBuiltIn(String namespace) {
+        return namespace.equals(BUKKIT_NAMESPACE) ||
+                namespace.equals(CRAFTSERVE_NAMESPACE) ||
+                namespace.equals(JAVA_NAMESPACE) ||
+                namespace.equals(SYSTEM_NAMESPACE) ||
+                namespace.equals(PipelineStats.NAMESPACE);
+    }
+
+    /**
+     * Start computing static entities in the background, so they are known
+     * by the time the first report is collected.
+     */
+    public void prefetch(Server server) {
+        Objects.requireNonNull(server, "server");
+
+        for (EntityProvider provider : this.providers) {
+            provider.prefetch(server, this.executor);
+        }
+    }
+
+    /**
+     * Let threads computing entities go, they are not needed after metrics
+     * stop.
+     */
+    public void close() {
+        if (this.executor instanceof ExecutorService) {
+            ((ExecutorService) this.executor).shutdown();
+        }
+    }
+
     public void append(Map<NamespacedKey, Object> data, MetricsLite metrics, Server server) {
         Objects.requireNonNull(data, "data");
         Objects.requireNonNull(metrics, "metrics");
         Objects.requireNonNull(server, "server");
 
-        Runtime runtime = Runtime.getRuntime();
+        for (EntityProvider provider : this.providers) {
+            Object value = provider.get(server, this.executor);
+            if (value != null) {
+                data.put(provider.getKey(), value);
+            }
+        }
+
+        this.appendAffectedPlugins(data, metrics);
+    }
+
+    /**
+     * Hand over current values of live numeric entities, which are cheap
+     * enough to be sampled more often than reports are collected.
+     */
+    public void sample(Server server, BiConsumer<NamespacedKey, Number> consumer) {
+        Objects.requireNonNull(server, "server");
+        Objects.requireNonNull(consumer, "consumer");
 
-        this.appendBukkit(data, metrics, server);
-        this.appendCraftserve(data);
-        this.appendJava(data);
-        this.appendSystem(data, runtime);
+        for (EntityProvider provider : this.providers) {
+            if (provider.getRefresh() == EntityProvider.Refresh.LIVE) {
+                Object value = provider.get(server, this.executor);
+                if (value instanceof Number) {
+                    consumer.accept(provider.getKey(), (Number) value);
+                }
+            }
+        }
     }
 
     //
@@ -48,29 +157,32 @@ class DefaultEntities {
     //
 
     private static final String BUKKIT_NAMESPACE = NamespacedKey.BUKKIT;
+    private static final NamespacedKey AFFECTED_PLUGINS = bukkit("affected_plugins");
 
     /**
      * Bukkit-related entities, such as online-mode and software version.
      */
-    private void appendBukkit(Map<NamespacedKey, Object> data, MetricsLite metrics, Server server) {
-        data.put(bukkit("server_name"), server.getName());
-        data.put(bukkit("server_version"), server.getVersion());
-        data.put(bukkit("version"), server.getBukkitVersion());
+    private void registerBukkit(List<EntityProvider> providers) {
+        providers.add(EntityProvider.constant(bukkit("server_name"), Server::getName));
+        providers.add(EntityProvider.constant(bukkit("server_version"), Server::getVersion));
+        providers.add(EntityProvider.constant(bukkit("version"), Server::getBukkitVersion));
 
-        data.put(bukkit("online_count"), server.getOnlinePlayers().size());
-        data.put(bukkit("slots"), server.getMaxPlayers());
-        data.put(bukkit("view_distance"), server.getViewDistance());
+        providers.add(EntityProvider.live(bukkit("online_count"), server -> server.getOnlinePlayers().size()));
+        providers.add(EntityProvider.ttl(bukkit("slots"), SETTINGS_TTL, Server::getMaxPlayers));
+        providers.add(EntityProvider.ttl(bukkit("view_distance"), SETTINGS_TTL, Server::getViewDistance));
 
-        data.put(bukkit("has_whitelist"), server.hasWhitelist());
-        data.put(bukkit("is_hardcore"), server.isHardcore());
-        data.put(bukkit("is_online_mode"), server.getOnlineMode());
+        providers.add(EntityProvider.ttl(bukkit("has_whitelist"), SETTINGS_TTL, Server::hasWhitelist));
+        providers.add(EntityProvider.constant(bukkit("is_hardcore"), Server::isHardcore));
+        providers.add(EntityProvider.constant(bukkit("is_online_mode"), Server::getOnlineMode));
+    }
 
-        Collection<PluginInfo> affectedPlugins = metrics.getAffectedPlugins().stream()
+    private void appendAffectedPlugins(Map<NamespacedKey, Object> data, MetricsLite metrics) {
+        Collection<PluginInfo> affectedPlugins = metrics.getReportedPlugins().stream()
                 .map(affectedPlugin -> new PluginInfo(affectedPlugin.getDescription()))
                 .collect(Collectors.toList());
 
         if (!affectedPlugins.isEmpty()) {
-            data.put(bukkit("affected_plugins"), affectedPlugins);
+            data.put(AFFECTED_PLUGINS, affectedPlugins);
         }
     }
 
@@ -101,16 +213,16 @@ class DefaultEntities {
     /**
      * Craftserve hosting-related entities.
      */
-    private void appendCraftserve(Map<NamespacedKey, Object> data) {
-        boolean isHostedOn;
-        try {
-            String hostName = InetAddress.getLocalHost().getHostName();
-            isHostedOn = hostName.toLowerCase(Locale.US).endsWith(".craftserve.pl");
-        } catch (UnknownHostException e) {
-            isHostedOn = false;
-        }
-
-        data.put(craftserve("is_hosted_on"), isHostedOn);
+    private void registerCraftserve(List<EntityProvider> providers) {
+        // reverse DNS may block for seconds, this must never run inline
+        providers.add(EntityProvider.constant(craftserve("is_hosted_on"), server -> {
+            try {
+                String hostName = InetAddress.getLocalHost().getHostName();
+                return hostName.toLowerCase(Locale.US).endsWith(".craftserve.pl");
+            } catch (UnknownHostException e) {
+                return false;
+            }
+        }));
     }
 
     private static NamespacedKey craftserve(String key) {
@@ -127,13 +239,13 @@ class DefaultEntities {
     /**
      * Java Virtual Machine-related entities.
      */
-    private void appendJava(Map<NamespacedKey, Object> data) {
-        data.put(java("vendor"), System.getProperty("java.vendor"));
-        data.put(java("vendor_url"), System.getProperty("java.vendor.url"));
-        data.put(java("version"), System.getProperty("java.version"));
+    private void registerJava(List<EntityProvider> providers) {
+        providers.add(property(java("vendor"), "java.vendor"));
+        providers.add(property(java("vendor_url"), "java.vendor.url"));
+        providers.add(property(java("version"), "java.version"));
 
-        data.put(java("runtime_name"), System.getProperty("java.runtime.name"));
-        data.put(java("runtime_version"), System.getProperty("java.runtime.version"));
+        providers.add(property(java("runtime_name"), "java.runtime.name"));
+        providers.add(property(java("runtime_version"), "java.runtime.version"));
     }
 
     private static NamespacedKey java(String key) {
@@ -150,19 +262,24 @@ class DefaultEntities {
     /**
      * System-related entities, such as memory usage and OS version.
      */
-    private void appendSystem(Map<NamespacedKey, Object> data, Runtime runtime) {
-        data.put(system("os_arch"), System.getProperty("os.arch"));
-        data.put(system("os_name"), System.getProperty("os.name"));
-        data.put(system("os_version"), System.getProperty("os.version"));
+    private void registerSystem(List<EntityProvider> providers) {
+        providers.add(property(system("os_arch"), "os.arch"));
+        providers.add(property(system("os_name"), "os.name"));
+        providers.add(property(system("os_version"), "os.version"));
 
-        data.put(system("available_processors"), runtime.availableProcessors());
-        data.put(system("free_memory"), runtime.freeMemory());
-        data.put(system("total_memory"), runtime.totalMemory());
-        data.put(system("max_memory"), runtime.maxMemory());
+        providers.add(EntityProvider.ttl(system("available_processors"), SETTINGS_TTL, server -> Runtime.getRuntime().availableProcessors()));
+        providers.add(EntityProvider.live(system("free_memory"), server -> Runtime.getRuntime().freeMemory()));
+        providers.add(EntityProvider.live(system("total_memory"), server -> Runtime.getRuntime().totalMemory()));
+        providers.add(EntityProvider.live(system("max_memory"), server -> Runtime.getRuntime().maxMemory()));
     }
 
     private static NamespacedKey system(String key) {
         Objects.requireNonNull(key, "key");
         return new NamespacedKey(SYSTEM_NAMESPACE, key);
     }
+
+    private static EntityProvider property(NamespacedKey key, String property) {
+        Objects.requireNonNull(property, "property");
+        return EntityProvider.constant(key, server -> System.getProperty(property));
+    }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import org.bukkit.NamespacedKey;
+import org.bukkit.Server;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Source of a single entity, cached according to its {@link Refresh} policy.
+ *
+ * Static and TTL entities are computed on the given executor, never on the
+ * calling thread. Until the first computation completes the entity has no
+ * value and is left out of the report, afterwards a stale value is served
+ * while it's being refreshed.
+ */
+class EntityProvider {
+    enum Refresh {
+        /**
+         * Computed once per process.
+         */
+        STATIC,
+        /**
+         * Recomputed in the background once the value gets older than its TTL.
+         */
+        TTL,
+        /**
+         * Computed inline on every collection, must be cheap.
+         */
+        LIVE
+    }
+
+    private final NamespacedKey key;
+    private final Refresh refresh;
+    private final long ttlNanos;
+    private final Function<Server, ?> supplier;
+
+    private final AtomicBoolean computing = new AtomicBoolean();
+    private volatile Object value;
+    private volatile long computedAt;
+
+    private EntityProvider(NamespacedKey key, Refresh refresh, Duration ttl, Function<Server, ?> supplier) {
+        this.key = Objects.requireNonNull(key, "key");
+        this.refresh = Objects.requireNonNull(refresh, "refresh");
+        this.ttlNanos = Objects.requireNonNull(ttl, "ttl").toNanos();
+        this.supplier = Objects.requireNonNull(supplier, "supplier");
+    }
+
+    NamespacedKey getKey() {
+        return this.key;
+    }
+
+    Refresh getRefresh() {
+        return this.refresh;
+    }
+
+    /**
+     * Start computing the value in the background, if it's not live.
+     */
+    void prefetch(Server server, Executor executor) {
+        Objects.requireNonNull(server, "server");
+        Objects.requireNonNull(executor, "executor");
+
+        if (this.refresh != Refresh.LIVE && this.value == null) {
+            this.computeAsync(server, executor);
+        }
+    }
+
+    /**
+     * @return The current value, or {@code null} if it's not known yet.
+     */
+    Object get(Server server, Executor executor) {
+        Objects.requireNonNull(server, "server");
+        Objects.requireNonNull(executor, "executor");
+
+        switch (this.refresh) {
+            case LIVE:
+                return this.supplier.apply(server);
+            case TTL:
+                if (this.value == null || System.nanoTime() - this.computedAt >= this.ttlNanos) {
+                    this.computeAsync(server, executor);
+                }
+                return this.value;
+            case STATIC:
+            default:
+                if (this.value == null) {
+                    this.computeAsync(server, executor);
+                }
+                return this.value;
+        }
+    }
+
+    private void computeAsync(Server server, Executor executor) {
+        if (!this.computing.compareAndSet(false, true)) {
+            return; // already in progress
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    Object value = this.supplier.apply(server);
+                    if (value != null) {
+                        this.value = value;
+                    }
+                } catch (Throwable ignored) {
+                    // keep the stale value, try again later
+                } finally {
+                    this.computedAt = System.nanoTime();
+                    this.computing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.computing.set(false);
+        }
+    }
+
+    static EntityProvider constant(NamespacedKey key, Function<Server, ?> supplier) {
+        return new EntityProvider(key, Refresh.STATIC, Duration.ZERO, supplier);
+    }
+
+    static EntityProvider ttl(NamespacedKey key, Duration ttl, Function<Server, ?> supplier) {
+        return new EntityProvider(key, Refresh.TTL, ttl, supplier);
+    }
+
+    static EntityProvider live(NamespacedKey key, Function<Server, ?> supplier) {
+        return new EntityProvider(key, Refresh.LIVE, Duration.ZERO, supplier);
+    }
+}
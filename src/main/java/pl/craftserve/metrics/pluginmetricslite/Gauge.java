@@ -0,0 +1,44 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Value set by the plugin, reported as-is on every report.
+ *
+ * @see MetricsLite#gauge(org.bukkit.plugin.Plugin, String)
+ */
+public final class Gauge implements MetricSource.LongGauge {
+    private final AtomicLong value = new AtomicLong();
+
+    Gauge() {
+    }
+
+    public void set(long value) {
+        this.value.set(value);
+    }
+
+    public void add(long delta) {
+        this.value.addAndGet(delta);
+    }
+
+    @Override
+    public long getAsLong() {
+        return this.value.get();
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values, reported as count, sum, min, max and
+ * percentiles of the values recorded since the previous report.
+ *
+ * Values are counted in fixed log-linear buckets: each power of two is split
+ * into {@value #SUB_BUCKETS} linear sub-buckets, so reported percentiles are
+ * within 12.5% of the recorded values. Buckets live in a single primitive
+ * array striped by thread, {@link #record(long)} neither allocates nor locks.
+ *
+ * @see MetricsLite#histogram(org.bukkit.plugin.Plugin, String)
+ */
+public final class Histogram implements Instrument {
+    private static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Values below {@link #SUB_BUCKETS} are counted exactly, every power of
+     * two above up to {@link Long#MAX_VALUE} has its own sub-buckets.
+     */
+    static final int BUCKETS = (Long.SIZE - 1 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private static final int SUM = BUCKETS;
+    private static final int MIN = BUCKETS + 1;
+    private static final int MAX = BUCKETS + 2;
+    private static final int STRIPE_LENGTH = BUCKETS + 3;
+    private static final int MAX_STRIPES = 8;
+
+    private final AtomicLongArray cells;
+    private final int stripeMask;
+
+    private final long[] snapshot = new long[BUCKETS];
+    private final Summary summary = new Summary();
+    private final long[] reported = new long[BUCKETS];
+    private long reportedSum;
+
+    Histogram() {
+        int stripes = Integer.highestOneBit(Math.min(Runtime.getRuntime().availableProcessors(), MAX_STRIPES));
+        this.stripeMask = stripes - 1;
+        this.cells = new AtomicLongArray(stripes * STRIPE_LENGTH);
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            this.cells.set(stripe * STRIPE_LENGTH + MIN, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Record a single value. Negative values are recorded as zero.
+     * @param value Value to record.
+     */
+    public void record(long value) {
+        if (value < 0L) {
+            value = 0L;
+        }
+
+        AtomicLongArray cells = this.cells;
+        int stripe = ((int) Thread.currentThread().getId() & this.stripeMask) * STRIPE_LENGTH;
+
+        cells.getAndIncrement(stripe + bucket(value));
+        cells.getAndAdd(stripe + SUM, value);
+
+        long min;
+        while (value < (min = cells.get(stripe + MIN)) && !cells.compareAndSet(stripe + MIN, min, value)) {
+            // retry
+        }
+
+        long max;
+        while (value > (max = cells.get(stripe + MAX)) && !cells.compareAndSet(stripe + MAX, max, value)) {
+            // retry
+        }
+    }
+
+    /**
+     * Values recorded while a snapshot is being taken are counted either in
+     * this snapshot or in the next one.
+     */
+    @Override
+    public synchronized void snapshot(ReportWriter writer) throws IOException {
+        Summary summary = this.summary;
+        this.snapshot(summary);
+
+        writer.beginObject();
+        writer.name("count").value(summary.count);
+        if (summary.count != 0L) {
+            writer.name("sum").value(summary.sum);
+            writer.name("min").value(summary.min);
+            writer.name("max").value(summary.max);
+            writer.name("p50").value(summary.p50);
+            writer.name("p90").value(summary.p90);
+            writer.name("p99").value(summary.p99);
+        }
+        writer.endObject();
+    }
+
+    @Override
+    public synchronized Map<String, Long> snapshot() {
+        Summary summary = this.summary;
+        this.snapshot(summary);
+
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", summary.count);
+        if (summary.count != 0L) {
+            snapshot.put("sum", summary.sum);
+            snapshot.put("min", summary.min);
+            snapshot.put("max", summary.max);
+            snapshot.put("p50", summary.p50);
+            snapshot.put("p90", summary.p90);
+            snapshot.put("p99", summary.p99);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Summarize the values recorded since the previous snapshot and reset.
+     * @param summary Filled with the summary, fields other than the count
+     *                are undefined if nothing was recorded.
+     */
+    synchronized void snapshot(Summary summary) {
+        AtomicLongArray cells = this.cells;
+        long[] counts = this.snapshot;
+
+        long count = 0L;
+        long sum = 0L;
+        long min = Long.MAX_VALUE;
+        long max = 0L;
+        for (int stripe = 0; stripe <= this.stripeMask * STRIPE_LENGTH; stripe += STRIPE_LENGTH) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long bucket = cells.get(stripe + i) != 0L ? cells.getAndSet(stripe + i, 0L) : 0L;
+                counts[i] = stripe == 0 ? bucket : counts[i] + bucket;
+                count += bucket;
+            }
+
+            sum += cells.getAndSet(stripe + SUM, 0L);
+            min = Math.min(min, cells.getAndSet(stripe + MIN, Long.MAX_VALUE));
+            max = Math.max(max, cells.getAndSet(stripe + MAX, 0L));
+        }
+
+        for (int i = 0; i < BUCKETS; i++) {
+            this.reported[i] += counts[i];
+        }
+        this.reportedSum += sum;
+
+        summary.count = count;
+        summary.sum = sum;
+        summary.min = min;
+        summary.max = max;
+        summary.p50 = percentile(counts, count, min, max, 0.5);
+        summary.p90 = percentile(counts, count, min, max, 0.9);
+        summary.p99 = percentile(counts, count, min, max, 0.99);
+    }
+
+    private static long percentile(long[] counts, long count, long min, long max, double percentile) {
+        long rank = Math.max(1L, (long) Math.ceil(percentile * count));
+
+        int bucket = 0;
+        long seen = counts[0];
+        while (seen < rank && bucket < BUCKETS - 1) {
+            seen += counts[++bucket];
+        }
+        return Math.max(min, Math.min(max, upperBound(bucket)));
+    }
+
+    /**
+     * Counts since the histogram was created, regardless of snapshots.
+     * @param counts Filled with the count of every bucket.
+     * @return Sum of all recorded values.
+     */
+    synchronized long cumulative(long[] counts) {
+        if (counts.length != BUCKETS) {
+            throw new IllegalArgumentException("counts must have " + BUCKETS + " elements");
+        }
+
+        AtomicLongArray cells = this.cells;
+        System.arraycopy(this.reported, 0, counts, 0, BUCKETS);
+        long sum = this.reportedSum;
+        for (int stripe = 0; stripe <= this.stripeMask * STRIPE_LENGTH; stripe += STRIPE_LENGTH) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += cells.get(stripe + i);
+            }
+            sum += cells.get(stripe + SUM);
+        }
+        return sum;
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return Largest value counted in the given bucket.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + ((1L << shift) - 1L);
+    }
+
+    /**
+     * Values recorded between two snapshots. Reused, so taking a snapshot
+     * doesn't allocate.
+     */
+    static final class Summary {
+        long count;
+        long sum;
+        long min;
+        long max;
+        long p50;
+        long p90;
+        long p99;
+    }
+}
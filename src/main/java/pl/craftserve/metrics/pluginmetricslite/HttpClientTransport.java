@@ -0,0 +1,242 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Transport on {@code java.net.http.HttpClient}, which negotiates HTTP/2 and
+ * keeps a pool of connections. The client is accessed reflectively, since
+ * the plugin is compiled against Java 8.
+ *
+ * Requests are sent asynchronously and waited for without holding a lock,
+ * so concurrent requests share the client and a virtual thread waiting for
+ * a response doesn't pin its carrier.
+ */
+public class HttpClientTransport implements Transport {
+    private final Method newClientBuilder;
+    private final Method clientVersion;
+    private final Method clientBuilderConnectTimeout;
+    private final Method clientBuild;
+    private final Object http2;
+
+    private final Method newRequestBuilder;
+    private final Method requestHeader;
+    private final Method requestTimeout;
+    private final Method requestPost;
+    private final Method requestBuild;
+    private final Method ofInputStream;
+    private final Method fromPublisher;
+
+    private final Method sendAsync;
+    private final Object discarding;
+    private final Method statusCode;
+    private final Method responseHeaders;
+    private final Method headersMap;
+
+    private final Object clientLock = new Object();
+    private volatile Client client;
+
+    private HttpClientTransport() throws ReflectiveOperationException {
+        Class<?> httpClient = Class.forName("java.net.http.HttpClient");
+        Class<?> clientBuilder = Class.forName("java.net.http.HttpClient$Builder");
+        Class<?> version = Class.forName("java.net.http.HttpClient$Version");
+        Class<?> httpRequest = Class.forName("java.net.http.HttpRequest");
+        Class<?> requestBuilder = Class.forName("java.net.http.HttpRequest$Builder");
+        Class<?> bodyPublishers = Class.forName("java.net.http.HttpRequest$BodyPublishers");
+        Class<?> bodyPublisher = Class.forName("java.net.http.HttpRequest$BodyPublisher");
+        Class<?> httpResponse = Class.forName("java.net.http.HttpResponse");
+        Class<?> bodyHandlers = Class.forName("java.net.http.HttpResponse$BodyHandlers");
+        Class<?> bodyHandler = Class.forName("java.net.http.HttpResponse$BodyHandler");
+        Class<?> httpHeaders = Class.forName("java.net.http.HttpHeaders");
+        Class<?> publisher = Class.forName("java.util.concurrent.Flow$Publisher");
+
+        this.newClientBuilder = httpClient.getMethod("newBuilder");
+        this.clientVersion = clientBuilder.getMethod("version", version);
+        this.clientBuilderConnectTimeout = clientBuilder.getMethod("connectTimeout", Duration.class);
+        this.clientBuild = clientBuilder.getMethod("build");
+        this.http2 = version.getField("HTTP_2").get(null);
+
+        this.newRequestBuilder = httpRequest.getMethod("newBuilder", URI.class);
+        this.requestHeader = requestBuilder.getMethod("header", String.class, String.class);
+        this.requestTimeout = requestBuilder.getMethod("timeout", Duration.class);
+        this.requestPost = requestBuilder.getMethod("POST", bodyPublisher);
+        this.requestBuild = requestBuilder.getMethod("build");
+        this.ofInputStream = bodyPublishers.getMethod("ofInputStream", Supplier.class);
+        this.fromPublisher = bodyPublishers.getMethod("fromPublisher", publisher, long.class);
+
+        this.sendAsync = httpClient.getMethod("sendAsync", httpRequest, bodyHandler);
+        this.discarding = bodyHandlers.getMethod("discarding").invoke(null);
+        this.statusCode = httpResponse.getMethod("statusCode");
+        this.responseHeaders = httpResponse.getMethod("headers");
+        this.headersMap = httpHeaders.getMethod("map");
+    }
+
+    /**
+     * @return New transport, or {@code null} if the runtime has no
+     * {@code java.net.http.HttpClient}.
+     */
+    public static HttpClientTransport create() {
+        try {
+            return new HttpClientTransport();
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError ignored) {
+            return null; // Java 8, or the java.net.http module is not present
+        }
+    }
+
+    @Override
+    public Response send(Request request) throws IOException {
+        Objects.requireNonNull(request, "request");
+
+        Transport.Body body = request.getBody();
+        Supplier<InputStream> bodyStream = () -> {
+            try {
+                return body.openStream();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+
+        try {
+            Object builder = this.newRequestBuilder.invoke(null, request.getUrl().toURI());
+            this.requestTimeout.invoke(builder, request.getReadTimeout());
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                this.requestHeader.invoke(builder, header.getKey(), header.getValue());
+            }
+            // the body is read straight from its buffers, the length is only sent if known
+            Object bodyPublisher = this.ofInputStream.invoke(null, bodyStream);
+            if (request.getContentLength() > 0L) {
+                bodyPublisher = this.fromPublisher.invoke(null, bodyPublisher, request.getContentLength());
+            }
+            this.requestPost.invoke(builder, bodyPublisher);
+            Object httpRequest = this.requestBuild.invoke(builder);
+
+            Object response = this.await((CompletableFuture<?>) this.sendAsync.invoke(this.client(request.getConnectTimeout()),
+                    httpRequest, this.discarding), request.getConnectTimeout().plus(request.getReadTimeout()));
+
+            Map<String, String> headers = new HashMap<>();
+            @SuppressWarnings("unchecked")
+            Map<String, List<String>> headerValues = (Map<String, List<String>>) this.headersMap.invoke(this.responseHeaders.invoke(response));
+            for (Map.Entry<String, List<String>> header : headerValues.entrySet()) {
+                if (!header.getValue().isEmpty()) {
+                    headers.put(header.getKey(), header.getValue().get(0));
+                }
+            }
+
+            return new Response((Integer) this.statusCode.invoke(response), headers);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid URL " + request.getUrl().toString(), e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e); // should never happen, all methods are public
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Wait for the response, the client times the request out by itself, the
+     * timeout here only guards against it never completing.
+     */
+    private Object await(CompletableFuture<?> future, Duration timeout) throws IOException {
+        try {
+            return future.get(UrlEndpoint.toMillis(timeout), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response");
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new SocketTimeoutException("No response within " + timeout.toMillis() + " ms");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause(); // from opening the body
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Clients are only rebuilt when the connect timeout changes, which is
+     * rare, so the lock is only taken then and never while sending.
+     */
+    private Object client(Duration connectTimeout) throws IllegalAccessException, InvocationTargetException {
+        Client client = this.client;
+        if (client == null || !connectTimeout.equals(client.connectTimeout)) {
+            synchronized (this.clientLock) {
+                client = this.client;
+                if (client == null || !connectTimeout.equals(client.connectTimeout)) {
+                    Object builder = this.newClientBuilder.invoke(null);
+                    this.clientVersion.invoke(builder, this.http2);
+                    this.clientBuilderConnectTimeout.invoke(builder, connectTimeout);
+
+                    client = new Client(this.clientBuild.invoke(builder), connectTimeout);
+                    this.client = client;
+                }
+            }
+        }
+
+        return client.httpClient;
+    }
+
+    private static final class Client {
+        final Object httpClient;
+        final Duration connectTimeout;
+
+        Client(Object httpClient, Duration connectTimeout) {
+            this.httpClient = Objects.requireNonNull(httpClient, "httpClient");
+            this.connectTimeout = Objects.requireNonNull(connectTimeout, "connectTimeout");
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import java.io.IOException;
+
+/**
+ * Metric accumulated between reports. Every report carries a snapshot of
+ * the interval since the previous one, after which the instrument is reset.
+ * Snapshots are never elided by delta reporting, since they are not state.
+ */
+interface Instrument extends MetricSource {
+    /**
+     * Write a snapshot of this instrument and reset it.
+     * @param writer Writer to write the snapshot to.
+     */
+    void snapshot(ReportWriter writer) throws IOException;
+
+    /**
+     * Take a snapshot of this instrument as a plain value and reset it.
+     * @return Snapshot which can be serialized with Gson.
+     */
+    Object snapshot();
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Objects;
+
+/**
+ * Streams JSON straight into a {@link ReportBuffer}.
+ *
+ * Structural tokens are written by hand, values are handed to {@link Gson}
+ * through a {@link JsonWriter}. Unlike a plain {@link JsonWriter} this writer
+ * can {@link #rollback(long)} to a {@link #checkpoint()}, so a value which
+ * failed to serialize halfway through doesn't corrupt the whole report.
+ */
+class JsonReportWriter extends ReportWriter {
+    private final LimitedWriter writer;
+
+    private final char[] digits = new char[20];
+
+    private JsonWriter valueWriter;
+    private boolean needsComma;
+
+    JsonReportWriter(ReportBuffer buffer) {
+        super(buffer);
+        this.writer = new LimitedWriter(buffer.writer());
+    }
+
+    @Override
+    ReportWriter beginObject() throws IOException {
+        this.separate();
+        this.writer.write('{');
+        this.needsComma = false;
+        return this;
+    }
+
+    @Override
+    ReportWriter endObject() throws IOException {
+        this.writer.write('}');
+        this.needsComma = true;
+        return this;
+    }
+
+    @Override
+    ReportWriter beginArray() throws IOException {
+        this.separate();
+        this.writer.write('[');
+        this.needsComma = false;
+        return this;
+    }
+
+    @Override
+    ReportWriter endArray() throws IOException {
+        this.writer.write(']');
+        this.needsComma = true;
+        return this;
+    }
+
+    @Override
+    ReportWriter name(String name) throws IOException {
+        Objects.requireNonNull(name, "name");
+
+        this.separate();
+        this.string(name);
+        this.writer.write(':');
+        this.needsComma = false;
+        return this;
+    }
+
+    @Override
+    ReportWriter value(String value) throws IOException {
+        Objects.requireNonNull(value, "value");
+
+        this.separate();
+        this.string(value);
+        this.needsComma = true;
+        return this;
+    }
+
+    @Override
+    ReportWriter value(long value) throws IOException {
+        this.separate();
+
+        // format digits in place, gauges are written on every report
+        char[] digits = this.digits;
+        int position = digits.length;
+        long remaining = value;
+        do {
+            digits[--position] = (char) ('0' + Math.abs(remaining % 10L));
+            remaining /= 10L;
+        } while (remaining != 0L);
+
+        if (value < 0L) {
+            digits[--position] = '-';
+        }
+
+        this.writer.write(digits, position, digits.length - position);
+        this.needsComma = true;
+        return this;
+    }
+
+    @Override
+    ReportWriter value(double value) throws IOException {
+        this.separate();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            this.writer.write("null");
+        } else {
+            this.writer.write(Double.toString(value));
+        }
+        this.needsComma = true;
+        return this;
+    }
+
+    @Override
+    ReportWriter value(boolean value) throws IOException {
+        this.separate();
+        this.writer.write(value ? "true" : "false");
+        this.needsComma = true;
+        return this;
+    }
+
+    @Override
+    ReportWriter value(Gson gson, Object value) throws IOException {
+        Objects.requireNonNull(gson, "gson");
+        Objects.requireNonNull(value, "value");
+
+        this.separate();
+        if (this.valueWriter == null) {
+            // lenient writers accept any number of top-level values
+            this.valueWriter = new JsonWriter(this.writer);
+            this.valueWriter.setLenient(true);
+        }
+
+        try {
+            gson.toJson(value, value.getClass(), this.valueWriter);
+        } catch (Throwable throwable) {
+            // the writer state is undefined now, don't reuse it
+            this.valueWriter = null;
+            throw throwable;
+        }
+
+        this.needsComma = true;
+        return this;
+    }
+
+    @Override
+    boolean isSeparatorPending() {
+        return this.needsComma;
+    }
+
+    @Override
+    void setSeparatorPending(boolean separatorPending) {
+        this.needsComma = separatorPending;
+    }
+
+    @Override
+    void rollback(long checkpoint) throws IOException {
+        super.rollback(checkpoint);
+        this.writer.flush(); // count from the rewound size
+    }
+
+    @Override
+    void flush() throws IOException {
+        this.writer.flush();
+    }
+
+    private void separate() throws IOException {
+        if (this.needsComma) {
+            this.writer.write(',');
+        }
+    }
+
+    private void string(String value) throws IOException {
+        Writer writer = this.writer;
+        writer.write('"');
+
+        int last = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+
+            String replacement;
+            if (c == '"') {
+                replacement = "\\\"";
+            } else if (c == '\\') {
+                replacement = "\\\\";
+            } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                replacement = String.format("\\u%04x", (int) c);
+            } else {
+                continue;
+            }
+
+            if (last < i) {
+                writer.write(value, last, i - last);
+            }
+            writer.write(replacement);
+            last = i + 1;
+        }
+
+        if (last < length) {
+            writer.write(value, last, length - last);
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Fails writes past the limit before they reach the encoder, which is
+     * left in an undefined state by a failed write. Characters are counted
+     * as single bytes, so the limit is exact for ASCII and lenient otherwise.
+     */
+    private class LimitedWriter extends Writer {
+        private final Writer out;
+
+        // report size at the last flush, and characters written since
+        private int flushed;
+        private int pending;
+
+        LimitedWriter(Writer out) {
+            this.out = Objects.requireNonNull(out, "out");
+            this.flushed = JsonReportWriter.this.buffer.size();
+        }
+
+        private void reserve(int length) {
+            int limit = JsonReportWriter.this.getLimit();
+            if (limit - this.flushed - this.pending < length) {
+                throw new LimitExceededException(limit);
+            }
+            this.pending += length;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            this.reserve(1);
+            this.out.write(c);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            this.reserve(length);
+            this.out.write(chars, offset, length);
+        }
+
+        @Override
+        public void write(String string, int offset, int length) throws IOException {
+            this.reserve(length);
+            this.out.write(string, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.out.flush();
+            this.flushed = JsonReportWriter.this.buffer.size();
+            this.pending = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.flush();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import org.bukkit.NamespacedKey;
+
+import javax.management.JMException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Samples the JVM between reports, and summarizes every interval once it's
+ * over: GC pause percentiles, allocation rate, peak usage of every memory
+ * pool, thread count and process CPU usage.
+ *
+ * GC pauses and pool usage are taken from GC notifications as they come, so
+ * nothing is polled between reports. The allocation rate is the growth of
+ * the heap between collections, so it only accounts for allocations which
+ * were already collected.
+ */
+class JvmSampler {
+    private static final String NAMESPACE = "java";
+    private static final NamespacedKey GC_PAUSES = key("gc_pauses");
+    private static final NamespacedKey ALLOCATION_RATE = key("allocation_rate");
+    private static final NamespacedKey MEMORY_POOL_PEAKS = key("memory_pool_peaks");
+    private static final NamespacedKey THREAD_COUNT = key("thread_count");
+    private static final NamespacedKey DAEMON_THREAD_COUNT = key("daemon_thread_count");
+    private static final NamespacedKey PROCESS_CPU_LOAD = key("process_cpu_load");
+    private static final NamespacedKey SYSTEM_LOAD_AVERAGE = key("system_load_average");
+    private static final Set<NamespacedKey> KEYS = new HashSet<>(Arrays.asList(GC_PAUSES, ALLOCATION_RATE,
+            MEMORY_POOL_PEAKS, THREAD_COUNT, DAEMON_THREAD_COUNT, PROCESS_CPU_LOAD, SYSTEM_LOAD_AVERAGE));
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+    private static final int MAX_PAUSES = 256;
+
+    private final Logger logger;
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+    private final NotificationListener listener = this::handleNotification;
+
+    private final long[] pauses = new long[MAX_PAUSES];
+    private int pauseCount;
+    private long pauseTotal;
+    private long pauseMax;
+
+    private final Map<String, Integer> poolIndexes = new HashMap<>();
+    private final List<MemoryPoolMXBean> pools;
+    private final long[] poolPeaks;
+    private final boolean[] heapPools;
+
+    private long allocatedBytes;
+    private long heapAfterLastGc = -1L;
+    private volatile double gcTimeFraction;
+
+    private long lastSampleNanos;
+    private long lastCpuTime = -1L;
+
+    JvmSampler(Logger logger) {
+        this.logger = Objects.requireNonNull(logger, "logger");
+
+        this.pools = ManagementFactory.getMemoryPoolMXBeans();
+        this.poolPeaks = new long[this.pools.size()];
+        this.heapPools = new boolean[this.pools.size()];
+        for (int i = 0; i < this.pools.size(); i++) {
+            MemoryPoolMXBean pool = this.pools.get(i);
+            this.poolIndexes.put(pool.getName(), i);
+            this.heapPools[i] = pool.getType() == MemoryType.HEAP;
+        }
+    }
+
+    synchronized void start() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                NotificationEmitter emitter = (NotificationEmitter) collector;
+                emitter.addNotificationListener(this.listener, null, null);
+                this.emitters.add(emitter);
+            }
+        }
+
+        this.lastSampleNanos = System.nanoTime();
+        this.lastCpuTime = processCpuTime();
+    }
+
+    synchronized void stop() {
+        for (NotificationEmitter emitter : this.emitters) {
+            try {
+                emitter.removeNotificationListener(this.listener);
+            } catch (ListenerNotFoundException ignored) {
+            }
+        }
+        this.emitters.clear();
+    }
+
+    private void handleNotification(Notification notification, Object handback) {
+        if (!GC_NOTIFICATION.equals(notification.getType()) || !(notification.getUserData() instanceof CompositeData)) {
+            return;
+        }
+
+        try {
+            CompositeData info = (CompositeData) notification.getUserData();
+            String gcAction = (String) info.get("gcAction");
+            CompositeData gcInfo = (CompositeData) info.get("gcInfo");
+
+            TabularData before = (TabularData) gcInfo.get("memoryUsageBeforeGc");
+            TabularData after = (TabularData) gcInfo.get("memoryUsageAfterGc");
+
+            synchronized (this) {
+                if (isPause(gcAction)) {
+                    this.recordPause((Long) gcInfo.get("duration"));
+                }
+
+                long heapBefore = this.recordUsage(before);
+                long heapAfter = this.recordUsage(after);
+                if (this.heapAfterLastGc >= 0L && heapBefore > this.heapAfterLastGc) {
+                    this.allocatedBytes += heapBefore - this.heapAfterLastGc;
+                }
+                this.heapAfterLastGc = heapAfter;
+            }
+        } catch (RuntimeException e) {
+            this.logger.log(Level.FINE, "Could not read GC notification", e);
+        }
+    }
+
+    /**
+     * Whether the collection stopped the application. Pauses end with "end of
+     * minor GC", "end of major GC", "end of GC pause" or, for the Remark and
+     * Cleanup pauses of G1's concurrent collector, "end of concurrent GC
+     * pause". Cycles which run alongside the application end with "end of GC
+     * cycle", whatever the name of the collector.
+     */
+    private static boolean isPause(String gcAction) {
+        return gcAction != null && !gcAction.endsWith("cycle");
+    }
+
+    private void recordPause(long millis) {
+        this.pauses[this.pauseCount % MAX_PAUSES] = millis;
+        this.pauseCount++;
+        this.pauseTotal += millis;
+        this.pauseMax = Math.max(this.pauseMax, millis);
+    }
+
+    /**
+     * @return Total usage of heap pools.
+     */
+    private long recordUsage(TabularData usages) {
+        long heap = 0L;
+        for (Object row : usages.values()) {
+            CompositeData entry = (CompositeData) row;
+            Integer index = this.poolIndexes.get((String) entry.get("key"));
+            if (index == null) {
+                continue;
+            }
+
+            long used = MemoryUsage.from((CompositeData) entry.get("value")).getUsed();
+            this.poolPeaks[index] = Math.max(this.poolPeaks[index], used);
+            if (this.heapPools[index]) {
+                heap += used;
+            }
+        }
+        return heap;
+    }
+
+    /**
+     * Put the summary of the interval since the previous call and start a
+     * new one.
+     */
+    synchronized void append(Map<NamespacedKey, Object> data) {
+        Objects.requireNonNull(data, "data");
+
+        long now = System.nanoTime();
+        double seconds = (now - this.lastSampleNanos) / 1_000_000_000D;
+        this.lastSampleNanos = now;
+
+        Map<String, Object> gc = new LinkedHashMap<>();
+        gc.put("count", this.pauseCount);
+        gc.put("total_ms", this.pauseTotal);
+        if (this.pauseCount != 0) {
+            long[] sorted = Arrays.copyOf(this.pauses, Math.min(this.pauseCount, MAX_PAUSES));
+            Arrays.sort(sorted);
+            gc.put("p50_ms", percentile(sorted, 0.5));
+            gc.put("p99_ms", percentile(sorted, 0.99));
+            gc.put("max_ms", this.pauseMax);
+        }
+        data.put(GC_PAUSES, gc);
+
+        if (seconds > 0D) {
+            data.put(ALLOCATION_RATE, (long) (this.allocatedBytes / seconds));
+            this.gcTimeFraction = this.pauseTotal / 1000D / seconds;
+        }
+
+        Map<String, Long> peaks = new LinkedHashMap<>();
+        for (int i = 0; i < this.pools.size(); i++) {
+            MemoryPoolMXBean pool = this.pools.get(i);
+            long used = pool.isValid() ? pool.getUsage().getUsed() : 0L;
+            peaks.put(pool.getName(), Math.max(this.poolPeaks[i], used));
+        }
+        data.put(MEMORY_POOL_PEAKS, peaks);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        data.put(THREAD_COUNT, threads.getThreadCount());
+        data.put(DAEMON_THREAD_COUNT, threads.getDaemonThreadCount());
+
+        long cpuTime = processCpuTime();
+        if (cpuTime >= 0L && this.lastCpuTime >= 0L && seconds > 0D) {
+            // share of all processors, averaged over the interval
+            double cpuSeconds = (cpuTime - this.lastCpuTime) / 1_000_000_000D;
+            data.put(PROCESS_CPU_LOAD, cpuSeconds / seconds / Runtime.getRuntime().availableProcessors());
+        }
+        this.lastCpuTime = cpuTime;
+
+        double loadAverage = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+        if (loadAverage >= 0D) {
+            data.put(SYSTEM_LOAD_AVERAGE, loadAverage);
+        }
+
+        this.pauseCount = 0;
+        this.pauseTotal = 0L;
+        this.pauseMax = 0L;
+        this.allocatedBytes = 0L;
+        Arrays.fill(this.poolPeaks, 0L);
+    }
+
+    /**
+     * @return Share of wall time spent in GC pauses, between the last two
+     * summaries.
+     */
+    double getGcTimeFraction() {
+        return this.gcTimeFraction;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int rank = (int) Math.ceil(percentile * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Read through the MBean server, not all runtimes have
+     * {@code com.sun.management.OperatingSystemMXBean}.
+     * @return CPU time used by the process in nanoseconds, or -1 if unknown.
+     */
+    private static long processCpuTime() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Object cpuTime = server.getAttribute(new ObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME), "ProcessCpuTime");
+            return cpuTime instanceof Long ? (Long) cpuTime : -1L;
+        } catch (JMException | RuntimeException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * @return Whether the key is put by this sampler.
+     */
+    static boolean isSampled(NamespacedKey key) {
+        return KEYS.contains(key);
+    }
+
+    private static NamespacedKey key(String key) {
+        Objects.requireNonNull(key, "key");
+        return new NamespacedKey(NAMESPACE, key);
+    }
+}
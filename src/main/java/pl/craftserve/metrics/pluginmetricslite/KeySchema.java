@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import org.bukkit.NamespacedKey;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns keys and assigns them dense integer IDs, in the order they are
+ * first seen. IDs are never reassigned, so the keys of a session form a
+ * dictionary which only ever grows at its end, and the endpoint only needs
+ * to learn the names it hasn't seen yet.
+ *
+ * Since IDs are never freed, plugins making up keys on the fly would grow
+ * the dictionary without bound. Keys past the limit get no ID and are
+ * referred to by their names instead.
+ */
+class KeySchema {
+    static final int DEFAULT_MAX_KEYS = 4096;
+    private static final int INITIAL_CAPACITY = 128;
+
+    private final int maxKeys;
+
+    private final Map<NamespacedKey, Integer> ids = new ConcurrentHashMap<>();
+    private volatile NamespacedKey[] keys = new NamespacedKey[INITIAL_CAPACITY];
+    private volatile String[] labels = new String[INITIAL_CAPACITY];
+    private volatile int size;
+
+    KeySchema() {
+        this(DEFAULT_MAX_KEYS);
+    }
+
+    KeySchema(int maxKeys) {
+        if (maxKeys <= 0) {
+            throw new IllegalArgumentException("maxKeys must be positive");
+        }
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * @return ID of the given key, assigned now if it's new, or -1 if the
+     * key is new and the schema is full.
+     */
+    int id(NamespacedKey key) {
+        Objects.requireNonNull(key, "key");
+
+        Integer id = this.ids.get(key);
+        return id != null ? id : this.intern(key);
+    }
+
+    /**
+     * @return ID of the given key, or -1 if it has none yet.
+     */
+    int find(Object key) {
+        Integer id = key instanceof NamespacedKey ? this.ids.get(key) : null;
+        return id != null ? id : -1;
+    }
+
+    private synchronized int intern(NamespacedKey key) {
+        Integer existing = this.ids.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        int id = this.size;
+        if (id == this.maxKeys) {
+            return -1;
+        } else if (id == this.keys.length) {
+            int capacity = Math.min(id << 1, this.maxKeys);
+            this.keys = Arrays.copyOf(this.keys, capacity);
+            this.labels = Arrays.copyOf(this.labels, capacity);
+        }
+
+        this.keys[id] = key;
+        this.labels[id] = Integer.toString(id);
+        this.size = id + 1;
+        // published last, whoever finds the ID finds the key too
+        this.ids.put(key, id);
+        return id;
+    }
+
+    NamespacedKey key(int id) {
+        if (id < 0 || id >= this.size) {
+            throw new IndexOutOfBoundsException("id " + id + " out of 0.." + this.size);
+        }
+        return this.keys[id];
+    }
+
+    /**
+     * @return The given ID as a string, to be written as a JSON name.
+     */
+    String label(int id) {
+        if (id < 0 || id >= this.size) {
+            throw new IndexOutOfBoundsException("id " + id + " out of 0.." + this.size);
+        }
+        return this.labels[id];
+    }
+
+    /**
+     * @return Number of keys, which is also the next ID to be assigned.
+     */
+    int size() {
+        return this.size;
+    }
+}
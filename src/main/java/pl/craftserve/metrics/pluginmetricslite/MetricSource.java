@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+/**
+ * Value polled directly by the reporter every time a report is collected,
+ * see {@link MetricsLite#registerSource(org.bukkit.plugin.Plugin, org.bukkit.NamespacedKey, MetricSource)}.
+ *
+ * Sources are polled from the reporter thread, not the server thread, and
+ * must be thread-safe.
+ */
+public interface MetricSource {
+    @FunctionalInterface
+    interface LongGauge extends MetricSource {
+        long getAsLong();
+    }
+
+    @FunctionalInterface
+    interface DoubleGauge extends MetricSource {
+        double getAsDouble();
+    }
+
+    @FunctionalInterface
+    interface Text extends MetricSource {
+        /**
+         * @return Current value, or {@code null} to leave it out of the report.
+         */
+        String get();
+    }
+
+    @FunctionalInterface
+    interface Structured extends MetricSource {
+        /**
+         * @return Current value serialized with Gson, or {@code null} to leave
+         * it out of the report.
+         */
+        Object get();
+    }
+}
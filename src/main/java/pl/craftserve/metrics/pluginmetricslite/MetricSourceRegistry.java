@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import org.bukkit.NamespacedKey;
+import org.bukkit.plugin.Plugin;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+class MetricSourceRegistry {
+    private final Map<NamespacedKey, Registration> registrations = new ConcurrentHashMap<>();
+
+    void register(Plugin owner, NamespacedKey key, MetricSource source) {
+        Registration registration = new Registration(owner, key, source);
+        Registration previous = this.registrations.putIfAbsent(key, registration);
+        if (previous != null) {
+            throw new IllegalStateException(key.toString() + " is already registered by " + previous.owner.toString());
+        }
+    }
+
+    /**
+     * @return Source already registered under the given key by the given
+     * owner, or a newly registered one.
+     */
+    MetricSource registerIfAbsent(Plugin owner, NamespacedKey key, Supplier<? extends MetricSource> factory) {
+        Objects.requireNonNull(owner, "owner");
+        Objects.requireNonNull(factory, "factory");
+
+        Registration registration = this.registrations.computeIfAbsent(key, k -> new Registration(owner, k, factory.get()));
+        if (!registration.owner.equals(owner)) {
+            throw new IllegalStateException(key.toString() + " is already registered by " + registration.owner.toString());
+        }
+        return registration.source;
+    }
+
+    boolean unregister(NamespacedKey key) {
+        Objects.requireNonNull(key, "key");
+        return this.registrations.remove(key) != null;
+    }
+
+    void unregisterAll(Plugin owner) {
+        Objects.requireNonNull(owner, "owner");
+        this.registrations.values().removeIf(registration -> registration.owner.equals(owner));
+    }
+
+    boolean contains(NamespacedKey key) {
+        Objects.requireNonNull(key, "key");
+        return this.registrations.containsKey(key);
+    }
+
+    boolean isEmpty() {
+        return this.registrations.isEmpty();
+    }
+
+    Collection<Registration> getRegistrations() {
+        return Collections.unmodifiableCollection(this.registrations.values());
+    }
+
+    static class Registration {
+        final Plugin owner;
+        final NamespacedKey key;
+        final MetricSource source;
+
+        Registration(Plugin owner, NamespacedKey key, MetricSource source) {
+            this.owner = Objects.requireNonNull(owner, "owner");
+            this.key = Objects.requireNonNull(key, "key");
+            this.source = Objects.requireNonNull(source, "source");
+        }
+    }
+}
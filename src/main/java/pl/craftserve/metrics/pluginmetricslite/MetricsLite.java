@@ -18,32 +18,59 @@ package pl.craftserve.metrics.pluginmetricslite;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import org.bukkit.NamespacedKey;
 import org.bukkit.Server;
 import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.ServicesManager;
 
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class MetricsLite {
+    public static final String MBEAN_NAME = "pl.craftserve.metrics:type=MetricsLite,name=PipelineStats";
+    public static final Duration DEFAULT_SHUTDOWN_TIMEOUT = Duration.ofSeconds(5L);
+    /**
+     * By default the interval may stretch up to this many times the base one.
+     */
+    public static final int DEFAULT_MAX_INTERVAL_FACTOR = 8;
+
     private static final Logger LOGGER;
     private static final Gson GSON;
     private static final ServerIdResolver SERVER_ID_RESOLVER;
     private static final UrlEndpoint ENDPOINT;
+    private static final Outbox OUTBOX;
     private static final Duration INTERVAL;
 
     static {
@@ -51,10 +78,11 @@ public class MetricsLite {
         GSON = new GsonBuilder().create();
         SERVER_ID_RESOLVER = ServerIdResolver.create();
         ENDPOINT = new UrlEndpoint(UrlEndpoint.CRAFTSERVE_METRICS);
+        OUTBOX = Outbox.create();
         INTERVAL = Duration.ofMinutes(1L);
     }
 
-    private static MetricsLite globalMetrics;
+    private static final AtomicReference<MetricsLite> globalMetrics = new AtomicReference<>();
 
     /**
      * Returns current instance of this class. It is highly unrecommended to use
@@ -64,7 +92,7 @@ public class MetricsLite {
      */
     @Deprecated
     public static MetricsLite getMetrics() {
-        MetricsLite instance = globalMetrics;
+        MetricsLite instance = globalMetrics.get();
         if (instance == null) {
             throw new IllegalStateException(MetricsLite.class.getSimpleName() + " didn't start yet!");
         }
@@ -80,22 +108,21 @@ public class MetricsLite {
     public static void start(Plugin plugin) {
         Objects.requireNonNull(plugin, "plugin");
 
-        if (globalMetrics == null) {
-            globalMetrics = produceMetrics();
-        }
-        MetricsLite metrics = getMetrics();
-
-        List<Plugin> affectedPlugins = metrics.affectedPlugins;
-        if (affectedPlugins.contains(plugin)) {
-            throw new IllegalStateException("Already started for " + plugin.toString());
-        }
+        while (true) {
+            MetricsLite metrics = globalMetrics.get();
+            if (metrics == null) {
+                metrics = produceMetrics();
+                if (!globalMetrics.compareAndSet(null, metrics)) {
+                    continue; // another plugin got there first
+                }
+            }
 
-        boolean wasEmpty = affectedPlugins.isEmpty();
-        affectedPlugins.add(plugin);
+            if (metrics.join(plugin)) {
+                return;
+            }
 
-        if (wasEmpty) {
-            // no plugins were affected before, start metrics
-            metrics.start();
+            // the last plugin has just left, replace the draining instance
+            globalMetrics.compareAndSet(metrics, null);
         }
     }
 
@@ -107,21 +134,12 @@ public class MetricsLite {
     public static void stop(Plugin plugin) {
         Objects.requireNonNull(plugin, "plugin");
 
-        MetricsLite metrics = getMetrics();
-
-        List<Plugin> affectedPlugins = metrics.affectedPlugins;
-        if (!affectedPlugins.contains(plugin)) {
+        MetricsLite metrics = globalMetrics.get();
+        if (metrics == null) {
             throw new IllegalStateException("Not started for " + plugin.toString());
         }
 
-        affectedPlugins.remove(plugin);
-        boolean empty = affectedPlugins.isEmpty();
-
-        if (empty) {
-            // no plugins affected, stop metrics
-            metrics.stop();
-            globalMetrics = null;
-        }
+        metrics.leave(plugin);
     }
 
     /**
@@ -144,187 +162,1769 @@ public class MetricsLite {
     public static boolean isRunning(Plugin plugin) {
         Objects.requireNonNull(plugin, "plugin");
 
-        MetricsLite metrics = globalMetrics;
+        MetricsLite metrics = globalMetrics.get();
         return metrics != null && metrics.affectedPlugins.contains(plugin);
     }
 
+    /**
+     * Register a source polled directly by the reporter every time a report
+     * is collected. This is a cheaper alternative to listening to
+     * {@link MetricSubmitEvent}, the source is removed automatically when
+     * metrics are stopped for its plugin.
+     * @param plugin Owner of the source.
+     * @param key Key the value is reported under.
+     * @param source Source of the value.
+     * @throws IllegalStateException Whether metric for this plugin is not
+     * running, or the key is already registered.
+     */
+    public static void registerSource(Plugin plugin, NamespacedKey key, MetricSource source) {
+        Objects.requireNonNull(plugin, "plugin");
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(source, "source");
+
+        MetricsLite metrics = globalMetrics.get();
+        if (metrics == null || !metrics.affectedPlugins.contains(plugin)) {
+            throw new IllegalStateException("Not started for " + plugin.toString());
+        }
+
+        metrics.sources.register(plugin, key, source);
+    }
+
+    /**
+     * Unregister a source registered with {@link #registerSource(Plugin, NamespacedKey, MetricSource)}.
+     * @param key Key the source was registered under.
+     * @return Whether a source was registered under the given key.
+     */
+    public static boolean unregisterSource(NamespacedKey key) {
+        Objects.requireNonNull(key, "key");
+
+        MetricsLite metrics = globalMetrics.get();
+        return metrics != null && metrics.sources.unregister(key);
+    }
+
+    /**
+     * Counter reported under the namespace of the given plugin, as the number
+     * of events since the previous report. Calling this again with the same
+     * name returns the same counter.
+     * @param plugin Owner of the counter.
+     * @param name Key the counter is reported under.
+     * @return The counter.
+     * @throws IllegalStateException Whether metric for this plugin is not
+     * running, or the key is already registered as something else.
+     */
+    public static Counter counter(Plugin plugin, String name) {
+        return instrument(plugin, name, Counter.class, Counter::new);
+    }
+
+    /**
+     * Gauge reported under the namespace of the given plugin. Calling this
+     * again with the same name returns the same gauge.
+     * @see #counter(Plugin, String)
+     */
+    public static Gauge gauge(Plugin plugin, String name) {
+        return instrument(plugin, name, Gauge.class, Gauge::new);
+    }
+
+    /**
+     * Histogram reported under the namespace of the given plugin, as the
+     * distribution of values recorded since the previous report. Calling this
+     * again with the same name returns the same histogram.
+     * @see #counter(Plugin, String)
+     */
+    public static Histogram histogram(Plugin plugin, String name) {
+        return instrument(plugin, name, Histogram.class, Histogram::new);
+    }
+
+    private static <T extends MetricSource> T instrument(Plugin plugin, String name, Class<T> type, Supplier<T> factory) {
+        Objects.requireNonNull(plugin, "plugin");
+        Objects.requireNonNull(name, "name");
+        Objects.requireNonNull(type, "type");
+        Objects.requireNonNull(factory, "factory");
+
+        MetricsLite metrics = globalMetrics.get();
+        if (metrics == null || !metrics.affectedPlugins.contains(plugin)) {
+            throw new IllegalStateException("Not started for " + plugin.toString());
+        }
+
+        NamespacedKey key = new NamespacedKey(plugin, name);
+        MetricSource source = metrics.sources.registerIfAbsent(plugin, key, factory);
+        if (!type.isInstance(source)) {
+            throw new IllegalStateException(key.toString() + " is already registered as " + source.getClass().getSimpleName());
+        }
+        return type.cast(source);
+    }
+
+    /**
+     * @return Cost of the reporting pipeline, or {@code null} if metrics are
+     * not running.
+     */
+    public static PipelineStats getGlobalPipelineStats() {
+        MetricsLite metrics = globalMetrics.get();
+        return metrics != null ? metrics.getPipelineStats() : null;
+    }
+
     private static MetricsLite produceMetrics() {
-        return new MetricsLite(LOGGER, GSON, SERVER_ID_RESOLVER, ENDPOINT, INTERVAL);
+        return new MetricsLite(LOGGER, GSON, SERVER_ID_RESOLVER, ENDPOINT, OUTBOX, INTERVAL);
     }
 
     //
     // Non-static context
     //
 
-    private final List<Plugin> affectedPlugins = new CopyOnWriteArrayList<>();
+    private final Set<Plugin> affectedPlugins = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger members = new AtomicInteger();
+    private final AtomicReference<State> state = new AtomicReference<>(State.REGISTERING);
     private final DefaultEntities defaultEntities = new DefaultEntities();
+    private final ReportBuffer.Pool bufferPool = new ReportBuffer.Pool();
+    private final MetricSourceRegistry sources = new MetricSourceRegistry();
+    private final PipelineStats pipelineStats = new PipelineStats();
+    private final KeySchema keySchema = new KeySchema();
+    private final TickSampler tickSampler = new TickSampler();
+    private final Consumer<Map<NamespacedKey, Object>> contributor = this::contribute;
+    private final Runnable leaderClosed = this::onLeaderClosed;
+    private Duration censusBudget = WorldCensus.DEFAULT_BUDGET;
+    private volatile WorldCensus census;
 
     private final Logger logger;
     private final Gson gson;
     private final ServerIdResolver serverIdResolver;
     private final UrlEndpoint endpoint;
+    private final Outbox outbox;
     private final Duration interval;
+    private final JvmSampler jvmSampler;
 
-    private boolean running;
-    private Timer timer;
+    private volatile boolean deltaReporting;
+    private volatile boolean compactKeys;
+    private volatile boolean timeSeries;
+    private final TimeSeriesStore timeSeriesStore = new TimeSeriesStore();
+    private ScheduledExecutorService timeSeriesSampler;
+    private volatile int maxBatchSize = 1;
+    private volatile Duration maxBatchLatency = Duration.ZERO;
+    private volatile int maxPayloadSize = PayloadBudget.DEFAULT_MAX_PAYLOAD_SIZE;
+    private volatile int maxValueSize = PayloadBudget.DEFAULT_MAX_VALUE_SIZE;
+    private volatile boolean jmxEnabled;
+    private volatile InetSocketAddress exporterAddress;
+    private volatile Duration shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+    private volatile Duration minInterval;
+    private volatile Duration maxInterval;
+
+    private volatile ReportScheduler<ReportBuffer> scheduler;
+    private volatile AdaptiveInterval adaptiveInterval;
+    private Reporter reporter;
+    private CompletableFuture<UUID> serverId;
+    private ObjectName mbeanName;
+    private volatile OpenMetricsExporter exporter;
+    private volatile SharedReporter shared;
+    private volatile SharedReporter.Remote leader;
 
     public MetricsLite(Logger logger, Gson gson, ServerIdResolver serverIdResolver, UrlEndpoint endpoint, Duration interval) {
+        this(logger, gson, serverIdResolver, endpoint, Outbox.create(), interval);
+    }
+
+    public MetricsLite(Logger logger, Gson gson, ServerIdResolver serverIdResolver, UrlEndpoint endpoint, Outbox outbox, Duration interval) {
         this.logger = Objects.requireNonNull(logger, "logger");
         this.gson = Objects.requireNonNull(gson, "gson");
         this.serverIdResolver = Objects.requireNonNull(serverIdResolver, "serverIdResolver");
         this.endpoint = Objects.requireNonNull(endpoint, "endpoint");
+        this.outbox = Objects.requireNonNull(outbox, "outbox");
         this.interval = Objects.requireNonNull(interval, "interval");
+        this.minInterval = interval;
+        this.maxInterval = interval.multipliedBy(DEFAULT_MAX_INTERVAL_FACTOR);
+        this.jvmSampler = new JvmSampler(logger);
+    }
+
+    public State getState() {
+        return this.state.get();
     }
 
     public void start() {
-        if (this.running) {
-            throw new IllegalStateException("Already running!");
-        } else if (this.affectedPlugins.isEmpty()) {
+        if (this.affectedPlugins.isEmpty()) {
             throw new IllegalStateException("No plugins attached!");
+        } else if (!this.state.compareAndSet(State.REGISTERING, State.RUNNING)) {
+            throw new IllegalStateException("Already " + this.state.get().name().toLowerCase(Locale.ROOT) + "!");
         }
 
-        try {
-            this.logger.info("Starting " + this.toString() + "...");
-
-            Server server = this.affectedPlugins.get(0).getServer();
-            UUID serverId = this.resolveServerId();
-            Reporter reporter = new Reporter(server, serverId);
-            long msInterval = this.interval.toMillis();
-
-            this.timer = new Timer("Metrics-Lite-Submitter", false);
-            this.timer.scheduleAtFixedRate(reporter, msInterval, msInterval);
-        } finally {
-            this.running = true;
-        }
+        this.startReporting();
     }
 
     public void stop() {
-        if (!this.running) {
-            throw new IllegalStateException("Not running!");
-        } else if (!this.affectedPlugins.isEmpty()) {
+        if (!this.affectedPlugins.isEmpty()) {
             throw new IllegalStateException("Plugins are still attached!");
+        } else if (!this.state.compareAndSet(State.RUNNING, State.DRAINING)) {
+            throw new IllegalStateException("Not running!");
         }
 
         try {
-            this.logger.info("Stopping " + this.toString() + "...");
-            if (this.timer != null) {
-                this.timer.cancel();
-            }
+            this.stopReporting();
         } finally {
-            this.running = false;
+            this.state.set(State.STOPPED);
         }
     }
 
-    public List<Plugin> getAffectedPlugins() {
-        return Collections.unmodifiableList(this.affectedPlugins);
+    private synchronized void startReporting() {
+        this.logger.info("Starting " + this.toString() + "...");
+
+        Plugin owner = this.anyPlugin();
+        Server server = owner.getServer();
+        this.defaultEntities.prefetch(server);
+        if (this.timeSeries) {
+            this.startTimeSeriesSampler(server);
+        }
+        this.jvmSampler.start();
+        this.tickSampler.start(owner);
+        if (this.censusBudget != null) {
+            this.census = new WorldCensus(server);
+            this.census.setBudget(this.censusBudget);
+            this.census.start(owner);
+        }
+
+        if (this.jmxEnabled) {
+            this.registerMBean();
+        }
+        if (this.exporterAddress != null) {
+            this.startExporter(this.exporterAddress);
+        }
+
+        // the server ID may need file I/O, don't make the main thread wait for it
+        CompletableFuture<UUID> serverId = this.serverIdResolver.resolve();
+        this.serverId = serverId;
+        serverId.whenComplete((resolved, throwable) -> this.startScheduler(serverId, server, resolved, throwable));
     }
 
-    @Override
-    public String toString() {
-        return "Metrics Lite";
+    /**
+     * Start reporting once the server ID is resolved, unless reporting was
+     * stopped in the meantime.
+     */
+    private synchronized void startScheduler(CompletableFuture<UUID> resolution, Server server, UUID serverId, Throwable throwable) {
+        if (this.serverId != resolution) {
+            return; // stopped before the server ID was resolved
+        }
+
+        if (throwable != null) {
+            Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+            this.logger.log(Level.SEVERE, "Could not resolve server ID for " + this.toString(), cause);
+            serverId = UUID.randomUUID();
+        }
+
+        this.reporter = new Reporter(server, serverId);
+
+        this.adaptiveInterval = new AdaptiveInterval(this.interval, this.minInterval, this.maxInterval);
+        this.scheduler = new ReportScheduler<>(this.logger, "Metrics-Lite", this.interval, serverId);
+        this.pipelineStats.setSkippedTicks(this.scheduler::getSkippedTicks);
+        this.scheduler.start(this.reporter::collect, this.reporter::submit);
     }
 
-    private UUID resolveServerId() {
+    /**
+     * Stop reporting, after the final report is submitted or the shutdown
+     * timeout passes.
+     */
+    private synchronized void stopReporting() {
+        this.logger.info("Stopping " + this.toString() + "...");
+        this.serverId = null;
+        if (this.scheduler != null) {
+            // reports which couldn't be submitted in time are spooled
+            Reporter reporter = this.reporter;
+            if (!this.scheduler.stop(reporter::drain, this.shutdownTimeout)) {
+                this.logger.warning("Final report of " + this.toString() + " was not submitted within " + this.shutdownTimeout.toString());
+            }
+            this.scheduler = null;
+            this.adaptiveInterval = null;
+            this.reporter = null;
+        }
         try {
-            return this.serverIdResolver.getId();
+            this.outbox.close(); // let other copies take it over
         } catch (IOException e) {
-            this.logger.log(Level.SEVERE, "Could not resolve server ID for " + this.toString(), e);
-            return UUID.randomUUID();
+            this.logger.log(Level.WARNING, "Could not close outbox of " + this.toString(), e);
+        }
+        if (this.timeSeriesSampler != null) {
+            this.timeSeriesSampler.shutdownNow();
+            this.timeSeriesSampler = null;
         }
+        this.timeSeriesStore.clear();
+        this.jvmSampler.stop();
+        this.tickSampler.stop();
+        if (this.census != null) {
+            this.census.stop();
+            this.census = null;
+        }
+        this.unregisterMBean();
+        if (this.exporter != null) {
+            this.exporter.stop();
+            this.exporter = null;
+        }
+        this.defaultEntities.close();
     }
 
-    class Reporter extends TimerTask {
-        private final Server server;
-        private final UUID serverId;
+    //
+    // Membership
+    //
 
-        Reporter(Server server, UUID serverId) {
-            this.server = Objects.requireNonNull(server, "server");
-            this.serverId = Objects.requireNonNull(serverId, "serverId");
-        }
+    /**
+     * Attach the given plugin, starting metrics if it's the first one.
+     * @return Whether the plugin was attached, {@code false} if this instance
+     * is already draining and must be replaced.
+     */
+    private boolean join(Plugin plugin) {
+        int members;
+        do {
+            members = this.members.get();
+            if (members < 0) {
+                return false;
+            }
+        } while (!this.members.compareAndSet(members, members + 1));
 
-        @Override
-        public void run() {
-            logger.fine("Collecting metric for " + MetricsLite.this.toString() + "...");
+        if (!this.affectedPlugins.add(plugin)) {
+            this.release();
+            throw new IllegalStateException("Already started for " + plugin.toString());
+        }
 
-            Map<NamespacedKey, Object> data = this.collectData(this.server);
-            if (data.isEmpty()) {
-                return;
+        if (members == 0) {
+            this.startShared();
+        } else {
+            SharedReporter.Remote leader = this.leader;
+            if (leader != null) {
+                leader.attach(plugin, this.contributor, this.leaderClosed);
             }
+        }
+        return true;
+    }
 
-            UUID reportId = UUID.randomUUID();
-            Instant now = Instant.now();
+    /**
+     * Detach the given plugin, stopping metrics if it's the last one.
+     */
+    private void leave(Plugin plugin) {
+        if (!this.affectedPlugins.remove(plugin)) {
+            throw new IllegalStateException("Not started for " + plugin.toString());
+        }
 
-            JsonObject payload = new JsonObject();
-            this.serializeData(payload, data);
+        this.sources.unregisterAll(plugin);
+        SharedReporter.Remote leader = this.leader;
+        if (leader != null) {
+            leader.detach(plugin);
+        }
 
-            JsonObject report = new JsonObject();
-            report.addProperty("id", reportId.toString());
-            report.addProperty("server_id", this.serverId.toString());
-            report.addProperty("taken_at", now.toString());
-            report.add("payload", payload);
+        if (this.release()) {
+            return;
+        }
 
-            logger.fine("Submitting report for " + MetricsLite.this.toString());
-            try {
-                endpoint.submit(report);
-            } catch (Throwable throwable) {
-                logger.log(Level.SEVERE, "Could not submit report " + reportId.toString() + " for " + MetricsLite.this.toString(), throwable);
+        // tasks and services of the plugin are dropped once it's disabled
+        Plugin owner = this.anyPlugin();
+        if (owner != null) {
+            this.tickSampler.handOver(plugin, owner);
+            WorldCensus census = this.census;
+            if (census != null) {
+                census.handOver(plugin, owner);
+            }
+            SharedReporter shared = this.shared;
+            if (shared != null) {
+                shared.register(owner.getServer().getServicesManager(), owner);
             }
         }
+    }
 
-        private Map<NamespacedKey, Object> collectData(Server server) {
-            Objects.requireNonNull(server, "server");
+    /**
+     * Give up a membership taken by {@link #join(Plugin)}. Once the last one
+     * is given up, this instance no longer accepts plugins and stops.
+     * @return Whether this instance stopped.
+     */
+    private boolean release() {
+        int members;
+        int next;
+        do {
+            members = this.members.get();
+            next = members > 1 ? members - 1 : -1;
+        } while (!this.members.compareAndSet(members, next));
 
-            Map<NamespacedKey, Object> data = new LinkedHashMap<>(512);
-            try {
-                defaultEntities.append(data, MetricsLite.this, server);
-            } catch (Throwable throwable) {
-                logger.log(Level.SEVERE, "Could not create default data for " + MetricsLite.this.toString(), throwable);
-            }
+        if (next >= 0) {
+            return false;
+        }
 
-            MetricSubmitEvent event = new MetricSubmitEvent(!server.isPrimaryThread(), data);
-            server.getPluginManager().callEvent(event);
+        this.stopShared();
+        globalMetrics.compareAndSet(this, null);
+        return true;
+    }
+
+    /**
+     * @return Any of the affected plugins, or {@code null} if there are none.
+     */
+    private Plugin anyPlugin() {
+        Iterator<Plugin> iterator = this.affectedPlugins.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
 
-            return event.getData();
+    /**
+     * Report through the {@link SharedReporter} of another copy of this
+     * library if there is one, or start reporting and share it otherwise.
+     */
+    private void startShared() {
+        synchronized (this) {
+            if (!this.state.compareAndSet(State.REGISTERING, State.RUNNING)) {
+                return; // stopped before it got to start
+            }
         }
+        this.elect();
+    }
 
-        private void serializeData(JsonObject payload, Map<NamespacedKey, Object> data) {
-            Objects.requireNonNull(payload, "payload");
-            Objects.requireNonNull(data, "data");
+    private synchronized void elect() {
+        if (this.state.get() != State.RUNNING) {
+            return;
+        }
 
-            for (Map.Entry<NamespacedKey, Object> entry : data.entrySet()) {
-                JsonElement serialized = null;
-                try {
-                    serialized = gson.toJsonTree(entry.getValue());
-                } catch (Throwable throwable) {
-                    logger.log(Level.SEVERE, "Could not serialize data for " + MetricsLite.this.toString(), throwable);
-                }
+        Plugin owner = this.anyPlugin();
+        if (owner == null) {
+            return;
+        }
+        ServicesManager servicesManager = owner.getServer().getServicesManager();
 
-                if (serialized == null || serialized.isJsonNull()) {
-                    continue;
+        SharedReporter.Remote leader = SharedReporter.find(servicesManager);
+        if (leader != null) {
+            try {
+                // published first, so plugins joining meanwhile attach themselves
+                this.leader = leader;
+                for (Plugin plugin : this.affectedPlugins) {
+                    leader.attach(plugin, this.contributor, this.leaderClosed);
                 }
+                this.logger.info("Reporting " + this.toString() + " through " + leader.toString());
+                return;
+            } catch (RuntimeException e) {
+                this.leader = null;
+                this.logger.log(Level.WARNING, "Could not join shared reporter of " + this.toString(), e);
+            }
+        }
 
-                NamespacedKey key = entry.getKey();
+        this.startReporting();
+        SharedReporter shared = new SharedReporter(this.logger);
+        shared.register(servicesManager, owner);
+        this.shared = shared;
+    }
+
+    private void stopShared() {
+        SharedReporter shared;
+        synchronized (this) {
+            if (!this.state.compareAndSet(State.RUNNING, State.DRAINING)) {
+                this.state.set(State.STOPPED); // never started
+                return;
+            }
 
-                JsonObject category = this.getOrCreateCategory(payload, key.getNamespace());
-                category.add(key.getKey(), serialized);
+            shared = this.shared;
+            this.shared = null;
+            try {
+                if (this.leader != null) {
+                    this.leader = null; // plugins were detached one by one
+                } else {
+                    this.stopReporting();
+                }
+            } finally {
+                this.state.set(State.STOPPED);
             }
         }
 
-        private JsonObject getOrCreateCategory(JsonObject parent, String name) {
-            Objects.requireNonNull(parent, "parent");
-            Objects.requireNonNull(name, "name");
+        // followers elect a new leader right away, don't hold the lock
+        if (shared != null) {
+            shared.close();
+        }
+    }
+
+    /**
+     * Called on the server thread by the leader, once it has stopped.
+     */
+    private void onLeaderClosed() {
+        this.leader = null;
+        this.elect();
+    }
 
-            if (parent.has(name)) {
-                JsonElement category = parent.get(name);
-                if (category instanceof JsonObject) {
-                    return (JsonObject) category;
+    /**
+     * Put data of this copy into a report of the leader.
+     */
+    private void contribute(Map<NamespacedKey, Object> data) {
+        for (MetricSourceRegistry.Registration registration : this.sources.getRegistrations()) {
+            try {
+                Object value = SharedReporter.export(registration.source);
+                if (value != null) {
+                    data.put(registration.key, value);
                 }
+            } catch (Throwable throwable) {
+                this.logger.log(Level.SEVERE, "Could not poll " + registration.key.toString() + " for " + this.toString(), throwable);
             }
+        }
+
+        // listeners of this copy listen to its own event class
+        Plugin owner = this.anyPlugin();
+        if (owner != null) {
+            Server server = owner.getServer();
+            server.getPluginManager().callEvent(new MetricSubmitEvent(!server.isPrimaryThread(), data));
+        }
+    }
+
+    public boolean isDeltaReporting() {
+        return this.deltaReporting;
+    }
+
+    /**
+     * Send a full snapshot only at the start of a session or when the
+     * endpoint asks for it, every other report carries only keys which were
+     * added, changed or removed since the previous report.
+     * @param deltaReporting Whether delta reporting is enabled.
+     */
+    public void setDeltaReporting(boolean deltaReporting) {
+        this.deltaReporting = deltaReporting;
+    }
+
+    public boolean isCompactKeys() {
+        return this.compactKeys;
+    }
+
+    /**
+     * Refer to keys by integer IDs instead of their names. Every report
+     * carries names of the keys which got an ID since the previous report,
+     * the full dictionary is sent at the start of a session and whenever
+     * the endpoint asks for a resync. Once the dictionary is full, further
+     * keys are referred to by their full names.
+     * @param compactKeys Whether keys are referred to by ID.
+     */
+    public void setCompactKeys(boolean compactKeys) {
+        this.compactKeys = compactKeys;
+    }
+
+    public boolean isTimeSeries() {
+        return this.timeSeries;
+    }
+
+    /**
+     * Sample numeric values between reports and report summaries of them,
+     * with the last, min, max and mean value since the previous report,
+     * instead of single values. Only live default entities are sampled,
+     * every second, other values are reported as they are. Sampling starts
+     * with the next start.
+     * @param timeSeries Whether numeric values are reported as summaries.
+     */
+    public void setTimeSeries(boolean timeSeries) {
+        this.timeSeries = timeSeries;
+    }
+
+    public int getMaxBatchSize() {
+        return this.maxBatchSize;
+    }
+
+    public Duration getMaxBatchLatency() {
+        return this.maxBatchLatency;
+    }
+
+    /**
+     * Submit reports in batches instead of one request per interval. A batch
+     * is submitted once it holds the given number of reports, or on the first
+     * interval after its oldest report waited for the given latency. Backlog
+     * of the outbox is replayed in batches of the same size.
+     * @param maxBatchSize Maximum number of reports in a batch, 1 disables
+     *                     batching.
+     * @param maxBatchLatency Maximum time a report waits for its batch.
+     */
+    public void setBatching(int maxBatchSize, Duration maxBatchLatency) {
+        Objects.requireNonNull(maxBatchLatency, "maxBatchLatency");
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        } else if (maxBatchLatency.isNegative()) {
+            throw new IllegalArgumentException("maxBatchLatency must not be negative");
+        }
+
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchLatency = maxBatchLatency;
+    }
+
+    public int getMaxPayloadSize() {
+        return this.maxPayloadSize;
+    }
+
+    public int getMaxValueSize() {
+        return this.maxValueSize;
+    }
+
+    /**
+     * Limit the size of reports, so a listener putting huge values in the
+     * data can't blow them up. A value over its limit is dropped, and once
+     * the payload fills up the remaining values are dropped, those of
+     * plugins before the default entities. Dropped keys are listed in the
+     * report.
+     * @param maxPayloadSize Maximum size of a serialized report, in bytes.
+     * @param maxValueSize Maximum size of a single serialized value, in
+     *                     bytes.
+     */
+    public void setPayloadBudget(int maxPayloadSize, int maxValueSize) {
+        new PayloadBudget(maxPayloadSize, maxValueSize); // validate
+
+        this.maxPayloadSize = maxPayloadSize;
+        this.maxValueSize = maxValueSize;
+    }
+
+    /**
+     * Attach the given plugin without starting reporting.
+     */
+    void attach(Plugin plugin) {
+        Objects.requireNonNull(plugin, "plugin");
+        this.affectedPlugins.add(plugin);
+    }
+
+    public Duration getInterval() {
+        return this.interval;
+    }
+
+    public Duration getMinInterval() {
+        return this.minInterval;
+    }
+
+    public Duration getMaxInterval() {
+        return this.maxInterval;
+    }
+
+    /**
+     * Configure how far the interval adapts. It stretches up to the maximum
+     * while the server is under load or reports don't change, and tightens
+     * down to the minimum while most values change between reports. Applies
+     * from the next start on.
+     * @param minInterval Shortest interval, at most the base interval.
+     * @param maxInterval Longest interval, at least the base interval. Both
+     *                    equal to the base interval keep it fixed.
+     */
+    public void setIntervalBounds(Duration minInterval, Duration maxInterval) {
+        new AdaptiveInterval(this.interval, minInterval, maxInterval); // validate
 
-            JsonObject category = new JsonObject();
-            parent.add(name, category);
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+    }
+
+    public Duration getShutdownTimeout() {
+        return this.shutdownTimeout;
+    }
+
+    /**
+     * @param shutdownTimeout How long stopping waits for the final report to
+     *                        be submitted, it's spooled afterwards.
+     */
+    public void setShutdownTimeout(Duration shutdownTimeout) {
+        Objects.requireNonNull(shutdownTimeout, "shutdownTimeout");
+        if (shutdownTimeout.isNegative()) {
+            throw new IllegalArgumentException("shutdownTimeout must not be negative");
+        }
+
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    public Duration getCensusBudget() {
+        return this.censusBudget;
+    }
 
-            return category;
+    /**
+     * Count loaded chunks, entities and tile entities of every world on the
+     * main thread, spending at most the given time on each tick. Reports
+     * carry the last complete census.
+     * @param censusBudget Time the census may take on a single tick, or
+     *                     {@code null} to disable it. Takes effect on the
+     *                     next start.
+     */
+    public void setCensusBudget(Duration censusBudget) {
+        if (censusBudget != null && (censusBudget.isNegative() || censusBudget.isZero())) {
+            throw new IllegalArgumentException("censusBudget must be positive");
         }
+
+        this.censusBudget = censusBudget;
+    }
+
+    public PipelineStats getPipelineStats() {
+        return this.pipelineStats;
+    }
+
+    public boolean isJmxEnabled() {
+        return this.jmxEnabled;
+    }
+
+    /**
+     * Register {@link #getPipelineStats()} in the platform MBean server as
+     * {@value #MBEAN_NAME} while this instance is running.
+     * @param jmxEnabled Whether the MBean should be registered, takes effect
+     *                   on the next start.
+     */
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    public InetSocketAddress getExporterAddress() {
+        return this.exporterAddress;
+    }
+
+    /**
+     * Serve the most recently collected report in the OpenMetrics text format
+     * at {@value OpenMetricsExporter#PATH} on the given address, for
+     * Prometheus to scrape.
+     * @param exporterAddress Address to listen on, or {@code null} to disable
+     *                        the exporter. Takes effect on the next start.
+     */
+    public void setExporterAddress(InetSocketAddress exporterAddress) {
+        this.exporterAddress = exporterAddress;
+    }
+
+    public List<Plugin> getAffectedPlugins() {
+        return Collections.unmodifiableList(new ArrayList<>(this.affectedPlugins));
+    }
+
+    /**
+     * @return Affected plugins, including those of other copies of this
+     * library reporting through this one.
+     */
+    List<Plugin> getReportedPlugins() {
+        SharedReporter shared = this.shared;
+        if (shared == null) {
+            return this.getAffectedPlugins();
+        }
+
+        List<Plugin> plugins = new ArrayList<>(this.affectedPlugins);
+        plugins.addAll(shared.getPlugins());
+        return plugins;
+    }
+
+    @Override
+    public String toString() {
+        return "Metrics Lite";
+    }
+
+    private void startTimeSeriesSampler(Server server) {
+        long period = TimeSeriesStore.Resolution.SECOND.getWidthMillis();
+        this.timeSeriesSampler = Executors.newSingleThreadScheduledExecutor(ReportScheduler.threadFactory("Metrics-Lite-Sampler"));
+        this.timeSeriesSampler.scheduleAtFixedRate(() -> {
+            try {
+                long now = System.currentTimeMillis();
+                this.defaultEntities.sample(server, (key, value) -> this.timeSeriesStore.record(key, value, now));
+            } catch (Throwable throwable) {
+                this.logger.log(Level.FINE, "Could not sample time series for " + this.toString(), throwable);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void startExporter(InetSocketAddress address) {
+        OpenMetricsExporter exporter = new OpenMetricsExporter(this.logger, address, this.sources);
+        try {
+            exporter.start();
+            this.exporter = exporter;
+            this.logger.info("Serving OpenMetrics of " + this.toString() + " on " + address.toString());
+        } catch (IOException e) {
+            this.logger.log(Level.WARNING, "Could not start OpenMetrics exporter for " + this.toString(), e);
+        }
+    }
+
+    private void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this.pipelineStats, name);
+            this.mbeanName = name;
+        } catch (InstanceAlreadyExistsException e) {
+            this.logger.fine(MBEAN_NAME + " is already registered by another copy of " + this.toString());
+        } catch (JMException | RuntimeException e) {
+            this.logger.log(Level.WARNING, "Could not register MBean for " + this.toString(), e);
+        }
+    }
+
+    private void unregisterMBean() {
+        if (this.mbeanName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.mbeanName);
+        } catch (JMException | RuntimeException e) {
+            this.logger.log(Level.WARNING, "Could not unregister MBean for " + this.toString(), e);
+        } finally {
+            this.mbeanName = null;
+        }
+    }
+
+    private static boolean isRetryable(Throwable throwable) {
+        return !(throwable instanceof UrlEndpoint.ResponseCodeException) ||
+                ((UrlEndpoint.ResponseCodeException) throwable).isRetryable();
+    }
+
+    /**
+     * Reports are collected and serialized by {@link #collect()} on one
+     * thread, and handed over to {@link #submit(ReportBuffer)} on another.
+     */
+    class Reporter {
+        /**
+         * Maximum number of spooled reports replayed in a single tick.
+         */
+        private static final int OUTBOX_REPLAY_LIMIT = 60;
+        /**
+         * Maximum number of dropped keys named in a single warning.
+         */
+        private static final int DROPPED_KEYS_WARNING_LIMIT = 10;
+
+        private final Server server;
+        private final UUID serverId;
+
+        private final List<ReportBuffer> pending = new ArrayList<>();
+        private Instant pendingSince;
+
+        // value fingerprints of the last report, null while a full one is due
+        private Map<NamespacedKey, Long> snapshot;
+        private UUID snapshotReportId;
+        // number of key IDs the endpoint knows the names of
+        private int keysSent;
+        // value fingerprints of the last report, to tell how fast data changes
+        private Map<NamespacedKey, Long> fingerprints;
+        // wall time the last time series summaries end at
+        private long summarizedAt = System.currentTimeMillis();
+        // keys already warned about being dropped
+        private final Set<NamespacedKey> droppedKeys = new HashSet<>();
+
+        Reporter(Server server, UUID serverId) {
+            this.server = Objects.requireNonNull(server, "server");
+            this.serverId = Objects.requireNonNull(serverId, "serverId");
+        }
+
+        /**
+         * @return Serialized report, or {@code null} if there was nothing to
+         * report.
+         */
+        synchronized ReportBuffer collect() {
+            logger.fine("Collecting metric for " + MetricsLite.this.toString() + "...");
+
+            long collectStarted = System.nanoTime();
+            Map<NamespacedKey, Object> data = this.collectData(this.server);
+            pipelineStats.record(PipelineStats.Stage.COLLECT, System.nanoTime() - collectStarted);
+            if (data.isEmpty() && sources.isEmpty()) {
+                return null;
+            }
+            pipelineStats.append(data);
+
+            OpenMetricsExporter exporter = MetricsLite.this.exporter;
+            if (exporter != null) {
+                exporter.update(data);
+            }
+
+            UUID reportId = UUID.randomUUID();
+            Instant now = Instant.now();
+
+            boolean deltaReporting = MetricsLite.this.deltaReporting;
+            boolean compactKeys = MetricsLite.this.compactKeys;
+            if (endpoint.consumeResyncRequest()) {
+                this.resetSession();
+            } else if (!deltaReporting) {
+                this.resetSnapshot();
+            }
+            int keys = compactKeys ? keySchema.size() : 0;
+
+            // fingerprints tell how much changed, even when reports aren't deltas
+            Map<NamespacedKey, Long> previous = this.snapshot;
+            Map<NamespacedKey, Long> fingerprints = new HashMap<>(Math.max(16, data.size() * 2));
+
+            PayloadBudget budget = new PayloadBudget(maxPayloadSize, maxValueSize);
+            ReportBuffer report = bufferPool.acquire();
+            long serializeStarted = System.nanoTime();
+            try {
+                ReportWriter writer = ReportWriter.create(report, endpoint.getFormat());
+                writer.setLimit(budget.getMaxPayloadSize());
+                writer.beginObject();
+                writer.name("id").value(reportId.toString());
+                writer.name("server_id").value(this.serverId.toString());
+                writer.name("taken_at").value(now.toString());
+                if (previous != null) {
+                    writer.name("delta").value(true);
+                    writer.name("base_id").value(this.snapshotReportId.toString());
+                }
+                if (compactKeys) {
+                    keys = this.serializeKeys(writer, this.keysSent, keys, budget);
+                    writer.name("payload");
+                    this.serializeCompactData(writer, data, keys, previous, fingerprints, budget);
+                } else {
+                    writer.name("payload");
+                    this.serializeData(writer, data, previous, fingerprints, budget);
+                }
+                if (previous != null) {
+                    this.serializeRemoved(writer, previous, fingerprints, compactKeys, budget);
+                }
+                this.serializeDropped(writer, budget);
+                writer.endObject();
+                writer.flush();
+            } catch (Throwable throwable) {
+                logger.log(Level.SEVERE, "Could not serialize report " + reportId.toString() + " for " + MetricsLite.this.toString(), throwable);
+                bufferPool.release(report);
+                this.resetSession();
+                return null;
+            }
+
+            pipelineStats.record(PipelineStats.Stage.SERIALIZE, System.nanoTime() - serializeStarted);
+            pipelineStats.recordCollected(report.size());
+            this.warnDropped(budget);
+
+            if (deltaReporting) {
+                this.snapshot = fingerprints;
+                this.snapshotReportId = reportId;
+            }
+            this.keysSent = keys;
+
+            this.adaptInterval(this.changedFraction(fingerprints));
+            this.fingerprints = fingerprints;
+            return report;
+        }
+
+        /**
+         * @return Share of values whose fingerprint differs from the previous
+         * report, 1 if there was none. Values measured anew for every report
+         * are left out, they change however quiet the server is.
+         */
+        private double changedFraction(Map<NamespacedKey, Long> fingerprints) {
+            Map<NamespacedKey, Long> previous = this.fingerprints;
+            if (previous == null) {
+                return 1D;
+            }
+
+            int counted = 0;
+            int changed = 0;
+            for (Map.Entry<NamespacedKey, Long> entry : fingerprints.entrySet()) {
+                NamespacedKey key = entry.getKey();
+                if (this.isSelfMeasured(key)) {
+                    continue;
+                }
+
+                counted++;
+                if (!entry.getValue().equals(previous.get(key))) {
+                    changed++;
+                }
+            }
+            return counted == 0 ? 0D : changed / (double) counted;
+        }
+
+        /**
+         * Statistics of the pipeline itself and sampler output.
+         */
+        private boolean isSelfMeasured(NamespacedKey key) {
+            return key.getNamespace().equals(PipelineStats.NAMESPACE) || JvmSampler.isSampled(key) || TickSampler.isSampled(key);
+        }
+
+        /**
+         * Stretch the interval until the next report while the server is under
+         * load or nothing changes, tighten it while values change quickly.
+         * @param changed Share of values which changed since the previous report.
+         */
+        private void adaptInterval(double changed) {
+            ReportScheduler<ReportBuffer> scheduler = MetricsLite.this.scheduler;
+            AdaptiveInterval adaptiveInterval = MetricsLite.this.adaptiveInterval;
+            if (scheduler == null || adaptiveInterval == null) {
+                return;
+            }
+
+            boolean loaded = AdaptiveInterval.isLoaded(tickSampler.getMeanTickIntervalNanos(), tickSampler.getTps(), jvmSampler.getGcTimeFraction());
+            adaptiveInterval.setHint(endpoint.getIntervalHint());
+            Duration interval = adaptiveInterval.next(loaded, changed);
+            if (!interval.equals(scheduler.getInterval())) {
+                logger.fine("Reporting " + MetricsLite.this.toString() + " every " + interval.toString() + (loaded ? ", server is under load" : ""));
+                scheduler.setInterval(interval);
+            }
+        }
+
+        /**
+         * Hold off the next report if the endpoint asked to.
+         */
+        private void applyRetryAfter() {
+            Duration retryAfter = endpoint.consumeRetryAfter();
+            ReportScheduler<ReportBuffer> scheduler = MetricsLite.this.scheduler;
+            if (retryAfter != null && scheduler != null) {
+                logger.fine("Endpoint of " + MetricsLite.this.toString() + " asked to retry after " + retryAfter.toString());
+                scheduler.defer(retryAfter);
+            }
+        }
+
+        /**
+         * Make the next report a full snapshot. Called whenever a report
+         * might not reach the endpoint, so the delta chain would break.
+         */
+        private void resetSnapshot() {
+            this.snapshot = null;
+            this.snapshotReportId = null;
+        }
+
+        /**
+         * Make the next report a full snapshot and send the full key
+         * dictionary along with it.
+         */
+        private void resetSession() {
+            this.resetSnapshot();
+            this.keysSent = 0;
+        }
+
+        /**
+         * Collect and submit the final report, along with reports waiting for
+         * their batch. Whatever can't be submitted is spooled.
+         */
+        synchronized void drain() {
+            try {
+                this.submit(this.collect());
+                this.flush();
+            } finally {
+                this.close();
+            }
+        }
+
+        /**
+         * Spool reports waiting for their batch, so they are not lost when
+         * metrics stop.
+         */
+        synchronized void close() {
+            // the outbox can't be written from an interrupted thread
+            boolean interrupted = Thread.interrupted();
+            try {
+                for (ReportBuffer report : this.pending) {
+                    this.spool(report);
+                    bufferPool.release(report);
+                }
+                this.pending.clear();
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Submit the given report, or spool it in the outbox if the endpoint
+         * is unavailable. Reports are always delivered in order, so while the
+         * outbox holds a backlog new reports are queued behind it. Ownership
+         * of the buffer is taken over by this method.
+         * @param report Serialized report, or {@code null} to only submit a
+         *               batch which waited long enough.
+         */
+        synchronized void submit(ReportBuffer report) {
+            if (report == null) {
+                this.flushIfDue();
+                return;
+            }
+
+            try {
+                if (this.pending.isEmpty() && !outbox.isEmpty()) {
+                    this.spool(report);
+                    bufferPool.release(report);
+                    this.replayOutbox();
+                    return;
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not access outbox of " + MetricsLite.this.toString(), e);
+            }
+
+            if (this.pending.isEmpty()) {
+                this.pendingSince = Instant.now();
+            }
+            this.pending.add(report);
+            this.flushIfDue();
+        }
+
+        /**
+         * Submit reports waiting for their batch once the batch is full or
+         * its oldest report waited long enough.
+         */
+        private void flushIfDue() {
+            if (this.pending.isEmpty()) {
+                return;
+            }
+
+            Duration waited = Duration.between(this.pendingSince, Instant.now());
+            if (this.pending.size() < this.batchSize() && waited.compareTo(maxBatchLatency) < 0) {
+                return;
+            }
+
+            this.flush();
+        }
+
+        /**
+         * Submit reports waiting for their batch right away.
+         */
+        private void flush() {
+            if (this.pending.isEmpty()) {
+                return;
+            }
+
+            logger.fine("Submitting " + this.pending.size() + " report(s) for " + MetricsLite.this.toString());
+            try {
+                this.deliver(this.pending);
+            } catch (UrlEndpoint.CircuitOpenException e) {
+                logger.fine("Endpoint of " + MetricsLite.this.toString() + " is unavailable, " + e.getMessage());
+
+                for (ReportBuffer report : this.pending) {
+                    this.spool(report);
+                }
+            } catch (Throwable throwable) {
+                // only the reports which were not delivered are left pending
+                logger.log(Level.SEVERE, "Could not submit " + this.pending.size() + " report(s) for " + MetricsLite.this.toString(), throwable);
+
+                for (ReportBuffer report : this.pending) {
+                    this.spool(report);
+                }
+            }
+
+            for (ReportBuffer report : this.pending) {
+                bufferPool.release(report);
+            }
+            this.pending.clear();
+        }
+
+        /**
+         * Submit the given reports, as a single batch if possible. Reports
+         * rejected by the endpoint are dropped. Reports are removed from the
+         * list and released as soon as they are submitted or dropped, so only
+         * the ones still to be delivered are left in it.
+         * @throws Throwable The first retryable failure, the list is left
+         *                   with the reports which were not delivered.
+         */
+        private void deliver(List<ReportBuffer> reports) throws Throwable {
+            try {
+                this.deliverNow(reports);
+            } finally {
+                this.applyRetryAfter();
+            }
+        }
+
+        private void deliverNow(List<ReportBuffer> reports) throws Throwable {
+            if (reports.size() > 1 && !endpoint.isBatchRejected()) {
+                long started = System.nanoTime();
+                try {
+                    endpoint.submitBatch(reports);
+                    pipelineStats.record(PipelineStats.Stage.SUBMIT, System.nanoTime() - started);
+                    pipelineStats.recordSubmitted(reports.size());
+                    this.release(reports, reports.size());
+                    return;
+                } catch (Throwable throwable) {
+                    pipelineStats.record(PipelineStats.Stage.SUBMIT, System.nanoTime() - started);
+                    pipelineStats.recordFailure();
+                    if (isRetryable(throwable)) {
+                        throw throwable;
+                    }
+                    logger.log(Level.FINE, "Batch rejected by the endpoint for " + MetricsLite.this.toString(), throwable);
+                }
+            }
+
+            int handled = 0;
+            try {
+                for (ReportBuffer report : reports) {
+                    long started = System.nanoTime();
+                    try {
+                        endpoint.submit(report);
+                        pipelineStats.record(PipelineStats.Stage.SUBMIT, System.nanoTime() - started);
+                        pipelineStats.recordSubmitted(1);
+                    } catch (Throwable throwable) {
+                        pipelineStats.record(PipelineStats.Stage.SUBMIT, System.nanoTime() - started);
+                        pipelineStats.recordFailure();
+                        if (isRetryable(throwable)) {
+                            throw throwable;
+                        }
+                        logger.log(Level.SEVERE, "Dropping report rejected by the endpoint for " + MetricsLite.this.toString(), throwable);
+                        pipelineStats.recordDropped();
+                        this.resetSession();
+                    }
+                    handled++;
+                }
+            } finally {
+                this.release(reports, handled);
+            }
+        }
+
+        /**
+         * Release the given number of reports from the head of the list and
+         * remove them from it.
+         */
+        private void release(List<ReportBuffer> reports, int count) {
+            List<ReportBuffer> head = reports.subList(0, count);
+            for (ReportBuffer report : head) {
+                bufferPool.release(report);
+            }
+            head.clear();
+        }
+
+        private void spool(ReportBuffer report) {
+            try {
+                if (!outbox.isAvailable()) {
+                    logger.fine("Outbox is held by another copy, dropping report of " + MetricsLite.this.toString());
+                    pipelineStats.recordDropped();
+                    this.resetSession();
+                } else if (outbox.append(report)) {
+                    pipelineStats.recordSpooled();
+                } else {
+                    logger.warning("Report is too big for the outbox of " + MetricsLite.this.toString());
+                    pipelineStats.recordDropped();
+                    this.resetSession();
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not spool report for " + MetricsLite.this.toString(), e);
+                this.resetSession();
+            }
+        }
+
+        /**
+         * Submit spooled reports in batches, oldest first, until the outbox is
+         * empty or the endpoint fails again.
+         */
+        private void replayOutbox() throws IOException {
+            List<ReportBuffer> batch = new ArrayList<>();
+            try {
+                int replayed = 0;
+                while (replayed < OUTBOX_REPLAY_LIMIT) {
+                    int batchSize = this.batchSize();
+                    while (batch.size() < batchSize) {
+                        ReportBuffer report = bufferPool.acquire();
+                        batch.add(report);
+
+                        if (!outbox.peek(report)) {
+                            batch.remove(batch.size() - 1);
+                            bufferPool.release(report);
+                            break;
+                        }
+                    }
+
+                    if (batch.isEmpty()) {
+                        return;
+                    }
+
+                    int peeked = batch.size();
+                    try {
+                        this.deliver(batch);
+                    } catch (Throwable throwable) {
+                        logger.log(Level.FINE, "Could not replay outbox of " + MetricsLite.this.toString(), throwable);
+                        outbox.remove(peeked - batch.size()); // keep only the ones not delivered yet
+                        return;
+                    }
+
+                    outbox.remove();
+                    replayed += peeked;
+                }
+            } finally {
+                for (ReportBuffer report : batch) {
+                    bufferPool.release(report);
+                }
+            }
+        }
+
+        private int batchSize() {
+            return endpoint.isBatchRejected() ? 1 : maxBatchSize;
+        }
+
+        Map<NamespacedKey, Object> collectData(Server server) {
+            Objects.requireNonNull(server, "server");
+
+            Map<NamespacedKey, Object> data = new ReportData(keySchema);
+            try {
+                defaultEntities.append(data, MetricsLite.this, server);
+            } catch (Throwable throwable) {
+                logger.log(Level.SEVERE, "Could not create default data for " + MetricsLite.this.toString(), throwable);
+            }
+
+            try {
+                jvmSampler.append(data);
+                tickSampler.append(data);
+            } catch (Throwable throwable) {
+                logger.log(Level.SEVERE, "Could not sample JVM for " + MetricsLite.this.toString(), throwable);
+            }
+
+            WorldCensus census = MetricsLite.this.census;
+            if (census != null) {
+                try {
+                    census.append(data);
+                } catch (Throwable throwable) {
+                    logger.log(Level.SEVERE, "Could not append world census for " + MetricsLite.this.toString(), throwable);
+                }
+            }
+
+            SharedReporter shared = MetricsLite.this.shared;
+            if (shared != null) {
+                shared.contribute(data);
+            }
+
+            MetricSubmitEvent event = new MetricSubmitEvent(!server.isPrimaryThread(), data);
+            long started = System.nanoTime();
+            server.getPluginManager().callEvent(event);
+            pipelineStats.record(PipelineStats.Stage.LISTENERS, System.nanoTime() - started);
+
+            if (timeSeries) {
+                this.summarizeTimeSeries(data);
+            }
+            return data;
+        }
+
+        /**
+         * Record numeric values sampled between reports and replace them with
+         * summaries of their samples since the previous report. Other values
+         * would only have a single sample, they are left as they are, and so
+         * are values of keys which don't fit in the store.
+         */
+        private void summarizeTimeSeries(Map<NamespacedKey, Object> data) {
+            long now = System.currentTimeMillis();
+            long from = this.summarizedAt;
+            this.summarizedAt = now;
+
+            List<NamespacedKey> sampled = new ArrayList<>();
+            for (Map.Entry<NamespacedKey, Object> entry : data.entrySet()) {
+                if (entry.getValue() instanceof Number && defaultEntities.isSampled(entry.getKey())) {
+                    sampled.add(entry.getKey());
+                }
+            }
+
+            for (NamespacedKey key : sampled) {
+                if (timeSeriesStore.record(key, (Number) data.get(key), now)) {
+                    Map<String, Object> summary = timeSeriesStore.summarize(key, from, now);
+                    if (summary != null) {
+                        data.put(key, summary);
+                    }
+                }
+            }
+
+            timeSeriesStore.evict(TimeSeriesStore.Resolution.MINUTE, now);
+        }
+
+        /**
+         * @param previous Fingerprints of the previous report, only values
+         *                 which differ from them are written. {@code null}
+         *                 writes all values.
+         * @param fingerprints Fingerprints of written values are put here,
+         *                     may be {@code null}.
+         * @param budget Limits values are written under, keys of values which
+         *               don't fit are put here.
+         */
+        void serializeData(ReportWriter writer, Map<NamespacedKey, Object> data,
+                           Map<NamespacedKey, Long> previous, Map<NamespacedKey, Long> fingerprints,
+                           PayloadBudget budget) throws IOException {
+            Objects.requireNonNull(writer, "writer");
+            Objects.requireNonNull(data, "data");
+            Objects.requireNonNull(budget, "budget");
+
+            writer.beginObject();
+            for (Map.Entry<String, List<Map.Entry<NamespacedKey, Object>>> category : this.groupByNamespace(data).entrySet()) {
+                this.serializeCategory(writer, category.getKey(), category.getValue(), previous, fingerprints, budget);
+            }
+            writer.endObject();
+        }
+
+        /**
+         * Keys of a single namespace may be scattered across the map, but
+         * they must end up in one object. Group entries of the data and of
+         * metric sources by their namespaces in a single pass. Namespaces of
+         * plugins go last and core entities first within theirs, so the least
+         * important values are the first to be dropped once the payload fills
+         * up.
+         */
+        Map<String, List<Map.Entry<NamespacedKey, Object>>> groupByNamespace(Map<NamespacedKey, Object> data) {
+            Objects.requireNonNull(data, "data");
+
+            Map<String, List<Map.Entry<NamespacedKey, Object>>> builtIn = new LinkedHashMap<>();
+            Map<String, List<Map.Entry<NamespacedKey, Object>>> contributed = new LinkedHashMap<>();
+            for (Map.Entry<NamespacedKey, Object> entry : data.entrySet()) {
+                if (!sources.contains(entry.getKey())) {
+                    group(builtIn, contributed, entry);
+                }
+            }
+            for (MetricSourceRegistry.Registration registration : sources.getRegistrations()) {
+                group(builtIn, contributed, new AbstractMap.SimpleImmutableEntry<>(registration.key, registration.source));
+            }
+
+            for (List<Map.Entry<NamespacedKey, Object>> entries : builtIn.values()) {
+                entries.sort(Comparator.comparing(entry -> this.priority(entry.getKey())));
+            }
+            builtIn.putAll(contributed);
+            return builtIn;
+        }
+
+        private void group(Map<String, List<Map.Entry<NamespacedKey, Object>>> builtIn,
+                           Map<String, List<Map.Entry<NamespacedKey, Object>>> contributed,
+                           Map.Entry<NamespacedKey, Object> entry) {
+            String namespace = entry.getKey().getNamespace();
+            Map<String, List<Map.Entry<NamespacedKey, Object>>> groups = DefaultEntities.isBuiltIn(namespace) ? builtIn : contributed;
+            groups.computeIfAbsent(namespace, ignored -> new ArrayList<>()).add(entry);
+        }
+
+        void serializeCategory(ReportWriter writer, String namespace, List<Map.Entry<NamespacedKey, Object>> entries,
+                               Map<NamespacedKey, Long> previous, Map<NamespacedKey, Long> fingerprints,
+                               PayloadBudget budget) throws IOException {
+            Objects.requireNonNull(writer, "writer");
+            Objects.requireNonNull(namespace, "namespace");
+            Objects.requireNonNull(entries, "entries");
+            Objects.requireNonNull(budget, "budget");
+
+            long categoryCheckpoint = writer.checkpoint();
+            writer.name(namespace).beginObject();
+
+            boolean empty = true;
+            for (Map.Entry<NamespacedKey, Object> entry : entries) {
+                NamespacedKey key = entry.getKey();
+                empty &= !this.serializeEntry(writer, key.getKey(), key, entry.getValue(), previous, fingerprints, budget);
+            }
+
+            if (empty) {
+                writer.rollback(categoryCheckpoint);
+            } else {
+                writer.endObject();
+            }
+        }
+
+        /**
+         * Write keys by their IDs, in a single object regardless of their
+         * namespaces.
+         * @param keys Number of IDs the endpoint will know, keys which got an
+         *             ID later are left for the next report.
+         */
+        void serializeCompactData(ReportWriter writer, Map<NamespacedKey, Object> data, int keys,
+                                  Map<NamespacedKey, Long> previous, Map<NamespacedKey, Long> fingerprints,
+                                  PayloadBudget budget) throws IOException {
+            Objects.requireNonNull(writer, "writer");
+            Objects.requireNonNull(data, "data");
+            Objects.requireNonNull(budget, "budget");
+
+            // the most important values first, the rest is dropped once the payload fills up
+            List<Map.Entry<NamespacedKey, Object>> entries = new ArrayList<>(data.size());
+            for (Map.Entry<NamespacedKey, Object> entry : data.entrySet()) {
+                if (keySchema.id(entry.getKey()) < keys && !sources.contains(entry.getKey())) {
+                    entries.add(entry);
+                }
+            }
+            entries.sort(Comparator.comparing(entry -> this.priority(entry.getKey())));
+
+            writer.beginObject();
+            for (Map.Entry<NamespacedKey, Object> entry : entries) {
+                NamespacedKey key = entry.getKey();
+                this.serializeEntry(writer, this.compactName(key, keySchema.id(key)), key, entry.getValue(), previous, fingerprints, budget);
+            }
+
+            for (MetricSourceRegistry.Registration registration : sources.getRegistrations()) {
+                int id = keySchema.id(registration.key);
+                if (id < keys) {
+                    this.serializeEntry(writer, this.compactName(registration.key, id), registration.key, registration.source, previous, fingerprints, budget);
+                }
+            }
+            writer.endObject();
+        }
+
+        /**
+         * @param id ID of the key, or -1 if the schema had no room for it.
+         * @return Label of the ID, or the full name of the key if it has none.
+         */
+        private String compactName(NamespacedKey key, int id) {
+            return id >= 0 ? keySchema.label(id) : key.toString();
+        }
+
+        /**
+         * Write names of the keys with IDs in the given range, unless it's
+         * empty. Names which don't fit in their share of the payload are left
+         * for the next report.
+         * @return End of the range of IDs whose names were written.
+         */
+        private int serializeKeys(ReportWriter writer, int from, int to, PayloadBudget budget) throws IOException {
+            if (from >= to) {
+                return to;
+            }
+
+            long checkpoint = writer.checkpoint();
+            int id = from;
+            writer.setLimit(budget.getNamesLimit(ReportWriter.offset(checkpoint)));
+            try {
+                writer.name("keys").beginObject();
+                writer.name("offset").value(from);
+                writer.name("names").beginArray();
+                for (; id < to; id++) {
+                    long nameCheckpoint = writer.checkpoint();
+                    try {
+                        writer.value(keySchema.key(id).toString());
+                    } catch (ReportWriter.LimitExceededException e) {
+                        writer.rollback(nameCheckpoint);
+                        break;
+                    }
+                }
+            } catch (ReportWriter.LimitExceededException e) {
+                id = from;
+            } finally {
+                writer.setLimit(budget.getMaxPayloadSize());
+            }
+
+            if (id == from) {
+                writer.rollback(checkpoint);
+                return from;
+            }
+
+            writer.endArray();
+            writer.endObject();
+            return id;
+        }
+
+        private PayloadBudget.Priority priority(NamespacedKey key) {
+            if (defaultEntities.isCore(key)) {
+                return PayloadBudget.Priority.CORE;
+            }
+            return DefaultEntities.isBuiltIn(key.getNamespace()) ? PayloadBudget.Priority.BUILT_IN : PayloadBudget.Priority.CONTRIBUTED;
+        }
+
+        /**
+         * @param name Name the value is written under.
+         * @return Whether anything was written.
+         */
+        private boolean serializeEntry(ReportWriter writer, String name, NamespacedKey key, Object value,
+                                       Map<NamespacedKey, Long> previous, Map<NamespacedKey, Long> fingerprints,
+                                       PayloadBudget budget) throws IOException {
+            if (value == null) {
+                return false;
+            }
+
+            long checkpoint = writer.checkpoint();
+            Long previousFingerprint = previous != null ? previous.get(key) : null;
+            PayloadBudget.Reason dropped;
+            int start = -1;
+            try {
+                writer.setLimit(budget.getPayloadLimit());
+                writer.name(name);
+
+                long valueCheckpoint = writer.checkpoint();
+                start = ReportWriter.offset(valueCheckpoint);
+                writer.setLimit(budget.getValueLimit(start));
+                if (!this.serializeValue(writer, value)) {
+                    writer.rollback(checkpoint);
+                    return false;
+                }
+
+                // the writer counts characters of JSON, not their bytes
+                dropped = budget.check(start, writer.size());
+                if (dropped == null) {
+                    if (fingerprints != null && !(value instanceof Instrument)) {
+                        long fingerprint = writer.fingerprintSince(valueCheckpoint);
+                        fingerprints.put(key, fingerprint);
+
+                        if (previousFingerprint != null && previousFingerprint == fingerprint) {
+                            writer.rollback(checkpoint); // unchanged
+                            return false;
+                        }
+                    }
+
+                    return true;
+                }
+            } catch (ReportWriter.LimitExceededException e) {
+                // cut off right past the limit, or the name didn't fit already
+                dropped = start < 0 ? PayloadBudget.Reason.PAYLOAD_FULL : budget.check(start, writer.getLimit() + 1L);
+            } catch (Throwable throwable) {
+                writer.rollback(checkpoint);
+                logger.log(Level.SEVERE, "Could not serialize data for " + MetricsLite.this.toString(), throwable);
+
+                if (fingerprints != null && previousFingerprint != null) {
+                    // keep the last known value, rather than report it removed
+                    fingerprints.put(key, previousFingerprint);
+                }
+                return false;
+            } finally {
+                writer.setLimit(budget.getMaxPayloadSize());
+            }
+
+            writer.rollback(checkpoint);
+            budget.drop(key, dropped);
+            if (fingerprints != null && previousFingerprint != null) {
+                // the value is unknown rather than gone
+                fingerprints.put(key, previousFingerprint);
+            }
+            return false;
+        }
+
+        /**
+         * Typed sources are written directly, anything else goes through Gson.
+         * @return Whether anything was written.
+         */
+        private boolean serializeValue(ReportWriter writer, Object value) throws IOException {
+            if (value instanceof Instrument) {
+                ((Instrument) value).snapshot(writer);
+            } else if (value instanceof MetricSource.LongGauge) {
+                writer.value(((MetricSource.LongGauge) value).getAsLong());
+            } else if (value instanceof MetricSource.DoubleGauge) {
+                writer.value(((MetricSource.DoubleGauge) value).getAsDouble());
+            } else if (value instanceof MetricSource.Text) {
+                String text = ((MetricSource.Text) value).get();
+                if (text == null) {
+                    return false;
+                }
+                writer.value(text);
+            } else if (value instanceof MetricSource.Structured) {
+                Object structured = ((MetricSource.Structured) value).get();
+                if (structured == null) {
+                    return false;
+                }
+                writer.value(gson, structured);
+            } else {
+                writer.value(gson, value);
+            }
+            return true;
+        }
+
+        /**
+         * Write keys of the previous report which are gone from this one, as
+         * many as fit in their share of the report, and the number of all of
+         * them. Keys which don't fit keep their previous fingerprints, so the
+         * next report lists them again.
+         * @param compactKeys Whether to write IDs of the keys, rather than
+         *                    their names grouped by namespace.
+         */
+        private void serializeRemoved(ReportWriter writer, Map<NamespacedKey, Long> previous, Map<NamespacedKey, Long> current,
+                                      boolean compactKeys, PayloadBudget budget) throws IOException {
+            Objects.requireNonNull(writer, "writer");
+            Objects.requireNonNull(previous, "previous");
+            Objects.requireNonNull(current, "current");
+            Objects.requireNonNull(budget, "budget");
+
+            List<NamespacedKey> removed = new ArrayList<>();
+            for (NamespacedKey key : previous.keySet()) {
+                if (!current.containsKey(key)) {
+                    removed.add(key);
+                }
+            }
+
+            if (removed.isEmpty()) {
+                return;
+            } else if (!compactKeys) {
+                // one array per namespace, in the order namespaces were first seen
+                Map<String, List<NamespacedKey>> byNamespace = new LinkedHashMap<>();
+                for (NamespacedKey key : removed) {
+                    byNamespace.computeIfAbsent(key.getNamespace(), namespace -> new ArrayList<>()).add(key);
+                }
+                removed.clear();
+                byNamespace.values().forEach(removed::addAll);
+            }
+
+            long checkpoint = writer.checkpoint();
+            int listed = 0;
+            String namespace = null;
+            writer.setLimit(budget.getRemovedLimit(ReportWriter.offset(checkpoint)));
+            try {
+                writer.name("removed_count").value(removed.size());
+                writer.name("removed");
+                if (compactKeys) {
+                    writer.beginArray();
+                } else {
+                    writer.beginObject();
+                }
+
+                for (NamespacedKey key : removed) {
+                    long keyCheckpoint = writer.checkpoint();
+                    try {
+                        if (compactKeys) {
+                            int id = keySchema.id(key);
+                            if (id >= 0) {
+                                writer.value(id);
+                            } else {
+                                writer.value(key.toString());
+                            }
+                        } else {
+                            if (!key.getNamespace().equals(namespace)) {
+                                if (namespace != null) {
+                                    writer.endArray();
+                                }
+                                writer.name(key.getNamespace()).beginArray();
+                            }
+                            writer.value(key.getKey());
+                        }
+                    } catch (ReportWriter.LimitExceededException e) {
+                        writer.rollback(keyCheckpoint);
+                        break;
+                    }
+
+                    namespace = key.getNamespace();
+                    listed++;
+                }
+            } catch (ReportWriter.LimitExceededException e) {
+                listed = 0;
+            } finally {
+                writer.setLimit(budget.getMaxPayloadSize());
+            }
+
+            if (listed == 0) {
+                writer.rollback(checkpoint);
+            } else if (compactKeys) {
+                writer.endArray();
+            } else {
+                writer.endArray();
+                writer.endObject();
+            }
+
+            for (NamespacedKey key : removed.subList(listed, removed.size())) {
+                current.put(key, previous.get(key));
+            }
+        }
+
+        /**
+         * Write keys dropped from the payload with the reasons why, as many
+         * as fit in the report, and the number of all of them.
+         */
+        private void serializeDropped(ReportWriter writer, PayloadBudget budget) throws IOException {
+            Objects.requireNonNull(writer, "writer");
+            Objects.requireNonNull(budget, "budget");
+
+            Map<NamespacedKey, PayloadBudget.Reason> dropped = budget.getDropped();
+            if (dropped.isEmpty()) {
+                return;
+            }
+
+            writer.name("dropped").beginObject();
+            writer.name("count").value(dropped.size());
+            writer.name("keys").beginObject();
+
+            // leave room for closing both objects and the report
+            writer.setLimit(budget.getMaxPayloadSize() - 3);
+            try {
+                for (Map.Entry<NamespacedKey, PayloadBudget.Reason> entry : dropped.entrySet()) {
+                    long checkpoint = writer.checkpoint();
+                    try {
+                        writer.name(entry.getKey().toString()).value(entry.getValue().getKey());
+                    } catch (ReportWriter.LimitExceededException e) {
+                        writer.rollback(checkpoint);
+                        break;
+                    }
+                }
+            } finally {
+                writer.setLimit(budget.getMaxPayloadSize());
+            }
+
+            writer.endObject();
+            writer.endObject();
+        }
+
+        /**
+         * Warn about keys dropped from a report, each key only the first time
+         * it's dropped.
+         */
+        private void warnDropped(PayloadBudget budget) {
+            List<String> dropped = new ArrayList<>();
+            for (Map.Entry<NamespacedKey, PayloadBudget.Reason> entry : budget.getDropped().entrySet()) {
+                if (this.droppedKeys.add(entry.getKey())) {
+                    dropped.add(entry.getKey() + " (" + entry.getValue().getKey() + ")");
+                }
+            }
+
+            if (dropped.isEmpty()) {
+                return;
+            }
+
+            String keys = String.join(", ", dropped.subList(0, Math.min(dropped.size(), DROPPED_KEYS_WARNING_LIMIT)));
+            if (dropped.size() > DROPPED_KEYS_WARNING_LIMIT) {
+                keys += " and " + (dropped.size() - DROPPED_KEYS_WARNING_LIMIT) + " more";
+            }
+            logger.warning("Dropped " + keys + " from the report for " + MetricsLite.this.toString() + ", reports are limited to " +
+                    budget.getMaxPayloadSize() + " bytes and their values to " + budget.getMaxValueSize() + " bytes.");
+        }
+    }
+
+    /**
+     * Lifecycle of an instance. States are only ever entered in this order.
+     */
+    public enum State {
+        /**
+         * Accepting plugins, not started yet.
+         */
+        REGISTERING,
+        /**
+         * Reporting, either on its own or through another copy of this
+         * library.
+         */
+        RUNNING,
+        /**
+         * The last plugin has left, the final report is being submitted.
+         */
+        DRAINING,
+        /**
+         * Stopped for good, plugins which start later get a new instance.
+         */
+        STOPPED
     }
 }
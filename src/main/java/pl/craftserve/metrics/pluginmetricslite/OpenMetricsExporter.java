@@ -0,0 +1,358 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bukkit.NamespacedKey;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the most recently collected report, and registered sources, in the
+ * OpenMetrics text format for Prometheus to scrape.
+ *
+ * Scrapes never collect a report on their own. The text is rendered into a
+ * reused buffer and served from it until a new report is collected or the
+ * text gets older than {@link #MAX_AGE}, so frequent scrapes cost nearly
+ * nothing.
+ */
+class OpenMetricsExporter {
+    static final String PATH = "/metrics";
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    /**
+     * Maximum age of the served text. Sources are live, so they are rendered
+     * again after a while even if no new report was collected.
+     */
+    private static final Duration MAX_AGE = Duration.ofSeconds(5L);
+
+    private final Logger logger;
+    private final InetSocketAddress address;
+    private final MetricSourceRegistry sources;
+
+    private final ReportBuffer buffer = new ReportBuffer();
+    private final long[] histogramCounts = new long[Histogram.BUCKETS];
+    private final Set<String> families = new HashSet<>();
+
+    private volatile Map<NamespacedKey, Object> data = Collections.emptyMap();
+    private volatile long generation;
+    private long renderedGeneration = -1L;
+    private long renderedAt;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    OpenMetricsExporter(Logger logger, InetSocketAddress address, MetricSourceRegistry sources) {
+        this.logger = Objects.requireNonNull(logger, "logger");
+        this.address = Objects.requireNonNull(address, "address");
+        this.sources = Objects.requireNonNull(sources, "sources");
+    }
+
+    synchronized void start() throws IOException {
+        if (this.server != null) {
+            throw new IllegalStateException("Already started!");
+        }
+
+        HttpServer server = HttpServer.create(this.address, 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor(ReportScheduler.threadFactory("Metrics-Lite-Exporter"));
+        server.createContext(PATH, this::handle);
+        server.setExecutor(executor);
+        server.start();
+
+        this.server = server;
+        this.executor = executor;
+    }
+
+    synchronized void stop() {
+        if (this.server == null) {
+            throw new IllegalStateException("Not started!");
+        }
+
+        this.server.stop(0);
+        this.executor.shutdown();
+        this.server = null;
+        this.executor = null;
+    }
+
+    /**
+     * @return Address the exporter is bound to, or {@code null} if it's not
+     * running.
+     */
+    synchronized InetSocketAddress getAddress() {
+        return this.server != null ? this.server.getAddress() : null;
+    }
+
+    /**
+     * Serve the given data from now on. The map must not be modified later,
+     * it's read without locking while it's being served.
+     * @param data Most recently collected data.
+     */
+    void update(Map<NamespacedKey, Object> data) {
+        this.data = Objects.requireNonNull(data, "data");
+        this.generation++;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1L);
+                return;
+            }
+
+            synchronized (this) {
+                this.renderIfStale();
+
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1L);
+                    return;
+                }
+
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, this.buffer.size());
+                try (OutputStream outputStream = exchange.getResponseBody()) {
+                    this.buffer.writeTo(outputStream);
+                }
+            }
+        } catch (Throwable throwable) {
+            this.logger.log(Level.WARNING, "Could not serve metrics scrape", throwable);
+            throw throwable;
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void renderIfStale() throws IOException {
+        long generation = this.generation;
+        long now = System.nanoTime();
+        if (generation == this.renderedGeneration && now - this.renderedAt < MAX_AGE.toNanos()) {
+            return;
+        }
+
+        this.buffer.reset();
+        this.families.clear();
+        this.render(this.buffer.writer(), this.data);
+        this.renderedGeneration = generation;
+        this.renderedAt = now;
+    }
+
+    //
+    // Rendering
+    //
+
+    private void render(Writer writer, Map<NamespacedKey, Object> data) throws IOException {
+        // sources win over data put under the same key, as in reports
+        for (MetricSourceRegistry.Registration registration : this.sources.getRegistrations()) {
+            try {
+                this.renderSource(writer, registration.key, registration.source);
+            } catch (RuntimeException e) {
+                this.logger.log(Level.FINE, "Could not render " + registration.key.toString(), e);
+            }
+        }
+
+        // no lock, the map is complete before it's handed to update() and
+        // only ever read from then on, the volatile field publishes it
+        for (Map.Entry<NamespacedKey, Object> entry : data.entrySet()) {
+            if (!this.sources.contains(entry.getKey())) {
+                this.renderValue(writer, name(entry.getKey()), entry.getValue());
+            }
+        }
+
+        writer.write("# EOF\n");
+        writer.flush();
+    }
+
+    private void renderSource(Writer writer, NamespacedKey key, MetricSource source) throws IOException {
+        String name = name(key);
+        if (source instanceof Counter) {
+            if (this.family(writer, name, "counter")) {
+                this.sample(writer, name + "_total", null, null, Long.toString(((Counter) source).cumulative()));
+            }
+        } else if (source instanceof Histogram) {
+            if (this.family(writer, name, "histogram")) {
+                this.renderHistogram(writer, name, (Histogram) source);
+            }
+        } else if (source instanceof MetricSource.LongGauge) {
+            this.renderValue(writer, name, ((MetricSource.LongGauge) source).getAsLong());
+        } else if (source instanceof MetricSource.DoubleGauge) {
+            this.renderValue(writer, name, ((MetricSource.DoubleGauge) source).getAsDouble());
+        } else if (source instanceof MetricSource.Text) {
+            this.renderValue(writer, name, ((MetricSource.Text) source).get());
+        } else if (source instanceof MetricSource.Structured) {
+            this.renderValue(writer, name, ((MetricSource.Structured) source).get());
+        }
+    }
+
+    /**
+     * Numbers and booleans become gauges, strings become info metrics and
+     * maps of numbers become gauges labelled by their keys. Anything else
+     * has no sensible representation and is left out.
+     */
+    private void renderValue(Writer writer, String name, Object value) throws IOException {
+        if (value instanceof Number || value instanceof Boolean) {
+            if (this.family(writer, name, "gauge")) {
+                this.sample(writer, name, null, null, number(value));
+            }
+        } else if (value instanceof CharSequence) {
+            if (this.family(writer, name, "info")) {
+                this.sample(writer, name + "_info", "value", value.toString(), "1");
+            }
+        } else if (value instanceof Map) {
+            boolean declared = false;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                Object field = entry.getValue();
+                if (entry.getKey() == null || !(field instanceof Number || field instanceof Boolean)) {
+                    continue;
+                }
+
+                if (!declared) {
+                    if (!this.family(writer, name, "gauge")) {
+                        return;
+                    }
+                    declared = true;
+                }
+                this.sample(writer, name, "field", entry.getKey().toString(), number(field));
+            }
+        }
+    }
+
+    /**
+     * Buckets are merged per power of two, the fine-grained ones would make
+     * scrapes needlessly large.
+     */
+    private void renderHistogram(Writer writer, String name, Histogram histogram) throws IOException {
+        long[] counts = this.histogramCounts;
+        long sum = histogram.cumulative(counts);
+
+        long total = 0L;
+        for (long count : counts) {
+            total += count;
+        }
+
+        long cumulative = 0L;
+        for (int bucket = 0; bucket < Histogram.BUCKETS; bucket++) {
+            cumulative += counts[bucket];
+            if (bucket % Histogram.SUB_BUCKETS == Histogram.SUB_BUCKETS - 1) {
+                String le = Histogram.upperBound(bucket) + ".0";
+                this.sample(writer, name + "_bucket", "le", le, Long.toString(cumulative));
+
+                if (cumulative == total) {
+                    break; // the rest are all the same
+                }
+            }
+        }
+
+        this.sample(writer, name + "_bucket", "le", "+Inf", Long.toString(total));
+        this.sample(writer, name + "_count", null, null, Long.toString(total));
+        this.sample(writer, name + "_sum", null, null, Long.toString(sum));
+    }
+
+    /**
+     * Declare a metric family.
+     * @return Whether the family was declared, {@code false} if the name is
+     * already taken.
+     */
+    private boolean family(Writer writer, String name, String type) throws IOException {
+        if (!this.families.add(name)) {
+            return false;
+        }
+
+        writer.write("# TYPE ");
+        writer.write(name);
+        writer.write(' ');
+        writer.write(type);
+        writer.write('\n');
+        return true;
+    }
+
+    private void sample(Writer writer, String name, String label, String labelValue, String value) throws IOException {
+        writer.write(name);
+        if (label != null) {
+            writer.write('{');
+            writer.write(label);
+            writer.write("=\"");
+            escape(writer, labelValue);
+            writer.write("\"}");
+        }
+        writer.write(' ');
+        writer.write(value);
+        writer.write('\n');
+    }
+
+    private static void escape(Writer writer, String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                writer.write("\\\\");
+            } else if (c == '"') {
+                writer.write("\\\"");
+            } else if (c == '\n') {
+                writer.write("\\n");
+            } else {
+                writer.write(c);
+            }
+        }
+    }
+
+    private static String number(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value ? "1" : "0";
+        }
+
+        double asDouble = ((Number) value).doubleValue();
+        if (Double.isNaN(asDouble)) {
+            return "NaN";
+        } else if (Double.isInfinite(asDouble)) {
+            return asDouble > 0 ? "+Inf" : "-Inf";
+        } else if (value instanceof Double || value instanceof Float) {
+            return Double.toString(asDouble);
+        }
+        return value.toString();
+    }
+
+    /**
+     * Metric names may only consist of letters, digits, underscores and
+     * colons, and must not start with a digit.
+     */
+    static String name(NamespacedKey key) {
+        String raw = key.getNamespace() + "_" + key.getKey();
+
+        StringBuilder builder = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' ||
+                    (c >= '0' && c <= '9' && i != 0);
+            builder.append(valid ? c : '_');
+        }
+        return builder.toString();
+    }
+}
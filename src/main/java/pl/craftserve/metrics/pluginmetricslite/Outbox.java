@@ -0,0 +1,527 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only spool of reports which could not be submitted.
+ *
+ * Reports are stored in segment files inside a single directory. Every
+ * segment starts with a header holding its sequence number and the position
+ * of the first record which was not replayed yet, followed by records of the
+ * form {@code [length][crc32][report]}. Torn records at the end of a segment
+ * are cut off when the outbox is opened, a torn header makes the whole
+ * segment replay again. Delivery is therefore at-least-once, the endpoint can
+ * deduplicate reports by their ID.
+ *
+ * Once the outbox grows beyond its size limit the oldest segments are
+ * deleted, even if they were not replayed yet.
+ *
+ * Every shaded copy of this library spools into the same directory, so the
+ * outbox is only opened while holding an exclusive lock on its lock file.
+ * While another copy, in this or another process, holds the lock the outbox
+ * is {@link #isAvailable() unavailable}: it appears empty and refuses new
+ * reports.
+ */
+public class Outbox {
+    private static final File DIRECTORY = new File("csrv-plugin-metrics-outbox");
+    private static final long DEFAULT_MAX_BYTES = 16L * 1024L * 1024L;
+    private static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String LOCK_FILE = "outbox.lock";
+    private static final int MAGIC = 0x43534d4f; // CSMO
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final File directory;
+    private final long maxBytes;
+    private final int segmentSize;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private boolean opened;
+    private long totalBytes;
+
+    private Segment cursorSegment;
+    private long cursorPosition;
+    private int[] peekedLengths = new int[16];
+    private int peekedCount;
+
+    public Outbox(File directory, long maxBytes, int segmentSize) {
+        this.directory = Objects.requireNonNull(directory, "directory");
+        if (segmentSize <= HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize is too small");
+        } else if (maxBytes < segmentSize) {
+            throw new IllegalArgumentException("maxBytes must not be smaller than segmentSize");
+        }
+
+        this.maxBytes = maxBytes;
+        this.segmentSize = segmentSize;
+    }
+
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Spool the given report at the end of the outbox. Reports which were
+     * peeked but not removed yet are {@link #rewind()}ed.
+     * @param report Encoded report.
+     * @return {@code false} if the report is too big to ever fit a segment,
+     * or the outbox is unavailable.
+     */
+    public synchronized boolean append(ReportBuffer report) throws IOException {
+        Objects.requireNonNull(report, "report");
+        if (!this.open()) {
+            return false;
+        }
+        this.rewind(); // eviction may delete peeked segments
+
+        int recordSize = RECORD_HEADER_SIZE + report.size();
+        if (HEADER_SIZE + recordSize > this.segmentSize) {
+            return false;
+        }
+
+        Segment segment = this.segments.peekLast();
+        if (segment == null || segment.size + recordSize > this.segmentSize) {
+            segment = this.createSegment(segment == null ? 0L : segment.sequence + 1L);
+        }
+
+        this.crc.reset();
+        report.update(this.crc);
+
+        this.recordHeader.clear();
+        this.recordHeader.putInt(report.size()).putInt((int) this.crc.getValue()).flip();
+
+        try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer[] record = { this.recordHeader, report.asByteBuffer() };
+
+            long position = segment.size;
+            long end = position + recordSize;
+            while (position < end) {
+                channel.position(position);
+                position += channel.write(record);
+            }
+
+            channel.force(false);
+        }
+
+        segment.size += recordSize;
+        this.totalBytes += recordSize;
+
+        while (this.totalBytes > this.maxBytes && this.segments.size() > 1) {
+            this.deleteSegment(this.segments.peekFirst()); // evict oldest
+        }
+        return true;
+    }
+
+    /**
+     * Read the next report which was not {@link #remove()}d yet. Successive
+     * calls return successive reports, until they are either removed or
+     * {@link #rewind()}ed.
+     * @param into Buffer to read the report into, it is reset first.
+     * @return {@code false} if there are no more reports.
+     */
+    public synchronized boolean peek(ReportBuffer into) throws IOException {
+        Objects.requireNonNull(into, "into");
+        into.reset();
+        if (!this.open()) {
+            return false;
+        }
+
+        for (Segment segment : this.segments) {
+            Segment cursor = this.cursorSegment;
+            if (cursor != null && segment.sequence < cursor.sequence) {
+                continue; // already peeked
+            }
+
+            long position = segment == cursor ? this.cursorPosition : segment.readPosition;
+            if (position >= segment.size) {
+                continue;
+            }
+
+            int length;
+            try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+                length = this.readRecord(channel, position, segment.size, into);
+            }
+
+            if (length < 0) {
+                // modified behind our back, give up on the rest of this segment
+                this.totalBytes -= segment.size - position;
+                segment.size = position;
+                continue;
+            }
+
+            if (this.peekedCount == this.peekedLengths.length) {
+                this.peekedLengths = Arrays.copyOf(this.peekedLengths, this.peekedCount << 1);
+            }
+            this.peekedLengths[this.peekedCount++] = length;
+
+            this.cursorSegment = segment;
+            this.cursorPosition = position + RECORD_HEADER_SIZE + length;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Remove all reports returned by {@link #peek(ReportBuffer)} since the
+     * last removal or {@link #rewind()}.
+     */
+    public synchronized void remove() throws IOException {
+        this.remove(this.peekedCount);
+    }
+
+    /**
+     * Remove the given number of the first reports returned by
+     * {@link #peek(ReportBuffer)} since the last removal or {@link #rewind()},
+     * the rest of them will be peeked again.
+     * @param count Number of reports to remove.
+     */
+    public synchronized void remove(int count) throws IOException {
+        if (count < 0 || count > this.peekedCount) {
+            throw new IllegalArgumentException("count must be between 0 and " + this.peekedCount);
+        }
+
+        Segment dirty = null;
+        for (int i = 0; i < count; i++) {
+            Segment segment;
+            while ((segment = this.segments.peekFirst()) != null && segment.readPosition >= segment.size) {
+                this.deleteSegment(segment);
+            }
+
+            if (segment == null) {
+                throw new IllegalStateException("Peeked reports are gone");
+            }
+
+            long recordSize = RECORD_HEADER_SIZE + this.peekedLengths[i];
+            segment.readPosition += recordSize;
+            this.totalBytes -= recordSize;
+
+            if (segment.readPosition >= segment.size) {
+                this.deleteSegment(segment); // fully replayed
+                dirty = null;
+            } else {
+                dirty = segment;
+            }
+        }
+
+        if (dirty != null) {
+            this.updateHeader(dirty);
+        }
+
+        this.rewind();
+    }
+
+    /**
+     * Forget reports returned by {@link #peek(ReportBuffer)} since the last
+     * removal, so they will be peeked again.
+     */
+    public synchronized void rewind() {
+        this.peekedCount = 0;
+        this.cursorSegment = null;
+        this.cursorPosition = 0L;
+    }
+
+    public synchronized boolean isEmpty() throws IOException {
+        return !this.open() || this.totalBytes == 0L;
+    }
+
+    /**
+     * @return Number of bytes pending replay.
+     */
+    public synchronized long getPendingBytes() throws IOException {
+        return this.open() ? this.totalBytes : 0L;
+    }
+
+    /**
+     * Whether the outbox could be locked by this copy. The lock is retried
+     * on every call until it is taken.
+     * @return {@code false} if another copy holds the outbox.
+     */
+    public synchronized boolean isAvailable() throws IOException {
+        return this.open();
+    }
+
+    /**
+     * Release the lock, so other copies can take the outbox over. It is
+     * locked and read again on next use.
+     */
+    public synchronized void close() throws IOException {
+        this.rewind();
+        this.segments.clear();
+        this.totalBytes = 0L;
+        this.opened = false;
+
+        FileChannel lockChannel = this.lockChannel;
+        this.lock = null;
+        this.lockChannel = null;
+        if (lockChannel != null) {
+            lockChannel.close(); // releases the lock
+        }
+    }
+
+    //
+    // Segments
+    //
+
+    private boolean open() throws IOException {
+        if (this.opened) {
+            return true;
+        }
+
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Could not create outbox directory " + this.directory);
+        } else if (!this.lock()) {
+            return false;
+        }
+
+        File[] files = this.directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        List<Segment> found = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                Segment segment = this.recoverSegment(file);
+                if (segment != null) {
+                    found.add(segment);
+                }
+            }
+        }
+
+        Collections.sort(found);
+        for (Segment segment : found) {
+            this.segments.addLast(segment);
+            this.totalBytes += segment.size - segment.readPosition;
+        }
+
+        this.opened = true;
+        return true;
+    }
+
+    /**
+     * @return Whether this copy holds the lock now.
+     */
+    private boolean lock() throws IOException {
+        if (this.lock != null) {
+            return true;
+        }
+
+        FileChannel channel = FileChannel.open(new File(this.directory, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = null;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another copy in this process
+        } finally {
+            if (lock == null) {
+                channel.close();
+            }
+        }
+
+        if (lock == null) {
+            return false;
+        }
+
+        this.lockChannel = channel;
+        this.lock = lock;
+        return true;
+    }
+
+    private Segment recoverSegment(File file) throws IOException {
+        Segment segment;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = this.recoverSegment(file, channel);
+        }
+
+        if (segment == null) {
+            Files.deleteIfExists(file.toPath());
+        }
+        return segment;
+    }
+
+    /**
+     * @return Recovered segment, or {@code null} if the file is not a segment.
+     */
+    private Segment recoverSegment(File file, FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+
+        this.header.clear();
+        if (fileSize < HEADER_SIZE || this.readFully(channel, this.header, 0L) < HEADER_SIZE ||
+                this.header.getInt(0) != MAGIC || this.header.getInt(4) != VERSION) {
+            return null;
+        }
+
+        Segment segment = new Segment(file, this.header.getLong(8));
+        segment.readPosition = HEADER_SIZE;
+
+        this.crc.reset();
+        this.crc.update(this.header.array(), 0, 24);
+        if ((int) this.crc.getValue() == this.header.getInt(24)) {
+            segment.readPosition = Math.max(HEADER_SIZE, this.header.getLong(16));
+        } // else the header was torn, replay the whole segment
+
+        // find the end of the last intact record, cut off whatever follows
+        ReportBuffer scratch = new ReportBuffer();
+        long position = segment.readPosition;
+        int length;
+        while (position < fileSize && (length = this.readRecord(channel, position, fileSize, scratch)) >= 0) {
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        if (position < fileSize) {
+            channel.truncate(Math.max(position, HEADER_SIZE));
+        }
+
+        segment.size = Math.max(position, HEADER_SIZE);
+        return segment;
+    }
+
+    private Segment createSegment(long sequence) throws IOException {
+        Segment segment = new Segment(new File(this.directory, String.format("%016x", sequence) + SEGMENT_SUFFIX), sequence);
+        segment.readPosition = HEADER_SIZE;
+        segment.size = HEADER_SIZE;
+
+        try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            this.writeHeader(channel, segment);
+            channel.force(true);
+        }
+
+        this.segments.addLast(segment);
+        return segment;
+    }
+
+    private void deleteSegment(Segment segment) throws IOException {
+        this.segments.remove(segment);
+        this.totalBytes -= segment.size - segment.readPosition;
+        Files.deleteIfExists(segment.file.toPath());
+    }
+
+    private void updateHeader(Segment segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.WRITE)) {
+            this.writeHeader(channel, segment);
+        }
+    }
+
+    private void writeHeader(FileChannel channel, Segment segment) throws IOException {
+        ByteBuffer header = this.header;
+        header.clear();
+        header.putInt(MAGIC).putInt(VERSION).putLong(segment.sequence).putLong(segment.readPosition);
+
+        this.crc.reset();
+        this.crc.update(header.array(), 0, header.position());
+        header.putInt((int) this.crc.getValue()).putInt(0).flip();
+
+        long position = 0L;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+    }
+
+    /**
+     * @return Length of the record, or -1 if the record is torn or corrupt.
+     */
+    private int readRecord(FileChannel channel, long position, long limit, ReportBuffer into) throws IOException {
+        if (position + RECORD_HEADER_SIZE > limit) {
+            return -1;
+        }
+
+        this.recordHeader.clear();
+        if (this.readFully(channel, this.recordHeader, position) < RECORD_HEADER_SIZE) {
+            return -1;
+        }
+
+        int length = this.recordHeader.getInt(0);
+        int checksum = this.recordHeader.getInt(4);
+        if (length < 0 || position + RECORD_HEADER_SIZE + length > limit) {
+            return -1;
+        }
+
+        into.reset();
+        ByteBuffer target = into.allocate(length);
+        if (this.readFully(channel, target, position + RECORD_HEADER_SIZE) < length) {
+            into.reset();
+            return -1;
+        }
+
+        this.crc.reset();
+        into.update(this.crc);
+        if ((int) this.crc.getValue() != checksum) {
+            into.reset();
+            return -1;
+        }
+
+        return length;
+    }
+
+    private int readFully(FileChannel channel, ByteBuffer target, long position) throws IOException {
+        int read = 0;
+        while (target.hasRemaining()) {
+            int count = channel.read(target, position + read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        return read;
+    }
+
+    private static class Segment implements Comparable<Segment> {
+        final File file;
+        final long sequence;
+        long readPosition;
+        long size;
+
+        Segment(File file, long sequence) {
+            this.file = Objects.requireNonNull(file, "file");
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Segment o) {
+            return Long.compare(this.sequence, o.sequence);
+        }
+    }
+
+    public static Outbox create() {
+        return new Outbox(DIRECTORY, DEFAULT_MAX_BYTES, DEFAULT_SEGMENT_SIZE);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import org.bukkit.NamespacedKey;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps a single report within its size limits.
+ *
+ * Every value is written under a limit of its own, and the payload as a
+ * whole under another one, both enforced by the {@link ReportWriter} while
+ * the value streams. A value which doesn't fit is dropped rather than the
+ * whole report. Values are written in the order of their {@link Priority},
+ * so the ones dropped once the payload fills up are the least important.
+ * Dropped keys are listed in the report, so contributors of oversized values
+ * can be told apart.
+ */
+class PayloadBudget {
+    static final int DEFAULT_MAX_PAYLOAD_SIZE = 256 * 1024;
+    static final int DEFAULT_MAX_VALUE_SIZE = 32 * 1024;
+    /**
+     * Room left after the payload, for the keys removed since the previous
+     * report, the keys dropped from this one and closing the report.
+     */
+    static final int TAIL_SIZE = 4 * 1024;
+
+    /**
+     * Order values are written in, the most important first.
+     */
+    enum Priority {
+        /**
+         * Entities of {@link DefaultEntities}, what reports exist for.
+         */
+        CORE,
+        /**
+         * Anything else in the namespaces of this library, such as samplers.
+         */
+        BUILT_IN,
+        /**
+         * Values of plugins, through listeners and metric sources.
+         */
+        CONTRIBUTED
+    }
+
+    enum Reason {
+        /**
+         * The value alone exceeds its limit.
+         */
+        VALUE_TOO_LARGE("value_too_large"),
+        /**
+         * The value would make the payload exceed its limit.
+         */
+        PAYLOAD_FULL("payload_full");
+
+        private final String key;
+
+        Reason(String key) {
+            this.key = Objects.requireNonNull(key, "key");
+        }
+
+        String getKey() {
+            return this.key;
+        }
+    }
+
+    private final int maxPayloadSize;
+    private final int maxValueSize;
+    private final Map<NamespacedKey, Reason> dropped = new LinkedHashMap<>();
+
+    /**
+     * @param maxPayloadSize Size the whole report must not exceed, in bytes.
+     * @param maxValueSize Size a single value must not exceed, in bytes.
+     */
+    PayloadBudget(int maxPayloadSize, int maxValueSize) {
+        if (maxPayloadSize <= TAIL_SIZE) {
+            throw new IllegalArgumentException("maxPayloadSize must be greater than " + TAIL_SIZE);
+        } else if (maxValueSize <= 0) {
+            throw new IllegalArgumentException("maxValueSize must be positive");
+        }
+
+        this.maxPayloadSize = maxPayloadSize;
+        this.maxValueSize = maxValueSize;
+    }
+
+    int getMaxPayloadSize() {
+        return this.maxPayloadSize;
+    }
+
+    int getMaxValueSize() {
+        return this.maxValueSize;
+    }
+
+    /**
+     * @return Size the report must not exceed until the payload is written.
+     */
+    int getPayloadLimit() {
+        return this.maxPayloadSize - TAIL_SIZE;
+    }
+
+    /**
+     * Keys removed since the previous report take half of what's left of the
+     * report at most, the rest is left for the dropped ones.
+     * @param start Size of the report when the removed keys start.
+     * @return Size the report must not exceed while removed keys are written.
+     */
+    int getRemovedLimit(int start) {
+        return start + Math.max(0, this.maxPayloadSize - start) / 2;
+    }
+
+    /**
+     * Names of keys take half of what's left of the payload at most, the
+     * rest is left for values.
+     * @param start Size of the report when the names start.
+     * @return Size the report must not exceed while names are written.
+     */
+    int getNamesLimit(int start) {
+        return start + Math.max(0, this.getPayloadLimit() - start) / 2;
+    }
+
+    /**
+     * @param start Size of the report when the value starts.
+     * @return Size the report must not exceed while the value is written.
+     */
+    int getValueLimit(int start) {
+        return (int) Math.min(this.getPayloadLimit(), (long) start + this.maxValueSize);
+    }
+
+    /**
+     * @param start Size of the report when the value started.
+     * @param end Size of the report when the value ended, or would have.
+     * @return Why the value doesn't fit, or {@code null} if it does.
+     */
+    Reason check(int start, long end) {
+        if (end - start > this.maxValueSize) {
+            return Reason.VALUE_TOO_LARGE;
+        } else if (end > this.getPayloadLimit()) {
+            return Reason.PAYLOAD_FULL;
+        }
+        return null;
+    }
+
+    void drop(NamespacedKey key, Reason reason) {
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(reason, "reason");
+        this.dropped.put(key, reason);
+    }
+
+    /**
+     * @return Keys dropped from the report, in the order they were dropped.
+     */
+    Map<NamespacedKey, Reason> getDropped() {
+        return Collections.unmodifiableMap(this.dropped);
+    }
+}
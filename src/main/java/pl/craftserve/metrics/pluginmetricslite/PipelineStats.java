@@ -0,0 +1,304 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import org.bukkit.NamespacedKey;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Cost of the reporting pipeline itself. Durations of every stage are kept
+ * in a ring of the most recent {@value #WINDOW} samples, percentiles are
+ * computed only when read.
+ *
+ * Published in the {@value #NAMESPACE} namespace of every report, and through
+ * JMX when {@link MetricsLite#setJmxEnabled(boolean)} is set.
+ */
+public class PipelineStats implements PipelineStatsMXBean {
+    public static final String NAMESPACE = "metricslite";
+    private static final NamespacedKey REPORTS_COLLECTED = key("reports_collected");
+    private static final NamespacedKey REPORTS_SUBMITTED = key("reports_submitted");
+    private static final NamespacedKey REPORTS_SPOOLED = key("reports_spooled");
+    private static final NamespacedKey REPORTS_DROPPED = key("reports_dropped");
+    private static final NamespacedKey SUBMIT_FAILURES = key("submit_failures");
+    private static final NamespacedKey SKIPPED_TICKS = key("skipped_ticks");
+    private static final NamespacedKey PAYLOAD_BYTES = key("payload_bytes");
+    private static final NamespacedKey[] STAGE_KEYS = Arrays.stream(Stage.values())
+            .map(stage -> key(stage.getKey()))
+            .toArray(NamespacedKey[]::new);
+
+    private static final int WINDOW = 128;
+
+    public enum Stage {
+        /**
+         * Collection of all data, including {@link #LISTENERS}.
+         */
+        COLLECT("collect"),
+        /**
+         * Listeners of {@link MetricSubmitEvent}.
+         */
+        LISTENERS("listeners"),
+        /**
+         * Serialization of a collected report.
+         */
+        SERIALIZE("serialize"),
+        /**
+         * A single request to the endpoint, whether it succeeded or not.
+         */
+        SUBMIT("submit");
+
+        private final String key;
+
+        Stage(String key) {
+            this.key = Objects.requireNonNull(key, "key");
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+    }
+
+    private final Window[] windows = new Window[Stage.values().length];
+
+    private final LongAdder reportsCollected = new LongAdder();
+    private final LongAdder reportsSubmitted = new LongAdder();
+    private final LongAdder reportsSpooled = new LongAdder();
+    private final LongAdder reportsDropped = new LongAdder();
+    private final LongAdder submitFailures = new LongAdder();
+    private final LongAdder totalPayloadBytes = new LongAdder();
+    private final AtomicLong lastPayloadBytes = new AtomicLong();
+
+    private volatile LongSupplier skippedTicks = () -> 0L;
+
+    PipelineStats() {
+        for (int i = 0; i < this.windows.length; i++) {
+            this.windows[i] = new Window();
+        }
+    }
+
+    //
+    // Recording
+    //
+
+    void record(Stage stage, long nanos) {
+        Objects.requireNonNull(stage, "stage");
+        this.windows[stage.ordinal()].add(nanos);
+    }
+
+    void recordCollected(int payloadBytes) {
+        this.reportsCollected.increment();
+        this.totalPayloadBytes.add(payloadBytes);
+        this.lastPayloadBytes.set(payloadBytes);
+    }
+
+    void recordSubmitted(int reports) {
+        this.reportsSubmitted.add(reports);
+    }
+
+    void recordSpooled() {
+        this.reportsSpooled.increment();
+    }
+
+    void recordDropped() {
+        this.reportsDropped.increment();
+    }
+
+    void recordFailure() {
+        this.submitFailures.increment();
+    }
+
+    void setSkippedTicks(LongSupplier skippedTicks) {
+        this.skippedTicks = Objects.requireNonNull(skippedTicks, "skippedTicks");
+    }
+
+    //
+    // Reading
+    //
+
+    public StageSnapshot getStage(Stage stage) {
+        Objects.requireNonNull(stage, "stage");
+        return this.windows[stage.ordinal()].snapshot();
+    }
+
+    @Override
+    public StageSnapshot getCollect() {
+        return this.getStage(Stage.COLLECT);
+    }
+
+    @Override
+    public StageSnapshot getListeners() {
+        return this.getStage(Stage.LISTENERS);
+    }
+
+    @Override
+    public StageSnapshot getSerialize() {
+        return this.getStage(Stage.SERIALIZE);
+    }
+
+    @Override
+    public StageSnapshot getSubmit() {
+        return this.getStage(Stage.SUBMIT);
+    }
+
+    @Override
+    public long getReportsCollected() {
+        return this.reportsCollected.sum();
+    }
+
+    @Override
+    public long getReportsSubmitted() {
+        return this.reportsSubmitted.sum();
+    }
+
+    @Override
+    public long getReportsSpooled() {
+        return this.reportsSpooled.sum();
+    }
+
+    @Override
+    public long getReportsDropped() {
+        return this.reportsDropped.sum();
+    }
+
+    @Override
+    public long getSubmitFailures() {
+        return this.submitFailures.sum();
+    }
+
+    @Override
+    public long getLastPayloadBytes() {
+        return this.lastPayloadBytes.get();
+    }
+
+    @Override
+    public long getTotalPayloadBytes() {
+        return this.totalPayloadBytes.sum();
+    }
+
+    @Override
+    public long getSkippedTicks() {
+        return this.skippedTicks.getAsLong();
+    }
+
+    /**
+     * Put the statistics in the {@value #NAMESPACE} namespace of a report.
+     * Stages are reported in microseconds.
+     */
+    void append(Map<NamespacedKey, Object> data) {
+        Objects.requireNonNull(data, "data");
+
+        for (Stage stage : Stage.values()) {
+            StageSnapshot snapshot = this.getStage(stage);
+            if (snapshot.getCount() == 0L) {
+                continue;
+            }
+
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("count", snapshot.getCount());
+            values.put("p50_us", snapshot.getP50Nanos() / 1000L);
+            values.put("p99_us", snapshot.getP99Nanos() / 1000L);
+            values.put("max_us", snapshot.getMaxNanos() / 1000L);
+            data.put(STAGE_KEYS[stage.ordinal()], values);
+        }
+
+        data.put(REPORTS_COLLECTED, this.getReportsCollected());
+        data.put(REPORTS_SUBMITTED, this.getReportsSubmitted());
+        data.put(REPORTS_SPOOLED, this.getReportsSpooled());
+        data.put(REPORTS_DROPPED, this.getReportsDropped());
+        data.put(SUBMIT_FAILURES, this.getSubmitFailures());
+        data.put(SKIPPED_TICKS, this.getSkippedTicks());
+        data.put(PAYLOAD_BYTES, this.getLastPayloadBytes());
+    }
+
+    private static NamespacedKey key(String key) {
+        Objects.requireNonNull(key, "key");
+        return new NamespacedKey(NAMESPACE, key);
+    }
+
+    /**
+     * Statistics of the most recent samples of a single stage.
+     */
+    public static final class StageSnapshot {
+        private final long count;
+        private final long p50Nanos;
+        private final long p99Nanos;
+        private final long maxNanos;
+
+        StageSnapshot(long count, long p50Nanos, long p99Nanos, long maxNanos) {
+            this.count = count;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        /**
+         * @return Number of samples since the start, not only in the window.
+         */
+        public long getCount() {
+            return this.count;
+        }
+
+        public long getP50Nanos() {
+            return this.p50Nanos;
+        }
+
+        public long getP99Nanos() {
+            return this.p99Nanos;
+        }
+
+        public long getMaxNanos() {
+            return this.maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + this.count + ", p50=" + this.p50Nanos / 1000L + "us, p99=" +
+                    this.p99Nanos / 1000L + "us, max=" + this.maxNanos / 1000L + "us";
+        }
+    }
+
+    private static class Window {
+        private final long[] samples = new long[WINDOW];
+        private long count;
+
+        synchronized void add(long nanos) {
+            this.samples[(int) (this.count++ % WINDOW)] = Math.max(0L, nanos);
+        }
+
+        synchronized StageSnapshot snapshot() {
+            int size = (int) Math.min(this.count, WINDOW);
+            if (size == 0) {
+                return new StageSnapshot(0L, 0L, 0L, 0L);
+            }
+
+            long[] sorted = Arrays.copyOf(this.samples, size);
+            Arrays.sort(sorted);
+            return new StageSnapshot(this.count, percentile(sorted, 0.5), percentile(sorted, 0.99), sorted[size - 1]);
+        }
+
+        private static long percentile(long[] sorted, double percentile) {
+            int rank = (int) Math.ceil(percentile * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+    }
+}
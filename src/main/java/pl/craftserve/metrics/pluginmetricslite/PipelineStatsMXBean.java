@@ -0,0 +1,46 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+/**
+ * JMX view of {@link PipelineStats}.
+ */
+public interface PipelineStatsMXBean {
+    PipelineStats.StageSnapshot getCollect();
+
+    PipelineStats.StageSnapshot getListeners();
+
+    PipelineStats.StageSnapshot getSerialize();
+
+    PipelineStats.StageSnapshot getSubmit();
+
+    long getReportsCollected();
+
+    long getReportsSubmitted();
+
+    long getReportsSpooled();
+
+    long getReportsDropped();
+
+    long getSubmitFailures();
+
+    long getLastPayloadBytes();
+
+    long getTotalPayloadBytes();
+
+    long getSkippedTicks();
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.zip.Checksum;
+
+/**
+ * Growable byte buffer holding a single encoded report. Buffers are meant to
+ * be borrowed from a {@link Pool} and given back once the report has been
+ * handed over to the endpoint, so the backing array survives between ticks.
+ */
+public class ReportBuffer extends ByteArrayOutputStream {
+    public static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    private final Writer writer = new OutputStreamWriter(this, CHARSET);
+
+    public ReportBuffer() {
+        super(INITIAL_CAPACITY);
+    }
+
+    /**
+     * UTF-8 writer appending to this buffer. Characters are buffered by the
+     * encoder, so the writer must be flushed before {@link #size()} is read.
+     * @return Writer appending to this buffer.
+     */
+    Writer writer() {
+        return this.writer;
+    }
+
+    /**
+     * Drop everything written after the given length.
+     * @param length Length to rewind to, must not exceed {@link #size()}.
+     */
+    synchronized void rewind(int length) {
+        if (length < 0 || length > this.count) {
+            throw new IndexOutOfBoundsException("length " + length + " out of 0.." + this.count);
+        }
+
+        this.count = length;
+    }
+
+    int capacity() {
+        return this.buf.length;
+    }
+
+    /**
+     * Grow this buffer by the given number of bytes.
+     * @param length Number of bytes to append.
+     * @return View of the appended region, to be filled by the caller.
+     */
+    synchronized ByteBuffer allocate(int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length must not be negative");
+        }
+
+        int offset = this.count;
+        if (offset + length > this.buf.length) {
+            this.buf = Arrays.copyOf(this.buf, Math.max(offset + length, this.buf.length << 1));
+        }
+
+        this.count = offset + length;
+        return ByteBuffer.wrap(this.buf, offset, length);
+    }
+
+    /**
+     * Backing array of this buffer, valid up to {@link #size()}. This is not
+     * a copy, it must not be modified and is only valid until the buffer is
+     * written to again.
+     */
+    synchronized byte[] array() {
+        return this.buf;
+    }
+
+    /**
+     * @return Read-only view of the content of this buffer.
+     */
+    synchronized ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(this.buf, 0, this.count).asReadOnlyBuffer();
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the content written after the given offset.
+     * @param offset Offset of the first byte to hash.
+     * @return Hash of the given region.
+     */
+    synchronized long fingerprint(int offset) {
+        if (offset < 0 || offset > this.count) {
+            throw new IndexOutOfBoundsException("offset " + offset + " out of 0.." + this.count);
+        }
+
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < this.count; i++) {
+            hash ^= this.buf[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    synchronized void update(Checksum checksum) {
+        Objects.requireNonNull(checksum, "checksum");
+        checksum.update(this.buf, 0, this.count);
+    }
+
+    /**
+     * Write the content of this buffer without copying it first.
+     * @param outputStream Stream to write to.
+     */
+    public synchronized void writeTo(OutputStream outputStream) throws IOException {
+        Objects.requireNonNull(outputStream, "outputStream");
+        outputStream.write(this.buf, 0, this.count);
+    }
+
+    /**
+     * Small pool of {@link ReportBuffer}s. Buffers which grew beyond the
+     * retained capacity are released to the garbage collector instead, so a
+     * single oversized report doesn't pin its array for the process lifetime.
+     */
+    public static class Pool {
+        private static final int DEFAULT_MAX_POOLED = 4;
+        private static final int DEFAULT_MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+        private final Deque<ReportBuffer> free = new ConcurrentLinkedDeque<>();
+        private final int maxPooled;
+        private final int maxRetainedCapacity;
+
+        public Pool() {
+            this(DEFAULT_MAX_POOLED, DEFAULT_MAX_RETAINED_CAPACITY);
+        }
+
+        public Pool(int maxPooled, int maxRetainedCapacity) {
+            if (maxPooled < 0) {
+                throw new IllegalArgumentException("maxPooled must not be negative");
+            } else if (maxRetainedCapacity < 0) {
+                throw new IllegalArgumentException("maxRetainedCapacity must not be negative");
+            }
+
+            this.maxPooled = maxPooled;
+            this.maxRetainedCapacity = maxRetainedCapacity;
+        }
+
+        public ReportBuffer acquire() {
+            ReportBuffer buffer = this.free.pollFirst();
+            return buffer != null ? buffer : new ReportBuffer();
+        }
+
+        public void release(ReportBuffer buffer) {
+            Objects.requireNonNull(buffer, "buffer");
+
+            buffer.reset();
+            if (buffer.capacity() <= this.maxRetainedCapacity && this.free.size() < this.maxPooled) {
+                this.free.offerFirst(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import org.bukkit.NamespacedKey;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Data of a single report, an array of values indexed by the {@link KeySchema}
+ * ID of their keys. Entries are iterated in the order of their IDs, which is
+ * the order their keys were first seen. Keys the schema has no room for are
+ * kept in a map and iterated last. Null values are not stored, putting one
+ * removes the key.
+ *
+ * Not thread-safe, {@link MetricSubmitEvent} hands it out synchronized.
+ */
+class ReportData extends AbstractMap<NamespacedKey, Object> {
+    private final KeySchema schema;
+    private Object[] values;
+    private Map<NamespacedKey, Object> overflow;
+    private int size;
+    private int modCount;
+
+    private Set<Map.Entry<NamespacedKey, Object>> entrySet;
+
+    ReportData(KeySchema schema) {
+        this.schema = Objects.requireNonNull(schema, "schema");
+        this.values = new Object[schema.size()];
+    }
+
+    @Override
+    public Object put(NamespacedKey key, Object value) {
+        Objects.requireNonNull(key, "key");
+        if (value == null) {
+            return this.remove(key);
+        }
+
+        int id = this.schema.id(key);
+        if (id < 0) {
+            return this.putOverflow(key, value);
+        } else if (id >= this.values.length) {
+            this.values = Arrays.copyOf(this.values, Math.max(id + 1, this.values.length << 1));
+        }
+
+        Object previous = this.values[id];
+        this.values[id] = value;
+        if (previous == null) {
+            this.size++;
+            this.modCount++;
+        }
+        return previous;
+    }
+
+    private Object putOverflow(NamespacedKey key, Object value) {
+        if (this.overflow == null) {
+            this.overflow = new LinkedHashMap<>();
+        }
+
+        Object previous = this.overflow.put(key, value);
+        if (previous == null) {
+            this.size++;
+            this.modCount++;
+        }
+        return previous;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int id = this.schema.find(key);
+        if (id < 0) {
+            return this.overflow != null ? this.overflow.get(key) : null;
+        }
+        return id < this.values.length ? this.values[id] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.get(key) != null;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int id = this.schema.find(key);
+        if (id < 0) {
+            Object previous = this.overflow != null ? this.overflow.remove(key) : null;
+            if (previous != null) {
+                this.size--;
+                this.modCount++;
+            }
+            return previous;
+        }
+        return id < this.values.length ? this.removeAt(id) : null;
+    }
+
+    private Object removeAt(int id) {
+        Object previous = this.values[id];
+        if (previous != null) {
+            this.values[id] = null;
+            this.size--;
+            this.modCount++;
+        }
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(this.values, null);
+        if (this.overflow != null) {
+            this.overflow.clear();
+        }
+        this.size = 0;
+        this.modCount++;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public Set<Map.Entry<NamespacedKey, Object>> entrySet() {
+        if (this.entrySet == null) {
+            this.entrySet = new AbstractSet<Map.Entry<NamespacedKey, Object>>() {
+                @Override
+                public Iterator<Map.Entry<NamespacedKey, Object>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return ReportData.this.size;
+                }
+
+                @Override
+                public void clear() {
+                    ReportData.this.clear();
+                }
+            };
+        }
+        return this.entrySet;
+    }
+
+    /**
+     * @return ID of the first value at or after the given ID, or -1 if there
+     * is none.
+     */
+    private int next(int from) {
+        Object[] values = this.values;
+        for (int id = from; id < values.length; id++) {
+            if (values[id] != null) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<NamespacedKey, Object>> {
+        private int next = ReportData.this.next(0);
+        private int last = -1;
+        private Iterator<Map.Entry<NamespacedKey, Object>> overflow;
+        private boolean lastOverflow;
+        private int expectedModCount = ReportData.this.modCount;
+
+        @Override
+        public boolean hasNext() {
+            return this.next >= 0 || this.overflow().hasNext();
+        }
+
+        @Override
+        public Map.Entry<NamespacedKey, Object> next() {
+            if (ReportData.this.modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            } else if (this.next < 0) {
+                Map.Entry<NamespacedKey, Object> entry = this.overflow().next();
+                this.last = -1;
+                this.lastOverflow = true;
+                return entry;
+            }
+
+            this.last = this.next;
+            this.next = ReportData.this.next(this.last + 1);
+            return new Entry(this.last);
+        }
+
+        @Override
+        public void remove() {
+            if (this.last < 0 && !this.lastOverflow) {
+                throw new IllegalStateException();
+            } else if (ReportData.this.modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            if (this.lastOverflow) {
+                this.overflow.remove();
+                ReportData.this.size--;
+                ReportData.this.modCount++;
+            } else {
+                ReportData.this.removeAt(this.last);
+            }
+            this.expectedModCount = ReportData.this.modCount;
+            this.last = -1;
+            this.lastOverflow = false;
+        }
+
+        /**
+         * Entries without IDs, once the array is exhausted.
+         */
+        private Iterator<Map.Entry<NamespacedKey, Object>> overflow() {
+            if (this.overflow == null) {
+                Map<NamespacedKey, Object> overflow = ReportData.this.overflow;
+                this.overflow = overflow != null ? overflow.entrySet().iterator() : Collections.emptyIterator();
+            }
+            return this.overflow;
+        }
+    }
+
+    private class Entry implements Map.Entry<NamespacedKey, Object> {
+        private final int id;
+
+        Entry(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public NamespacedKey getKey() {
+            return ReportData.this.schema.key(this.id);
+        }
+
+        @Override
+        public Object getValue() {
+            return ReportData.this.values[this.id];
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Objects.requireNonNull(value, "value");
+
+            Object previous = ReportData.this.values[this.id];
+            ReportData.this.values[this.id] = value;
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Map.Entry)) {
+                return false;
+            }
+
+            Map.Entry<?, ?> that = (Map.Entry<?, ?>) obj;
+            return this.getKey().equals(that.getKey()) && Objects.equals(this.getValue(), that.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return this.getKey().hashCode() ^ Objects.hashCode(this.getValue());
+        }
+
+        @Override
+        public String toString() {
+            return this.getKey() + "=" + this.getValue();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the collect and submit stages of reporting on their own threads.
+ *
+ * Ticks are spread over the interval by a phase offset derived from the
+ * server ID, and each tick is moved by a random jitter, so servers which
+ * restart at the same moment don't hit the endpoint in lockstep. Ticks are
+ * placed on a fixed timeline, so jitter and slow ticks don't accumulate
+ * drift. A tick which comes while the previous report is still being
+ * submitted is skipped rather than queued. When the interval changes the
+ * timeline is re-anchored at the last tick.
+ *
+ * @param <T> Type of data handed from the collect to the submit stage.
+ */
+class ReportScheduler<T> {
+    /**
+     * Maximum jitter of a single tick, as a fraction of the interval.
+     */
+    private static final double JITTER = 0.1;
+
+    private final Logger logger;
+    private final String name;
+    private final long phaseNanos;
+    private volatile long intervalNanos;
+
+    private final AtomicBoolean submitting = new AtomicBoolean();
+    private final AtomicLong skippedTicks = new AtomicLong();
+
+    private volatile ScheduledExecutorService collectExecutor;
+    private volatile ExecutorService submitExecutor;
+    private Supplier<T> collectStage;
+    private Consumer<T> submitStage;
+
+    private long anchorNanos;
+    private long anchorIntervalNanos;
+    private long tick;
+    private long deferredUntil;
+    private ScheduledFuture<?> next;
+    private long nextDueNanos;
+
+    ReportScheduler(Logger logger, String name, Duration interval, UUID serverId) {
+        this.logger = Objects.requireNonNull(logger, "logger");
+        this.name = Objects.requireNonNull(name, "name");
+        Objects.requireNonNull(interval, "interval");
+        Objects.requireNonNull(serverId, "serverId");
+
+        this.intervalNanos = interval.toNanos();
+        if (this.intervalNanos <= 0L) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+
+        long seed = serverId.getMostSignificantBits() ^ serverId.getLeastSignificantBits();
+        this.phaseNanos = Math.floorMod(seed, this.intervalNanos);
+    }
+
+    synchronized void start(Supplier<T> collectStage, Consumer<T> submitStage) {
+        Objects.requireNonNull(collectStage, "collectStage");
+        Objects.requireNonNull(submitStage, "submitStage");
+        if (this.collectExecutor != null) {
+            throw new IllegalStateException("Already started!");
+        }
+
+        this.collectStage = collectStage;
+        this.submitStage = submitStage;
+        this.collectExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory(this.name + "-Collector"));
+        this.submitExecutor = Executors.newSingleThreadExecutor(threadFactory(this.name + "-Submitter"));
+
+        this.anchorNanos = System.nanoTime() + this.phaseNanos;
+        this.anchorIntervalNanos = this.intervalNanos;
+        this.tick = 0L;
+        this.deferredUntil = this.anchorNanos;
+        this.scheduleNext();
+    }
+
+    /**
+     * Stop ticking and wait for the submit stage to settle.
+     * @param finalizer Run on the submit stage once the submission in
+     *                  progress, if any, completes.
+     * @param timeout How long to wait for the finalizer, the submit stage is
+     *                interrupted afterwards.
+     * @return Whether the finalizer completed in time.
+     */
+    boolean stop(Runnable finalizer, Duration timeout) {
+        Objects.requireNonNull(finalizer, "finalizer");
+        Objects.requireNonNull(timeout, "timeout");
+
+        ExecutorService submitExecutor;
+        synchronized (this) {
+            if (this.collectExecutor == null) {
+                throw new IllegalStateException("Not started!");
+            }
+
+            this.collectExecutor.shutdownNow();
+            submitExecutor = this.submitExecutor;
+            try {
+                submitExecutor.execute(finalizer);
+            } finally {
+                submitExecutor.shutdown();
+            }
+
+            this.collectExecutor = null;
+            this.submitExecutor = null;
+        }
+
+        // wait outside the lock, a collection in progress reschedules through it
+        try {
+            if (submitExecutor.awaitTermination(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        submitExecutor.shutdownNow();
+        return false;
+    }
+
+    Duration getInterval() {
+        return Duration.ofNanos(this.intervalNanos);
+    }
+
+    /**
+     * Change the interval, from when the next tick is planned on. Called by
+     * the collect stage, it applies to the tick right after.
+     */
+    void setInterval(Duration interval) {
+        Objects.requireNonNull(interval, "interval");
+        long intervalNanos = interval.toNanos();
+        if (intervalNanos <= 0L) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+
+        this.intervalNanos = intervalNanos;
+    }
+
+    /**
+     * Hold off ticking until the given delay passes, moving the next tick if
+     * it's due sooner.
+     */
+    synchronized void defer(Duration delay) {
+        Objects.requireNonNull(delay, "delay");
+
+        long until = System.nanoTime() + delay.toNanos();
+        if (until - this.deferredUntil > 0L) {
+            this.deferredUntil = until;
+        }
+
+        ScheduledFuture<?> next = this.next;
+        if (next != null && this.deferredUntil - this.nextDueNanos > 0L && next.cancel(false)) {
+            this.tick--; // planned again, after the deferral
+            this.scheduleNext();
+        }
+    }
+
+    /**
+     * @return Number of ticks skipped, because the previous report was still
+     * being submitted.
+     */
+    long getSkippedTicks() {
+        return this.skippedTicks.get();
+    }
+
+    private synchronized void scheduleNext() {
+        ScheduledExecutorService executor = this.collectExecutor;
+        if (executor == null || executor.isShutdown()) {
+            return;
+        }
+
+        long intervalNanos = this.intervalNanos;
+        if (intervalNanos != this.anchorIntervalNanos) {
+            // keep the ticks which already happened, continue at the new pace
+            this.anchorNanos += this.tick * this.anchorIntervalNanos;
+            this.anchorIntervalNanos = intervalNanos;
+            this.tick = 0L;
+        }
+
+        // skip ticks which are already gone instead of firing them back-to-back
+        long now = System.nanoTime();
+        long elapsed = Math.max(now, this.deferredUntil) - this.anchorNanos;
+        this.tick = Math.max(this.tick + 1L, elapsed / intervalNanos + 1L);
+
+        long jitter = (long) (ThreadLocalRandom.current().nextDouble(-JITTER, JITTER) * intervalNanos);
+        long due = this.anchorNanos + this.tick * intervalNanos + jitter;
+        if (due - this.deferredUntil < 0L) {
+            due = this.deferredUntil;
+        }
+
+        try {
+            this.next = executor.schedule(this::tick, Math.max(0L, due - now), TimeUnit.NANOSECONDS);
+            this.nextDueNanos = due;
+        } catch (RejectedExecutionException ignored) {
+            // stopped concurrently
+        }
+    }
+
+    private void tick() {
+        try {
+            if (!this.submitting.compareAndSet(false, true)) {
+                this.skippedTicks.incrementAndGet();
+                this.logger.warning("Previous report of " + this.name + " is still being submitted, skipping this one.");
+                return;
+            }
+
+            T collected;
+            try {
+                collected = this.collectStage.get();
+            } catch (Throwable throwable) {
+                this.submitting.set(false);
+                this.logger.log(Level.SEVERE, "Could not collect report for " + this.name, throwable);
+                return;
+            }
+
+            ExecutorService submitExecutor = this.submitExecutor;
+            if (submitExecutor == null) {
+                this.submitting.set(false); // stopped concurrently
+                return;
+            }
+
+            try {
+                submitExecutor.execute(() -> {
+                    try {
+                        this.submitStage.accept(collected);
+                    } catch (Throwable throwable) {
+                        this.logger.log(Level.SEVERE, "Could not submit report for " + this.name, throwable);
+                    } finally {
+                        this.submitting.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                this.submitting.set(false); // stopped concurrently
+            }
+        } finally {
+            this.scheduleNext();
+        }
+    }
+
+    /**
+     * Virtual threads where the runtime has them, daemon platform threads
+     * otherwise.
+     */
+    static ThreadFactory threadFactory(String name) {
+        Objects.requireNonNull(name, "name");
+
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+            // no virtual threads, or they are still a preview feature
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
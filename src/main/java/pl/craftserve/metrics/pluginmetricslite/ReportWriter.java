@@ -0,0 +1,168 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Streams a report straight into a {@link ReportBuffer}, in the format of
+ * the implementation.
+ *
+ * Everything written since a {@link #checkpoint()} can be discarded with
+ * {@link #rollback(long)}, so a value which failed to serialize halfway
+ * through doesn't corrupt the whole report.
+ *
+ * Writes which would grow the report past its {@link #setLimit(int) limit}
+ * fail with {@link LimitExceededException} before they are buffered, so an
+ * oversized value is cut off as soon as it passes the limit.
+ */
+abstract class ReportWriter {
+    final ReportBuffer buffer;
+
+    private int limit = Integer.MAX_VALUE;
+
+    ReportWriter(ReportBuffer buffer) {
+        this.buffer = Objects.requireNonNull(buffer, "buffer");
+    }
+
+    /**
+     * @return Writer of the given format.
+     */
+    static ReportWriter create(ReportBuffer buffer, UrlEndpoint.Format format) {
+        Objects.requireNonNull(format, "format");
+
+        switch (format) {
+            case CBOR:
+                return new CborReportWriter(buffer);
+            case JSON:
+            default:
+                return new JsonReportWriter(buffer);
+        }
+    }
+
+    abstract ReportWriter beginObject() throws IOException;
+
+    abstract ReportWriter endObject() throws IOException;
+
+    abstract ReportWriter beginArray() throws IOException;
+
+    abstract ReportWriter endArray() throws IOException;
+
+    abstract ReportWriter name(String name) throws IOException;
+
+    abstract ReportWriter value(String value) throws IOException;
+
+    abstract ReportWriter value(long value) throws IOException;
+
+    abstract ReportWriter value(double value) throws IOException;
+
+    abstract ReportWriter value(boolean value) throws IOException;
+
+    /**
+     * Serialize an arbitrary object with {@link Gson}.
+     * @param gson Gson instance to serialize with.
+     * @param value Value to serialize.
+     */
+    abstract ReportWriter value(Gson gson, Object value) throws IOException;
+
+    /**
+     * Values written since the last checkpoint can be discarded with
+     * {@link #rollback(long)}.
+     * @return Opaque checkpoint handle.
+     */
+    long checkpoint() throws IOException {
+        this.flush();
+        return ((long) this.buffer.size() << 1) | (this.isSeparatorPending() ? 1L : 0L);
+    }
+
+    void rollback(long checkpoint) throws IOException {
+        this.flush();
+        this.buffer.rewind(offset(checkpoint));
+        this.setSeparatorPending((checkpoint & 1L) != 0L);
+    }
+
+    /**
+     * @return Size of the report at the given checkpoint.
+     */
+    static int offset(long checkpoint) {
+        return (int) (checkpoint >>> 1);
+    }
+
+    /**
+     * Number of bytes written since the given checkpoint.
+     */
+    int sizeSince(long checkpoint) throws IOException {
+        return this.size() - offset(checkpoint);
+    }
+
+    /**
+     * Hash of the bytes written since the given checkpoint, to tell whether a
+     * value changed without keeping a copy of it.
+     */
+    long fingerprintSince(long checkpoint) throws IOException {
+        this.flush();
+        return this.buffer.fingerprint(offset(checkpoint));
+    }
+
+    int size() throws IOException {
+        this.flush();
+        return this.buffer.size();
+    }
+
+    int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * @param limit Size the report must not grow past, counted from the
+     *              start of the buffer.
+     */
+    void setLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Whether the next token must be preceded by a separator, the only state
+     * of a writer besides its output.
+     */
+    abstract boolean isSeparatorPending();
+
+    abstract void setSeparatorPending(boolean separatorPending);
+
+    /**
+     * Write everything buffered by this writer to the report buffer.
+     */
+    abstract void flush() throws IOException;
+
+    /**
+     * Thrown by writes which would grow the report past its limit. What was
+     * written since the last checkpoint must be rolled back afterwards.
+     */
+    static class LimitExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        LimitExceededException(int limit) {
+            super("Report would exceed " + limit + " bytes", null, false, false);
+        }
+    }
+}
@@ -22,51 +22,224 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Objects;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Reads the server ID from a properties file, generating and storing a new
+ * one if there is none.
+ *
+ * Resolution runs in the background and is done once per resolver, the
+ * result is kept for the lifetime of the process. The file is replaced
+ * atomically, so a crash never leaves it half written, and an exclusive
+ * lock on a sibling {@code .lock} file makes sure two processes sharing the
+ * directory agree on a single ID. If the lock can't be taken in time, a
+ * random ID is used for this process and nothing is stored.
+ */
 public class ServerIdResolver {
     private static final File FILE = new File("csrv-plugin-metrics.properties");
+    private static final String KEY = "server_id";
+    private static final String LOCK_SUFFIX = ".lock";
+
+    /**
+     * How long to wait for another process, or another copy in this process,
+     * holding the lock.
+     */
+    private static final long LOCK_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long LOCK_RETRY_MILLIS = 10L;
 
     private final File file;
-    protected UUID serverId;
+    private final AtomicReference<CompletableFuture<UUID>> resolution = new AtomicReference<>();
+    protected volatile UUID serverId;
 
     public ServerIdResolver(File file) {
         this.file = Objects.requireNonNull(file, "file");
     }
 
-    public UUID getId() throws IOException {
-        if (this.serverId == null) {
-            this.serverId = this.resolveServerId();
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Resolve the server ID on a dedicated daemon thread, so waiting for the
+     * lock never holds up a shared pool.
+     * @see #resolve(Executor)
+     */
+    public CompletableFuture<UUID> resolve() {
+        ThreadFactory threadFactory = ReportScheduler.threadFactory("Metrics-Lite-ServerId");
+        return this.resolve(runnable -> threadFactory.newThread(runnable).start());
+    }
+
+    /**
+     * Resolve the server ID without blocking. Only the first call starts a
+     * resolution, later ones return the same future. A failed resolution is
+     * forgotten, so the next call tries again.
+     * @param executor Executor to do the file I/O on.
+     * @return Future completed with the server ID.
+     */
+    public CompletableFuture<UUID> resolve(Executor executor) {
+        Objects.requireNonNull(executor, "executor");
+
+        CompletableFuture<UUID> resolution = this.resolution.get();
+        if (resolution != null) {
+            return resolution;
+        }
+
+        CompletableFuture<UUID> future = new CompletableFuture<>();
+        if (!this.resolution.compareAndSet(null, future)) {
+            return this.resolution.get();
         }
 
-        return Objects.requireNonNull(this.serverId);
+        UUID cached = this.serverId;
+        if (cached != null) {
+            future.complete(cached);
+            return future;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    UUID serverId = Objects.requireNonNull(this.resolveServerId(), "serverId");
+                    this.serverId = serverId;
+                    future.complete(serverId);
+                } catch (Throwable throwable) {
+                    this.resolution.compareAndSet(future, null);
+                    future.completeExceptionally(throwable);
+                }
+            });
+        } catch (Throwable throwable) {
+            this.resolution.compareAndSet(future, null);
+            future.completeExceptionally(throwable);
+        }
+        return future;
     }
 
+    /**
+     * Resolve the server ID, blocking until it's done.
+     * @see #resolve()
+     */
+    public UUID getId() throws IOException {
+        try {
+            return this.resolve().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while resolving server ID");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Could not resolve server ID", cause);
+        }
+    }
+
+    /**
+     * Read the server ID, or generate and store a new one. Called once, off
+     * the main thread.
+     */
     protected UUID resolveServerId() throws IOException {
-        Properties properties = new Properties();
-        String key = "server_id";
+        // fast path, the file is only ever replaced as a whole
+        UUID serverId = this.readServerId(new Properties());
+        if (serverId != null) {
+            return serverId;
+        }
 
-        if (this.file.exists()) {
-            this.read(properties);
+        File parent = this.file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
 
-            String serverIdString = properties.getProperty(key);
-            if (serverIdString != null) {
-                try {
-                    return UUID.fromString(serverIdString);
-                } catch (IllegalArgumentException ignored) {
+        Path lockPath = this.file.toPath().resolveSibling(this.file.getName() + LOCK_SUFFIX);
+        try (FileChannel lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = tryLock(lockChannel);
+            if (lock == null) {
+                return UUID.randomUUID(); // whoever holds the lock stores the ID
+            }
+
+            try {
+                // another process may have written it while we were waiting
+                Properties properties = new Properties();
+                serverId = this.readServerId(properties);
+                if (serverId != null) {
+                    return serverId;
                 }
+
+                serverId = UUID.randomUUID();
+                properties.setProperty(KEY, serverId.toString());
+                this.write(properties);
+                return serverId;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * @param properties Loaded with the content of the file, if it exists.
+     * @return Server ID from the file, or {@code null} if there is no valid one.
+     */
+    private UUID readServerId(Properties properties) throws IOException {
+        if (!this.file.exists()) {
+            return null;
+        }
+
+        this.read(properties);
+        String serverIdString = properties.getProperty(KEY);
+        if (serverIdString != null) {
+            try {
+                return UUID.fromString(serverIdString);
+            } catch (IllegalArgumentException ignored) {
             }
         }
+        return null;
+    }
+
+    /**
+     * Poll for the lock until it's taken or the timeout passes.
+     * @return The lock, or {@code null} if it's still held by someone else.
+     */
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        long deadline = System.nanoTime() + LOCK_TIMEOUT_NANOS;
+        while (true) {
+            try {
+                FileLock lock = channel.tryLock(); // null while another process holds it
+                if (lock != null) {
+                    return lock;
+                }
+            } catch (OverlappingFileLockException e) {
+                // held by another copy loaded in this process
+            }
 
-        UUID serverId = UUID.randomUUID();
-        properties.setProperty(key, serverId.toString());
+            if (System.nanoTime() - deadline >= 0L) {
+                return null;
+            }
 
-        this.write(properties);
-        return serverId;
+            try {
+                Thread.sleep(LOCK_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the server ID lock");
+            }
+        }
     }
 
     private void read(Properties properties) throws IOException {
@@ -79,13 +252,33 @@ public class ServerIdResolver {
         }
     }
 
+    /**
+     * Write the given properties to a temporary file, and move it over the
+     * old one once it's on disk.
+     */
     private void write(Properties properties) throws IOException {
         Objects.requireNonNull(properties, "properties");
 
-        try (Closer closer = Closer.create()) {
-            FileOutputStream fileOutputStream = closer.register(new FileOutputStream(this.file));
-            BufferedOutputStream bufferedOutputStream = closer.register(new BufferedOutputStream(fileOutputStream));
-            properties.store(bufferedOutputStream, null);
+        Path target = this.file.toPath();
+        Path directory = target.toAbsolutePath().getParent();
+        // not createTempFile, which would make the file readable only by its owner
+        Path temporary = directory.resolve(this.file.getName() + "." + UUID.randomUUID().toString() + ".tmp");
+        try {
+            try (Closer closer = Closer.create()) {
+                FileChannel channel = closer.register(FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+                OutputStream outputStream = closer.register(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                properties.store(outputStream, null);
+                outputStream.flush();
+                channel.force(true);
+            }
+
+            try {
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
         }
     }
 
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import org.bukkit.NamespacedKey;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.ServicePriority;
+import org.bukkit.plugin.ServicesManager;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reporter shared by every copy of this library loaded by the server.
+ *
+ * Plugins shade and relocate this library, so each of them loads its own
+ * copy of every class here. The first copy to start registers its
+ * {@link SharedReporter} in the {@link ServicesManager} and reports on
+ * behalf of all of them. Other copies find it by its simple class name and
+ * talk to it reflectively, using only types loaded by the server, so the
+ * relocated names don't matter. Their data is contributed to every report
+ * of the leader as plain values.
+ *
+ * When the last plugin of the leading copy is disabled, the leader
+ * unregisters itself and tells every follower, the first of them to react
+ * takes over.
+ */
+public final class SharedReporter {
+    /**
+     * Tells this service apart from unrelated classes of the same name. It's
+     * deliberately not shaped like a package name, so relocation leaves it
+     * alone.
+     */
+    public static final String SERVICE_ID = "craftserve-metrics-lite";
+    /**
+     * Revision of the methods called reflectively by other copies.
+     */
+    public static final int PROTOCOL_VERSION = 1;
+
+    private final Logger logger;
+    private final Map<Plugin, Member> members = new LinkedHashMap<>();
+
+    private ServicesManager servicesManager;
+
+    SharedReporter(Logger logger) {
+        this.logger = Objects.requireNonNull(logger, "logger");
+    }
+
+    //
+    // Called by other copies
+    //
+
+    /**
+     * Report on behalf of the given plugin of another copy.
+     * @param plugin Plugin to list as affected.
+     * @param contributor Puts data of the copy into every report, called once
+     *                    per report no matter how many plugins it attached.
+     * @param onClose Called when this reporter stops, so the copy can elect
+     *                a new one.
+     */
+    public synchronized void attach(Plugin plugin, Consumer<Map<NamespacedKey, Object>> contributor, Runnable onClose) {
+        Objects.requireNonNull(plugin, "plugin");
+        Objects.requireNonNull(contributor, "contributor");
+        Objects.requireNonNull(onClose, "onClose");
+
+        this.members.put(plugin, new Member(contributor, onClose));
+    }
+
+    public synchronized void detach(Plugin plugin) {
+        Objects.requireNonNull(plugin, "plugin");
+        this.members.remove(plugin);
+    }
+
+    //
+    // Called by the leading copy
+    //
+
+    synchronized void register(ServicesManager servicesManager, Plugin owner) {
+        Objects.requireNonNull(servicesManager, "servicesManager");
+        Objects.requireNonNull(owner, "owner");
+
+        // services of a plugin are unregistered when it's disabled
+        servicesManager.unregister(SharedReporter.class, this);
+        servicesManager.register(SharedReporter.class, this, owner, ServicePriority.Normal);
+        this.servicesManager = servicesManager;
+    }
+
+    /**
+     * @return Plugins attached by other copies.
+     */
+    synchronized List<Plugin> getPlugins() {
+        return new ArrayList<>(this.members.keySet());
+    }
+
+    /**
+     * Put data of every other copy.
+     */
+    void contribute(Map<NamespacedKey, Object> data) {
+        Objects.requireNonNull(data, "data");
+
+        Set<Consumer<Map<NamespacedKey, Object>>> contributors = new LinkedHashSet<>();
+        synchronized (this) {
+            for (Member member : this.members.values()) {
+                contributors.add(member.contributor);
+            }
+        }
+
+        for (Consumer<Map<NamespacedKey, Object>> contributor : contributors) {
+            try {
+                contributor.accept(data);
+            } catch (Throwable throwable) {
+                this.logger.log(Level.SEVERE, "Could not collect shared data from " + contributor.toString(), throwable);
+            }
+        }
+    }
+
+    /**
+     * Unregister this reporter and let other copies elect a new one.
+     */
+    void close() {
+        Set<Runnable> closeCallbacks = new LinkedHashSet<>();
+        synchronized (this) {
+            if (this.servicesManager != null) {
+                this.servicesManager.unregister(SharedReporter.class, this);
+                this.servicesManager = null;
+            }
+
+            for (Member member : this.members.values()) {
+                closeCallbacks.add(member.onClose);
+            }
+            this.members.clear();
+        }
+
+        for (Runnable onClose : closeCallbacks) {
+            try {
+                onClose.run();
+            } catch (Throwable throwable) {
+                this.logger.log(Level.SEVERE, "Could not hand over shared reporter to " + onClose.toString(), throwable);
+            }
+        }
+    }
+
+    /**
+     * Plain value of the given source, which the Gson of another copy can
+     * serialize.
+     * @return The value, or {@code null} to leave it out of the report.
+     */
+    static Object export(MetricSource source) {
+        Objects.requireNonNull(source, "source");
+
+        if (source instanceof Instrument) {
+            return ((Instrument) source).snapshot();
+        } else if (source instanceof MetricSource.LongGauge) {
+            return ((MetricSource.LongGauge) source).getAsLong();
+        } else if (source instanceof MetricSource.DoubleGauge) {
+            return ((MetricSource.DoubleGauge) source).getAsDouble();
+        } else if (source instanceof MetricSource.Text) {
+            return ((MetricSource.Text) source).get();
+        } else if (source instanceof MetricSource.Structured) {
+            return ((MetricSource.Structured) source).get();
+        }
+        return source;
+    }
+
+    /**
+     * Find the reporter registered by another copy of this library.
+     * @return The reporter, or {@code null} if there is none.
+     */
+    static Remote find(ServicesManager servicesManager) {
+        Objects.requireNonNull(servicesManager, "servicesManager");
+
+        for (Class<?> service : servicesManager.getKnownServices()) {
+            if (service == SharedReporter.class || !service.getSimpleName().equals(SharedReporter.class.getSimpleName())) {
+                continue;
+            }
+
+            try {
+                if (!SERVICE_ID.equals(service.getField("SERVICE_ID").get(null)) ||
+                        service.getField("PROTOCOL_VERSION").getInt(null) != PROTOCOL_VERSION) {
+                    continue;
+                }
+
+                Object provider = servicesManager.load(service);
+                if (provider != null) {
+                    return new Remote(provider);
+                }
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+                // unrelated class, or an incompatible copy
+            }
+        }
+
+        return null;
+    }
+
+    private static class Member {
+        final Consumer<Map<NamespacedKey, Object>> contributor;
+        final Runnable onClose;
+
+        Member(Consumer<Map<NamespacedKey, Object>> contributor, Runnable onClose) {
+            this.contributor = Objects.requireNonNull(contributor, "contributor");
+            this.onClose = Objects.requireNonNull(onClose, "onClose");
+        }
+    }
+
+    /**
+     * {@link SharedReporter} of another copy, called reflectively.
+     */
+    static class Remote {
+        private final Object provider;
+        private final Method attach;
+        private final Method detach;
+
+        Remote(Object provider) throws NoSuchMethodException {
+            this.provider = Objects.requireNonNull(provider, "provider");
+
+            Class<?> type = provider.getClass();
+            this.attach = type.getMethod("attach", Plugin.class, Consumer.class, Runnable.class);
+            this.detach = type.getMethod("detach", Plugin.class);
+        }
+
+        void attach(Plugin plugin, Consumer<Map<NamespacedKey, Object>> contributor, Runnable onClose) {
+            this.invoke(this.attach, plugin, contributor, onClose);
+        }
+
+        void detach(Plugin plugin) {
+            this.invoke(this.detach, plugin);
+        }
+
+        private void invoke(Method method, Object... args) {
+            try {
+                method.invoke(this.provider, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return this.provider.getClass().getName();
+        }
+    }
+}
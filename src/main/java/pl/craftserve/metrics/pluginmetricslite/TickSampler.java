@@ -0,0 +1,158 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import org.bukkit.NamespacedKey;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures ticks from a task run by the Bukkit scheduler on every tick.
+ *
+ * A tick is measured from one run of the task to the next. The scheduler
+ * can't start a tick before {@value #TICK_MILLIS} ms passed since the start
+ * of the previous one, so on a healthy server every tick measures 50 ms. A
+ * tick which takes longer than that measures exactly as long as it took.
+ * The task only reads the clock and records into a {@link Histogram}, it
+ * doesn't allocate.
+ */
+class TickSampler extends TickTask {
+    private static final String NAMESPACE = NamespacedKey.BUKKIT;
+    /**
+     * Time between the starts of successive ticks, not the time spent in a
+     * tick, which a task can't see.
+     */
+    private static final NamespacedKey TICK_INTERVAL = key("tick_interval");
+    private static final NamespacedKey TPS = key("tps");
+    private static final NamespacedKey LAG_SPIKES = key("lag_spikes");
+    private static final Set<NamespacedKey> KEYS = new HashSet<>(Arrays.asList(TICK_INTERVAL, TPS, LAG_SPIKES));
+    private static final long TICK_MILLIS = 50L;
+    /**
+     * Ticks longer than this are counted as lag spikes.
+     */
+    private static final long SPIKE_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS * 2L);
+
+    private final Histogram ticks = new Histogram();
+    private final Histogram.Summary summary = new Histogram.Summary();
+    private final AtomicLong spikes = new AtomicLong();
+
+    private long lastTick;
+    private long lastAppend = System.nanoTime();
+    private volatile long meanTickIntervalNanos;
+    private volatile double tps = -1D;
+
+    /**
+     * Forget ticks measured before the sampler was stopped, they are not
+     * reset when it's handed over to another plugin.
+     */
+    @Override
+    synchronized void onStart() {
+        this.ticks.snapshot(this.summary);
+        this.spikes.set(0L);
+        this.lastTick = 0L;
+        this.lastAppend = System.nanoTime();
+        this.meanTickIntervalNanos = 0L;
+        this.tps = -1D;
+    }
+
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        long lastTick = this.lastTick;
+        this.lastTick = now;
+
+        if (lastTick != 0L) {
+            long duration = now - lastTick;
+            this.ticks.record(duration);
+            if (duration > SPIKE_NANOS) {
+                this.spikes.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Put the summary of ticks since the previous call.
+     */
+    synchronized void append(Map<NamespacedKey, Object> data) {
+        Objects.requireNonNull(data, "data");
+
+        long now = System.nanoTime();
+        long elapsed = now - this.lastAppend;
+        this.lastAppend = now;
+
+        Histogram.Summary summary = this.summary;
+        this.ticks.snapshot(summary);
+        long spikes = this.spikes.getAndSet(0L);
+        if (summary.count == 0L) {
+            return; // not ticking, or not started
+        }
+
+        long meanTickIntervalNanos = summary.sum / summary.count;
+        Map<String, Object> tickInterval = new LinkedHashMap<>();
+        tickInterval.put("p50", millis(summary.p50));
+        tickInterval.put("p90", millis(summary.p90));
+        tickInterval.put("p99", millis(summary.p99));
+        tickInterval.put("max", millis(summary.max));
+        tickInterval.put("mean", millis(meanTickIntervalNanos));
+        data.put(TICK_INTERVAL, tickInterval);
+
+        // ticks may only be late, never early, so this can't exceed 20 by much
+        double tps = Math.min(summary.count * 1_000_000_000D / elapsed, 1000D / TICK_MILLIS);
+        data.put(TPS, tps);
+        data.put(LAG_SPIKES, spikes);
+
+        this.meanTickIntervalNanos = meanTickIntervalNanos;
+        this.tps = tps;
+    }
+
+    /**
+     * @return Mean time between ticks of the last summary, or 0 if unknown.
+     */
+    long getMeanTickIntervalNanos() {
+        return this.meanTickIntervalNanos;
+    }
+
+    /**
+     * @return Ticks per second of the last summary, or -1 if unknown.
+     */
+    double getTps() {
+        return this.tps;
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 10_000D) / 100D; // two decimal places
+    }
+
+    /**
+     * @return Whether the key is put by this sampler.
+     */
+    static boolean isSampled(NamespacedKey key) {
+        return KEYS.contains(key);
+    }
+
+    private static NamespacedKey key(String key) {
+        Objects.requireNonNull(key, "key");
+        return new NamespacedKey(NAMESPACE, key);
+    }
+}
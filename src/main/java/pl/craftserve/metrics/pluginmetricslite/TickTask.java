@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Objects;
+
+/**
+ * Task run by the Bukkit scheduler on the main thread on every tick, on
+ * behalf of one of the affected plugins.
+ */
+abstract class TickTask implements Runnable {
+    private Plugin owner;
+    private BukkitTask task;
+
+    /**
+     * Start running on behalf of the given plugin.
+     * @param owner Owner of the task, the task is cancelled when it's disabled.
+     */
+    synchronized void start(Plugin owner) {
+        Objects.requireNonNull(owner, "owner");
+        if (this.task != null) {
+            throw new IllegalStateException("Already started!");
+        }
+
+        this.onStart();
+        this.schedule(owner);
+    }
+
+    private void schedule(Plugin owner) {
+        this.task = owner.getServer().getScheduler().runTaskTimer(owner, this, 1L, 1L);
+        this.owner = owner;
+    }
+
+    synchronized void stop() {
+        if (this.task != null) {
+            this.task.cancel();
+            this.task = null;
+            this.owner = null;
+        }
+    }
+
+    /**
+     * Move the task to another plugin, if the given one is its owner. The
+     * task carries on where it left off, {@link #onStart()} is not called.
+     * @param previousOwner Plugin which is about to be disabled.
+     * @param owner Plugin to run the task on behalf of from now on.
+     */
+    synchronized void handOver(Plugin previousOwner, Plugin owner) {
+        Objects.requireNonNull(previousOwner, "previousOwner");
+        Objects.requireNonNull(owner, "owner");
+
+        if (this.task != null && previousOwner.equals(this.owner)) {
+            this.stop();
+            this.schedule(owner);
+        }
+    }
+
+    /**
+     * Called before the task is scheduled by {@link #start(Plugin)}.
+     */
+    void onStart() {
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import org.bukkit.NamespacedKey;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps recent samples of numeric keys, so a report can tell what happened
+ * between itself and the previous one rather than only how things are at
+ * the moment it's taken.
+ *
+ * Every key gets a ring of slots for each {@link Resolution}, holding the
+ * min, max, sum, count and last value of the samples which fell into it.
+ * All rings are allocated along with the key, so memory use is fixed per
+ * key, and the number of keys is capped.
+ */
+class TimeSeriesStore {
+    static final int DEFAULT_MAX_KEYS = 128;
+
+    enum Resolution {
+        SECOND(TimeUnit.SECONDS.toMillis(1L), 60),
+        MINUTE(TimeUnit.MINUTES.toMillis(1L), 60),
+        QUARTER(TimeUnit.MINUTES.toMillis(15L), 96);
+
+        private final long widthMillis;
+        private final int slots;
+
+        Resolution(long widthMillis, int slots) {
+            this.widthMillis = widthMillis;
+            this.slots = slots;
+        }
+
+        long getWidthMillis() {
+            return this.widthMillis;
+        }
+
+        /**
+         * @return Time covered by a full ring.
+         */
+        long getSpanMillis() {
+            return this.widthMillis * this.slots;
+        }
+    }
+
+    private static final Resolution[] RESOLUTIONS = Resolution.values();
+
+    private final int maxKeys;
+    private final Map<NamespacedKey, Series> series = new ConcurrentHashMap<>();
+
+    TimeSeriesStore() {
+        this(DEFAULT_MAX_KEYS);
+    }
+
+    TimeSeriesStore(int maxKeys) {
+        if (maxKeys < 0) {
+            throw new IllegalArgumentException("maxKeys must not be negative");
+        }
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * @return Whether the sample was stored, {@code false} if the key is new
+     * and the store is full.
+     */
+    boolean record(NamespacedKey key, Number value, long nowMillis) {
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(value, "value");
+
+        Series series = this.series.get(key);
+        if (series == null) {
+            if (this.series.size() >= this.maxKeys) {
+                return false;
+            }
+            series = this.series.computeIfAbsent(key, ignored -> new Series());
+        }
+
+        series.record(value, nowMillis);
+        return true;
+    }
+
+    /**
+     * Summarize samples of the given key taken in the given window, from the
+     * finest resolution whose ring covers it. Slots on the edges of the
+     * window are taken whole, so coarser resolutions may include samples
+     * from up to one slot before it.
+     * @return Summary of the window, or {@code null} if there are no samples.
+     */
+    Map<String, Object> summarize(NamespacedKey key, long fromMillis, long toMillis) {
+        Objects.requireNonNull(key, "key");
+
+        Series series = this.series.get(key);
+        return series != null ? series.summarize(fromMillis, toMillis) : null;
+    }
+
+    /**
+     * Forget keys with no samples within the span of the given resolution.
+     */
+    void evict(Resolution resolution, long nowMillis) {
+        Objects.requireNonNull(resolution, "resolution");
+
+        long threshold = nowMillis - resolution.getSpanMillis();
+        Iterator<Series> iterator = this.series.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().lastRecordedMillis() < threshold) {
+                iterator.remove();
+            }
+        }
+    }
+
+    int size() {
+        return this.series.size();
+    }
+
+    void clear() {
+        this.series.clear();
+    }
+
+    /**
+     * Rings of a single key.
+     */
+    private static final class Series {
+        private final Ring[] rings = new Ring[RESOLUTIONS.length];
+        private boolean integral = true;
+        private long lastRecorded;
+
+        Series() {
+            for (int i = 0; i < RESOLUTIONS.length; i++) {
+                this.rings[i] = new Ring(RESOLUTIONS[i]);
+            }
+        }
+
+        synchronized void record(Number value, long nowMillis) {
+            boolean integral = value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+            this.integral &= integral;
+
+            double doubleValue = value.doubleValue();
+            if (Double.isNaN(doubleValue)) {
+                return;
+            }
+
+            for (Ring ring : this.rings) {
+                ring.record(doubleValue, nowMillis);
+            }
+            this.lastRecorded = Math.max(this.lastRecorded, nowMillis);
+        }
+
+        synchronized long lastRecordedMillis() {
+            return this.lastRecorded;
+        }
+
+        synchronized Map<String, Object> summarize(long fromMillis, long toMillis) {
+            long window = Math.max(toMillis - fromMillis, 0L);
+            Ring ring = this.rings[this.rings.length - 1];
+            for (Ring candidate : this.rings) {
+                if (candidate.resolution.getSpanMillis() >= window) {
+                    ring = candidate;
+                    break;
+                }
+            }
+
+            return ring.summarize(fromMillis, toMillis, this.integral);
+        }
+    }
+
+    /**
+     * Slots of a single resolution, laid out in parallel primitive arrays.
+     */
+    private static final class Ring {
+        final Resolution resolution;
+        final long[] stamps;
+        final double[] min;
+        final double[] max;
+        final double[] sum;
+        final double[] last;
+        final int[] count;
+
+        Ring(Resolution resolution) {
+            this.resolution = resolution;
+            int slots = resolution.slots;
+            this.stamps = new long[slots];
+            Arrays.fill(this.stamps, -1L);
+            this.min = new double[slots];
+            this.max = new double[slots];
+            this.sum = new double[slots];
+            this.last = new double[slots];
+            this.count = new int[slots];
+        }
+
+        void record(double value, long nowMillis) {
+            long stamp = nowMillis / this.resolution.widthMillis;
+            int slot = (int) Math.floorMod(stamp, (long) this.resolution.slots);
+
+            if (this.stamps[slot] != stamp) {
+                if (stamp < this.stamps[slot]) {
+                    return; // older than the ring, the clock went back
+                }
+
+                this.stamps[slot] = stamp;
+                this.min[slot] = value;
+                this.max[slot] = value;
+                this.sum[slot] = value;
+                this.last[slot] = value;
+                this.count[slot] = 1;
+                return;
+            }
+
+            this.min[slot] = Math.min(this.min[slot], value);
+            this.max[slot] = Math.max(this.max[slot], value);
+            this.sum[slot] += value;
+            this.last[slot] = value;
+            this.count[slot]++;
+        }
+
+        Map<String, Object> summarize(long fromMillis, long toMillis, boolean integral) {
+            long width = this.resolution.widthMillis;
+            long from = fromMillis / width;
+            long to = toMillis / width;
+
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            double sum = 0D;
+            long count = 0L;
+            long lastStamp = Long.MIN_VALUE;
+            double last = 0D;
+
+            for (int slot = 0; slot < this.stamps.length; slot++) {
+                long stamp = this.stamps[slot];
+                if (stamp < from || stamp > to || this.count[slot] == 0) {
+                    continue;
+                }
+
+                min = Math.min(min, this.min[slot]);
+                max = Math.max(max, this.max[slot]);
+                sum += this.sum[slot];
+                count += this.count[slot];
+                if (stamp > lastStamp) {
+                    lastStamp = stamp;
+                    last = this.last[slot];
+                }
+            }
+
+            if (count == 0L) {
+                return null;
+            }
+
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("last", integral ? (Object) (long) last : (Object) last);
+            summary.put("min", integral ? (Object) (long) min : (Object) min);
+            summary.put("max", integral ? (Object) (long) max : (Object) max);
+            summary.put("mean", sum / count);
+            summary.put("samples", count);
+            return summary;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Sends HTTP requests on behalf of {@link UrlEndpoint}.
+ */
+public interface Transport {
+    /**
+     * Send the given request and wait for the response.
+     * @param request Request to send.
+     * @return Response to the request.
+     */
+    Response send(Request request) throws IOException;
+
+    /**
+     * Transport on {@code java.net.http.HttpClient} where the runtime has it,
+     * on {@link java.net.HttpURLConnection} otherwise. Both keep connections
+     * alive between requests.
+     * @return The best transport available.
+     */
+    static Transport createDefault() {
+        Transport transport = HttpClientTransport.create();
+        return transport != null ? transport : new UrlConnectionTransport();
+    }
+
+    @FunctionalInterface
+    interface Body {
+        /**
+         * Write the whole body and close the given stream.
+         * @param outputStream Stream to write the body to.
+         */
+        void writeTo(OutputStream outputStream) throws IOException;
+
+        /**
+         * Open a stream over the whole body, for transports which pull the
+         * body rather than have it written. It may be opened more than once.
+         * By default the body is written to a new buffer first.
+         * @return Stream of the body.
+         */
+        default InputStream openStream() throws IOException {
+            ReportBuffer buffer = new ReportBuffer();
+            this.writeTo(buffer);
+            return new ByteArrayInputStream(buffer.array(), 0, buffer.size());
+        }
+    }
+
+    final class Request {
+        private final URL url;
+        private final Map<String, String> headers;
+        private final long contentLength;
+        private final Body body;
+        private final Duration connectTimeout;
+        private final Duration readTimeout;
+
+        /**
+         * @param url URL to POST the body to.
+         * @param headers Request headers, other than Content-Length.
+         * @param contentLength Length of the body, or -1 if it's not known
+         *                      until it's written.
+         * @param body Body of the request.
+         * @param connectTimeout Timeout of establishing the connection.
+         * @param readTimeout Timeout of waiting for the response.
+         */
+        public Request(URL url, Map<String, String> headers, long contentLength, Body body, Duration connectTimeout, Duration readTimeout) {
+            this.url = Objects.requireNonNull(url, "url");
+            this.headers = Collections.unmodifiableMap(new LinkedHashMap<>(Objects.requireNonNull(headers, "headers")));
+            this.contentLength = contentLength;
+            this.body = Objects.requireNonNull(body, "body");
+            this.connectTimeout = Objects.requireNonNull(connectTimeout, "connectTimeout");
+            this.readTimeout = Objects.requireNonNull(readTimeout, "readTimeout");
+        }
+
+        public URL getUrl() {
+            return this.url;
+        }
+
+        public Map<String, String> getHeaders() {
+            return this.headers;
+        }
+
+        public long getContentLength() {
+            return this.contentLength;
+        }
+
+        public Body getBody() {
+            return this.body;
+        }
+
+        public Duration getConnectTimeout() {
+            return this.connectTimeout;
+        }
+
+        public Duration getReadTimeout() {
+            return this.readTimeout;
+        }
+    }
+
+    final class Response {
+        private final int statusCode;
+        private final Map<String, String> headers;
+
+        /**
+         * @param statusCode HTTP status code.
+         * @param headers Response headers, only the first value of each.
+         */
+        public Response(int statusCode, Map<String, String> headers) {
+            Objects.requireNonNull(headers, "headers");
+
+            Map<String, String> caseInsensitive = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                if (entry.getKey() != null && entry.getValue() != null) { // status line has no name
+                    caseInsensitive.putIfAbsent(entry.getKey(), entry.getValue());
+                }
+            }
+
+            this.statusCode = statusCode;
+            this.headers = Collections.unmodifiableMap(caseInsensitive);
+        }
+
+        public int getStatusCode() {
+            return this.statusCode;
+        }
+
+        public Map<String, String> getHeaders() {
+            return this.headers;
+        }
+
+        /**
+         * @param name Case-insensitive name of the header.
+         * @return Value of the header, or {@code null} if it's not present.
+         */
+        public String getHeader(String name) {
+            Objects.requireNonNull(name, "name");
+            return this.headers.get(name);
+        }
+    }
+}
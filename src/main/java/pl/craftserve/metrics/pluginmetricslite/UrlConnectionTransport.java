@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Transport on {@link HttpURLConnection}.
+ *
+ * Connections are never disconnected explicitly. The response body is read
+ * to the end and closed instead, so the runtime returns the connection to
+ * its keep-alive cache and the next request skips the TCP and TLS handshake.
+ */
+public class UrlConnectionTransport implements Transport {
+    private static final int DRAIN_BUFFER_SIZE = 1024;
+
+    @Override
+    public Response send(Request request) throws IOException {
+        Objects.requireNonNull(request, "request");
+
+        URLConnection urlConnection = request.getUrl().openConnection();
+        if (!(urlConnection instanceof HttpURLConnection)) {
+            throw new ConnectException("Connection is not an instance of " + HttpURLConnection.class.getName() + ".");
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) urlConnection;
+        connection.setConnectTimeout(UrlEndpoint.toMillis(request.getConnectTimeout()));
+        connection.setReadTimeout(UrlEndpoint.toMillis(request.getReadTimeout()));
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        long contentLength = request.getContentLength();
+        if (contentLength >= 0L) {
+            connection.setFixedLengthStreamingMode(contentLength);
+        } else {
+            connection.setChunkedStreamingMode(0);
+        }
+
+        try {
+            request.getBody().writeTo(connection.getOutputStream());
+
+            int responseCode = connection.getResponseCode();
+            Map<String, String> headers = new HashMap<>();
+            for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+                List<String> values = header.getValue();
+                if (header.getKey() != null && values != null && !values.isEmpty()) {
+                    headers.put(header.getKey(), values.get(0));
+                }
+            }
+
+            this.drain(connection);
+            return new Response(responseCode, headers);
+        } catch (IOException e) {
+            // the connection is in an unknown state, don't let it be reused
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private void drain(HttpURLConnection connection) throws IOException {
+        InputStream inputStream = connection.getErrorStream();
+        if (inputStream == null) {
+            try {
+                inputStream = connection.getInputStream();
+            } catch (IOException e) {
+                return; // error response without a body
+            }
+        }
+
+        try (InputStream body = inputStream) {
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            while (body.read(buffer) != -1) {
+                // discard
+            }
+        }
+    }
+}
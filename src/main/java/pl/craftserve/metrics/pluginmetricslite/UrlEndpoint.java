@@ -16,26 +16,70 @@
 
 package pl.craftserve.metrics.pluginmetricslite;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 
 import javax.net.ssl.HttpsURLConnection;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.net.ConnectException;
+import java.io.SequenceInputStream;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class UrlEndpoint {
-    public static final int PROTOCOL_REVISION = 0;
+    /**
+     * Revision of the protocol spoken by this endpoint, sent in the User-Agent.
+     * <ul>
+     *     <li>0 - plain JSON request bodies,</li>
+     *     <li>1 - request bodies may be compressed, see {@link ContentEncoding},</li>
+     *     <li>2 - a JSON array of reports may be submitted in a single request,</li>
+     *     <li>3 - reports may be deltas against the report named by their
+     *     {@code base_id}, the endpoint asks for a full report with the
+     *     {@value #RESYNC_HEADER} header or 409 Conflict,</li>
+     *     <li>4 - reports may be encoded as CBOR, see {@link Format}, once the
+     *     endpoint lists {@code application/cbor} in the {@value #ACCEPT_HEADER}
+     *     header of a response. The endpoint may ask for a longer interval
+     *     with the {@value #INTERVAL_HEADER} header, in seconds, and defer the
+     *     next report with {@code Retry-After}.</li>
+     * </ul>
+     */
+    public static final int PROTOCOL_REVISION = 4;
+    public static final String RESYNC_HEADER = "X-Metrics-Resync";
+    public static final String ACCEPT_HEADER = "X-Metrics-Accept";
+    public static final String INTERVAL_HEADER = "X-Metrics-Interval";
     public static final URL CRAFTSERVE_METRICS;
 
-    private static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final Charset CHARSET = ReportBuffer.CHARSET;
+
+    /**
+     * Turns CBOR reports back into JSON, when the endpoint doesn't take CBOR.
+     */
+    private static final Gson TRANSCODER = new GsonBuilder().serializeNulls().disableHtmlEscaping().create();
 
     static {
         try {
@@ -45,51 +89,815 @@ public class UrlEndpoint {
         }
     }
 
+    private static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration DEFAULT_READ_TIMEOUT = Duration.ofSeconds(15);
+    private static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final Duration DEFAULT_INITIAL_BACKOFF = Duration.ofSeconds(1);
+    private static final Duration DEFAULT_MAX_BACKOFF = Duration.ofSeconds(10);
+    private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    private static final Duration DEFAULT_OPEN_DURATION = Duration.ofMinutes(1);
+    private static final Duration DEFAULT_MAX_OPEN_DURATION = Duration.ofMinutes(30);
+
     private final URL url;
+    private final Transport transport;
+
+    private volatile int connectTimeoutMillis = toMillis(DEFAULT_CONNECT_TIMEOUT);
+    private volatile int readTimeoutMillis = toMillis(DEFAULT_READ_TIMEOUT);
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long initialBackoffNanos = DEFAULT_INITIAL_BACKOFF.toNanos();
+    private volatile long maxBackoffNanos = DEFAULT_MAX_BACKOFF.toNanos();
+    private volatile CircuitBreaker circuitBreaker = new CircuitBreaker(
+            DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION, DEFAULT_MAX_OPEN_DURATION);
+
+    private volatile ContentEncoding contentEncoding = ContentEncoding.IDENTITY;
+    private volatile int compressionThreshold = 1024;
+    private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private volatile boolean compressionRejected;
+    private volatile boolean batchRejected;
+    private volatile Format preferredFormat = Format.CBOR;
+    private volatile boolean binaryAccepted;
+    private volatile boolean binaryRejected;
+    private final AtomicBoolean resyncRequested = new AtomicBoolean();
+    private volatile Duration intervalHint;
+    private final AtomicReference<Duration> retryAfter = new AtomicReference<>();
 
     public UrlEndpoint(URL url) {
+        this(url, Transport.createDefault());
+    }
+
+    public UrlEndpoint(URL url, Transport transport) {
         this.url = Objects.requireNonNull(url, "url");
+        this.transport = Objects.requireNonNull(transport, "transport");
     }
 
     public URL getUrl() {
         return this.url;
     }
 
+    public Transport getTransport() {
+        return this.transport;
+    }
+
+    public ContentEncoding getContentEncoding() {
+        return this.contentEncoding;
+    }
+
+    public int getCompressionThreshold() {
+        return this.compressionThreshold;
+    }
+
+    public int getCompressionLevel() {
+        return this.compressionLevel;
+    }
+
+    /**
+     * Configure request body compression. Bodies are sent plain by default,
+     * only enable compression for endpoints known to take it.
+     * @param contentEncoding Encoding of request bodies.
+     * @param threshold Bodies smaller than this many bytes are sent plain.
+     * @param level {@link Deflater} compression level, from 0 to 9 or -1 for
+     *              the default level.
+     */
+    public void setCompression(ContentEncoding contentEncoding, int threshold, int level) {
+        Objects.requireNonNull(contentEncoding, "contentEncoding");
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        } else if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+
+        this.contentEncoding = contentEncoding;
+        this.compressionThreshold = threshold;
+        this.compressionLevel = level;
+        this.compressionRejected = false;
+    }
+
+    public Format getPreferredFormat() {
+        return this.preferredFormat;
+    }
+
+    /**
+     * Configure the encoding of reports. CBOR is only used once the endpoint
+     * lists it in the {@value #ACCEPT_HEADER} header of a response, reports
+     * are encoded as JSON until then.
+     * @param preferredFormat Encoding of reports, if the endpoint takes it.
+     */
+    public void setPreferredFormat(Format preferredFormat) {
+        this.preferredFormat = Objects.requireNonNull(preferredFormat, "preferredFormat");
+        this.binaryRejected = false;
+    }
+
+    /**
+     * @return Format the next report should be encoded in.
+     */
+    public Format getFormat() {
+        if (this.preferredFormat == Format.CBOR && this.binaryAccepted && !this.binaryRejected) {
+            return Format.CBOR;
+        }
+        return Format.JSON;
+    }
+
+    public Duration getConnectTimeout() {
+        return Duration.ofMillis(this.connectTimeoutMillis);
+    }
+
+    public Duration getReadTimeout() {
+        return Duration.ofMillis(this.readTimeoutMillis);
+    }
+
+    /**
+     * Configure timeouts of a single request.
+     * @param connectTimeout Timeout of establishing the connection.
+     * @param readTimeout Timeout of waiting for the response.
+     */
+    public void setTimeouts(Duration connectTimeout, Duration readTimeout) {
+        Objects.requireNonNull(connectTimeout, "connectTimeout");
+        Objects.requireNonNull(readTimeout, "readTimeout");
+        if (connectTimeout.isNegative() || connectTimeout.isZero()) {
+            throw new IllegalArgumentException("connectTimeout must be positive");
+        } else if (readTimeout.isNegative() || readTimeout.isZero()) {
+            throw new IllegalArgumentException("readTimeout must be positive");
+        }
+
+        this.connectTimeoutMillis = toMillis(connectTimeout);
+        this.readTimeoutMillis = toMillis(readTimeout);
+    }
+
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    /**
+     * Configure retries of a failed submission. Only failures which may
+     * succeed when repeated are retried, see {@link #isRetryable(Throwable)}.
+     * The n-th retry waits between half and the whole of
+     * {@code initialBackoff * 2^(n-1)}, but no longer than {@code maxBackoff}.
+     * @param maxAttempts Maximum number of attempts, 1 disables retries.
+     * @param initialBackoff Backoff before the first retry.
+     * @param maxBackoff Maximum backoff.
+     */
+    public void setRetries(int maxAttempts, Duration initialBackoff, Duration maxBackoff) {
+        Objects.requireNonNull(initialBackoff, "initialBackoff");
+        Objects.requireNonNull(maxBackoff, "maxBackoff");
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        } else if (initialBackoff.isNegative()) {
+            throw new IllegalArgumentException("initialBackoff must not be negative");
+        } else if (maxBackoff.compareTo(initialBackoff) < 0) {
+            throw new IllegalArgumentException("maxBackoff must not be shorter than initialBackoff");
+        }
+
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffNanos = initialBackoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+    }
+
+    /**
+     * Configure the circuit breaker. The circuit opens after the given number
+     * of failed submissions in a row, and submissions fail fast with
+     * {@link CircuitOpenException} while it's open. Once the open duration
+     * passes a single trial submission is let through. The open duration is
+     * doubled with every failed trial, up to the given maximum.
+     * @param failureThreshold Number of failed submissions opening the circuit.
+     * @param openDuration Duration the circuit stays open at first.
+     * @param maxOpenDuration Maximum duration the circuit stays open.
+     */
+    public void setCircuitBreaker(int failureThreshold, Duration openDuration, Duration maxOpenDuration) {
+        this.circuitBreaker = new CircuitBreaker(failureThreshold, openDuration, maxOpenDuration);
+    }
+
+    public CircuitState getCircuitState() {
+        return this.circuitBreaker.getState();
+    }
+
+    /**
+     * @return Time left until the next trial submission, zero unless the
+     * circuit is {@link CircuitState#OPEN}.
+     */
+    public Duration getCircuitRemainingOpenTime() {
+        return this.circuitBreaker.getRemainingOpenTime();
+    }
+
+    /**
+     * Whether the endpoint responded with 415 Unsupported Media Type to a
+     * compressed body and took the same body plain. Bodies are sent plain
+     * from then on.
+     * @return Whether compression was rejected by the endpoint.
+     */
+    public boolean isCompressionRejected() {
+        return this.compressionRejected;
+    }
+
+    /**
+     * Whether the endpoint refused a batch with 400 Bad Request or 415
+     * Unsupported Media Type. Reports should be submitted one by one then.
+     * @return Whether batches were rejected by the endpoint.
+     */
+    public boolean isBatchRejected() {
+        return this.batchRejected;
+    }
+
+    /**
+     * Whether the endpoint responded with 415 Unsupported Media Type to a
+     * CBOR body, even though it had listed CBOR as accepted. Reports are
+     * encoded as JSON from then on, and CBOR ones are transcoded.
+     * @return Whether CBOR was rejected by the endpoint.
+     */
+    public boolean isBinaryRejected() {
+        return this.binaryRejected;
+    }
+
+    /**
+     * Whether the endpoint asked for a full report since the last call.
+     * @return Whether the next report should be a full snapshot.
+     */
+    public boolean consumeResyncRequest() {
+        return this.resyncRequested.getAndSet(false);
+    }
+
+    /**
+     * Interval between reports the endpoint asked for in the
+     * {@value #INTERVAL_HEADER} header of its last response carrying it.
+     * @return Interval asked for, or {@code null} if the endpoint didn't ask.
+     */
+    public Duration getIntervalHint() {
+        return this.intervalHint;
+    }
+
+    /**
+     * Delay the endpoint asked for in the {@code Retry-After} header of a
+     * response since the last call.
+     * @return Delay before the next report, or {@code null} if there is none.
+     */
+    public Duration consumeRetryAfter() {
+        return this.retryAfter.getAndSet(null);
+    }
+
     public void submit(JsonObject json) throws Throwable {
-        URLConnection urlConnection = this.url.openConnection();
-        if (!(urlConnection instanceof HttpsURLConnection)) {
-            throw new ConnectException("Connection is not an instance of " + HttpsURLConnection.class.getName() + ".");
+        Objects.requireNonNull(json, "json");
+
+        ReportBuffer body = new ReportBuffer();
+        Writer writer = body.writer();
+        writer.write(json.toString());
+        writer.flush();
+
+        this.submit(body);
+    }
+
+    /**
+     * Submit an already encoded report. The buffer is written straight to the
+     * connection, no copy of it is made.
+     * @param body Report encoded in either {@link Format}.
+     */
+    public void submit(ReportBuffer body) throws Throwable {
+        Objects.requireNonNull(body, "body");
+        this.submit(Collections.singletonList(body), false);
+    }
+
+    /**
+     * Submit already encoded reports as a single array. The buffers are
+     * written straight to the connection one after another, reports of
+     * different formats are sent as JSON.
+     * @param bodies Encoded reports, in the order they were taken.
+     * @throws ResponseCodeException When the endpoint doesn't accept batches,
+     *                               see {@link #isBatchRejected()}.
+     */
+    public void submitBatch(List<ReportBuffer> bodies) throws Throwable {
+        Objects.requireNonNull(bodies, "bodies");
+        if (bodies.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to submit");
         }
 
-        HttpsURLConnection connection = (HttpsURLConnection) urlConnection;
-        connection.setDoOutput(true);
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("User-Agent", this.formatUserAgent());
-        connection.setRequestProperty("Content-Type", "application/json; charset=" + CHARSET.name());
+        try {
+            this.submit(bodies, true);
+        } catch (ResponseCodeException e) {
+            int responseCode = e.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_BAD_REQUEST || responseCode == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+                this.batchRejected = true;
+            }
+            throw e;
+        }
+    }
 
-        try (OutputStream outputStream = connection.getOutputStream()) {
-            outputStream.write(json.toString().getBytes(CHARSET));
+    /**
+     * Submit with retries, guarded by the circuit breaker.
+     */
+    private void submit(List<ReportBuffer> bodies, boolean batch) throws Throwable {
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        if (!circuitBreaker.tryAcquire()) {
+            throw new CircuitOpenException("Circuit is open, " + circuitBreaker.getRemainingOpenTime().getSeconds() +
+                    " second(s) left until the next attempt.");
         }
 
-        do {
+        int attempt = 1;
+        while (true) {
+            long retryAfterNanos;
             try {
-                connection.connect();
-                break;
-            } catch (SocketTimeoutException ignored) {
-                // try again
+                this.attempt(bodies, batch);
+                circuitBreaker.onSuccess();
+                return;
+            } catch (Throwable throwable) {
+                retryAfterNanos = retryAfterNanos(throwable);
+                if (!(throwable instanceof IOException)) {
+                    circuitBreaker.onFailure();
+                    throw throwable;
+                } else if (!isRetryable(throwable) || retryAfterNanos > this.maxBackoffNanos) {
+                    circuitBreaker.onSuccess(); // the endpoint is up, it just didn't like the request, or not now
+                    throw throwable;
+                } else if (attempt >= this.maxAttempts) {
+                    circuitBreaker.onFailure();
+                    throw throwable;
+                }
+            }
+
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.max(this.backoff(attempt++), retryAfterNanos));
+            } catch (InterruptedException e) {
+                circuitBreaker.onFailure();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while backing off");
+            }
+        }
+    }
+
+    /**
+     * Exponential backoff with equal jitter.
+     * @param attempt Number of the attempt which failed, starting at 1.
+     */
+    private long backoff(int attempt) {
+        long backoff = this.initialBackoffNanos << Math.min(attempt - 1, 30);
+        if (backoff < 0L || backoff > this.maxBackoffNanos) {
+            backoff = this.maxBackoffNanos;
+        }
+
+        long half = backoff / 2L;
+        return half + ThreadLocalRandom.current().nextLong(backoff - half + 1L);
+    }
+
+    private void attempt(List<ReportBuffer> bodies, boolean batch) throws IOException {
+        Format format = this.chooseFormat(bodies);
+        if (format != Format.CBOR) {
+            bodies = transcode(bodies);
+        }
+
+        int length = length(bodies, batch, format);
+        ContentEncoding encoding = this.chooseEncoding(length);
+        Transport.Response response = this.post(bodies, batch, format, length, encoding);
+        int responseCode = response.getStatusCode();
+
+        if (responseCode == HttpURLConnection.HTTP_UNSUPPORTED_TYPE && encoding != ContentEncoding.IDENTITY &&
+                !accepts(response, encoding)) {
+            // either the encoding or the format was refused, only blame the
+            // encoding if the very same body gets through plain
+            Transport.Response plain = this.post(bodies, batch, format, length, ContentEncoding.IDENTITY);
+            if (plain.getStatusCode() != HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+                this.compressionRejected = true;
+                encoding = ContentEncoding.IDENTITY;
+                response = plain;
+                responseCode = plain.getStatusCode();
             }
-        } while (true);
+        }
+
+        if (responseCode == HttpURLConnection.HTTP_UNSUPPORTED_TYPE && format == Format.CBOR) {
+            // the endpoint went back to an older revision, fall back to JSON
+            this.binaryRejected = true;
+            format = Format.JSON;
+            bodies = transcode(bodies);
+            length = length(bodies, batch, format);
+            response = this.post(bodies, batch, format, length, encoding);
+            responseCode = response.getStatusCode();
+        }
+
+        if (responseCode == HttpURLConnection.HTTP_CONFLICT) {
+            this.resyncRequested.set(true);
+        }
 
-        int responseCode = connection.getResponseCode();
         if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_NO_CONTENT) {
-            throw new IOException("Request returned " + responseCode + ", " + HttpURLConnection.HTTP_OK +
-                    " or " + HttpsURLConnection.HTTP_NO_CONTENT + " was expected.");
+            throw new ResponseCodeException(responseCode, "Request returned " + responseCode + ", " + HttpURLConnection.HTTP_OK +
+                    " or " + HttpsURLConnection.HTTP_NO_CONTENT + " was expected.", parseRetryAfter(response.getHeader("Retry-After")));
+        }
+    }
+
+    /**
+     * CBOR if every body is CBOR and the endpoint still takes it.
+     */
+    private Format chooseFormat(List<ReportBuffer> bodies) {
+        if (this.binaryRejected || !this.binaryAccepted) {
+            return Format.JSON;
+        }
+
+        for (ReportBuffer body : bodies) {
+            if (Format.of(body) != Format.CBOR) {
+                return Format.JSON;
+            }
         }
+        return Format.CBOR;
+    }
+
+    /**
+     * @return Given bodies with the CBOR ones transcoded to JSON.
+     */
+    private static List<ReportBuffer> transcode(List<ReportBuffer> bodies) throws IOException {
+        List<ReportBuffer> transcoded = null;
+        for (int i = 0; i < bodies.size(); i++) {
+            ReportBuffer body = bodies.get(i);
+            if (Format.of(body) != Format.CBOR) {
+                continue;
+            }
 
-        connection.disconnect();
+            if (transcoded == null) {
+                transcoded = new ArrayList<>(bodies);
+            }
+
+            ReportBuffer json = new ReportBuffer();
+            Writer writer = json.writer();
+            TRANSCODER.toJson(CborDecoder.decode(body.asByteBuffer()), writer);
+            writer.flush();
+            transcoded.set(i, json);
+        }
+        return transcoded != null ? transcoded : bodies;
+    }
+
+    private static int length(List<ReportBuffer> bodies, boolean batch, Format format) {
+        int length = batch ? format.getBatchOverhead(bodies.size()) : 0;
+        for (ReportBuffer body : bodies) {
+            length += body.size();
+        }
+        return length;
+    }
+
+    /**
+     * Whether a 415 response lists the encoding in its Accept-Encoding header,
+     * so it was the media type that was refused rather than the encoding.
+     */
+    private static boolean accepts(Transport.Response response, ContentEncoding encoding) {
+        String acceptEncoding = response.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        for (String coding : acceptEncoding.split(",")) {
+            int parameters = coding.indexOf(';');
+            String name = (parameters == -1 ? coding : coding.substring(0, parameters)).trim();
+            if (name.equalsIgnoreCase(encoding.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ContentEncoding chooseEncoding(int length) {
+        if (this.compressionRejected || length < this.compressionThreshold) {
+            return ContentEncoding.IDENTITY;
+        }
+
+        return this.contentEncoding;
+    }
+
+    private Transport.Response post(List<ReportBuffer> bodies, boolean batch, Format format, int length, ContentEncoding encoding) throws IOException {
+        Objects.requireNonNull(bodies, "bodies");
+        Objects.requireNonNull(format, "format");
+        Objects.requireNonNull(encoding, "encoding");
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("User-Agent", this.formatUserAgent());
+        headers.put("Content-Type", format.getContentType());
+        if (encoding != ContentEncoding.IDENTITY) {
+            headers.put("Content-Encoding", encoding.getName());
+        }
+
+        Transport.Body body = new RequestBody(bodies, batch, format, encoding, this.compressionLevel);
+
+        // compressed length is unknown until the body is written
+        long contentLength = encoding == ContentEncoding.IDENTITY ? length : -1L;
+        Transport.Response response = this.transport.send(new Transport.Request(this.url, headers, contentLength, body,
+                Duration.ofMillis(this.connectTimeoutMillis), Duration.ofMillis(this.readTimeoutMillis)));
+
+        if (response.getHeader(RESYNC_HEADER) != null) {
+            this.resyncRequested.set(true);
+        }
+
+        String accept = response.getHeader(ACCEPT_HEADER);
+        if (accept != null) {
+            this.binaryAccepted = accept.toLowerCase(Locale.ROOT).contains(Format.CBOR.getContentType());
+        }
+
+        String interval = response.getHeader(INTERVAL_HEADER);
+        if (interval != null) {
+            Duration intervalHint = parseSeconds(interval);
+            this.intervalHint = intervalHint != null && !intervalHint.isZero() ? intervalHint : null;
+        }
+
+        Duration retryAfter = parseRetryAfter(response.getHeader("Retry-After"));
+        if (retryAfter != null) {
+            this.retryAfter.set(retryAfter);
+        }
+        return response;
+    }
+
+    /**
+     * @param value Value of a {@code Retry-After} header, either a number of
+     *              seconds or an HTTP date.
+     * @return Delay asked for, or {@code null} if there is none or it's invalid.
+     */
+    static Duration parseRetryAfter(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        Duration seconds = parseSeconds(value);
+        if (seconds != null) {
+            return seconds;
+        }
+
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+            Duration delay = Duration.between(ZonedDateTime.now(date.getZone()), date);
+            return delay.isNegative() ? Duration.ZERO : delay;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static Duration parseSeconds(String value) {
+        try {
+            long seconds = Long.parseLong(value.trim());
+            return seconds >= 0L ? Duration.ofSeconds(seconds) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long retryAfterNanos(Throwable throwable) {
+        if (throwable instanceof ResponseCodeException) {
+            Duration retryAfter = ((ResponseCodeException) throwable).getRetryAfter();
+            if (retryAfter != null) {
+                return retryAfter.toNanos();
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * Connection failures and responses classified by
+     * {@link ResponseCodeException#isRetryable()} may succeed when repeated.
+     * @param throwable Failure of a submission.
+     * @return Whether repeating the same submission may succeed.
+     */
+    public static boolean isRetryable(Throwable throwable) {
+        if (throwable instanceof ResponseCodeException) {
+            return ((ResponseCodeException) throwable).isRetryable();
+        }
+        return throwable instanceof IOException;
+    }
+
+    static int toMillis(Duration duration) {
+        return (int) Math.min(Math.max(duration.toMillis(), 1L), Integer.MAX_VALUE);
     }
 
     private String formatUserAgent() {
         return MetricsLite.class.getSimpleName() + "/" + PROTOCOL_REVISION;
     }
+
+    /**
+     * Reports framed as a single request body, written or read straight from
+     * their buffers.
+     */
+    private static class RequestBody implements Transport.Body {
+        private final List<ReportBuffer> bodies;
+        private final boolean batch;
+        private final Format format;
+        private final ContentEncoding encoding;
+        private final int level;
+
+        RequestBody(List<ReportBuffer> bodies, boolean batch, Format format, ContentEncoding encoding, int level) {
+            this.bodies = Objects.requireNonNull(bodies, "bodies");
+            this.batch = batch;
+            this.format = Objects.requireNonNull(format, "format");
+            this.encoding = Objects.requireNonNull(encoding, "encoding");
+            this.level = level;
+        }
+
+        @Override
+        public void writeTo(OutputStream connectionStream) throws IOException {
+            try (OutputStream outputStream = this.encoding.wrap(connectionStream, this.level)) {
+                if (this.batch) {
+                    outputStream.write(this.format.batchStart);
+                }
+
+                for (int i = 0; i < this.bodies.size(); i++) {
+                    if (i != 0 && this.batch && this.format.batchSeparator != -1) {
+                        outputStream.write(this.format.batchSeparator);
+                    }
+                    this.bodies.get(i).writeTo(outputStream);
+                }
+
+                if (this.batch) {
+                    outputStream.write(this.format.batchEnd);
+                }
+            }
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            if (this.encoding != ContentEncoding.IDENTITY) {
+                return Transport.Body.super.openStream(); // compressed bodies are small
+            }
+
+            List<InputStream> streams = new ArrayList<>(this.bodies.size() * 2 + 1);
+            if (this.batch) {
+                streams.add(new ByteArrayInputStream(new byte[] { (byte) this.format.batchStart }));
+            }
+
+            for (int i = 0; i < this.bodies.size(); i++) {
+                if (i != 0 && this.batch && this.format.batchSeparator != -1) {
+                    streams.add(new ByteArrayInputStream(new byte[] { (byte) this.format.batchSeparator }));
+                }
+                ReportBuffer body = this.bodies.get(i);
+                streams.add(new ByteArrayInputStream(body.array(), 0, body.size()));
+            }
+
+            if (this.batch) {
+                streams.add(new ByteArrayInputStream(new byte[] { (byte) this.format.batchEnd }));
+            }
+            return new SequenceInputStream(Collections.enumeration(streams));
+        }
+    }
+
+    /**
+     * Content-Encoding of request bodies.
+     */
+    public enum ContentEncoding {
+        IDENTITY("identity") {
+            @Override
+            OutputStream wrap(OutputStream outputStream, int level) {
+                return outputStream;
+            }
+        },
+        GZIP("gzip") {
+            @Override
+            OutputStream wrap(OutputStream outputStream, int level) throws IOException {
+                return new GZIPOutputStream(outputStream, BUFFER_SIZE) {
+                    {
+                        this.def.setLevel(level);
+                    }
+                };
+            }
+        },
+        DEFLATE("deflate") {
+            @Override
+            OutputStream wrap(OutputStream outputStream, int level) {
+                Deflater deflater = new Deflater(level);
+                return new DeflaterOutputStream(outputStream, deflater, BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            deflater.end(); // not owned by the stream
+                        }
+                    }
+                };
+            }
+        };
+
+        private static final int BUFFER_SIZE = 8 * 1024;
+
+        private final String name;
+
+        ContentEncoding(String name) {
+            this.name = Objects.requireNonNull(name, "name");
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Compress everything written to the returned stream straight into the
+         * given one. Closing the returned stream closes the given one.
+         */
+        abstract OutputStream wrap(OutputStream outputStream, int level) throws IOException;
+    }
+
+    /**
+     * Encoding of reports.
+     */
+    public enum Format {
+        /**
+         * Reports are JSON objects, batches are JSON arrays.
+         */
+        JSON("application/json; charset=" + ReportBuffer.CHARSET.name(), '[', ',', ']'),
+        /**
+         * Reports are CBOR maps, batches are indefinite length CBOR arrays.
+         * Smaller than JSON and cheaper to encode, see {@link CborReportWriter}.
+         */
+        CBOR("application/cbor", 0x9f, -1, 0xff);
+
+        private final String contentType;
+        final int batchStart;
+        final int batchSeparator;
+        final int batchEnd;
+
+        Format(String contentType, int batchStart, int batchSeparator, int batchEnd) {
+            this.contentType = Objects.requireNonNull(contentType, "contentType");
+            this.batchStart = batchStart;
+            this.batchSeparator = batchSeparator;
+            this.batchEnd = batchEnd;
+        }
+
+        public String getContentType() {
+            return this.contentType;
+        }
+
+        /**
+         * @return Number of bytes framing a batch of the given number of reports.
+         */
+        int getBatchOverhead(int count) {
+            return 2 + (this.batchSeparator != -1 ? Math.max(count - 1, 0) : 0);
+        }
+
+        /**
+         * Tell the format of an encoded report by its first byte, a JSON
+         * object starts with a brace and a CBOR one with a map head.
+         * @param body Encoded report.
+         * @return Format of the given report.
+         */
+        static Format of(ReportBuffer body) {
+            Objects.requireNonNull(body, "body");
+            if (body.size() != 0 && (body.array()[0] & 0xff) >>> 5 == CborReportWriter.MAJOR_MAP) {
+                return CBOR;
+            }
+            return JSON;
+        }
+    }
+
+    public enum CircuitState {
+        /**
+         * Submissions are attempted.
+         */
+        CLOSED,
+        /**
+         * The endpoint failed too many times in a row, submissions fail fast.
+         */
+        OPEN,
+        /**
+         * A trial submission is let through to check if the endpoint is back.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Thrown instead of attempting a submission while the circuit is open.
+     */
+    public static class CircuitOpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public CircuitOpenException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when the endpoint responds with an unexpected status code.
+     */
+    public static class ResponseCodeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int responseCode;
+        private final Duration retryAfter;
+
+        public ResponseCodeException(int responseCode, String message) {
+            this(responseCode, message, null);
+        }
+
+        public ResponseCodeException(int responseCode, String message, Duration retryAfter) {
+            super(message);
+            this.responseCode = responseCode;
+            this.retryAfter = retryAfter;
+        }
+
+        public int getResponseCode() {
+            return this.responseCode;
+        }
+
+        /**
+         * @return Delay asked for in the {@code Retry-After} header, or
+         * {@code null} if there is none.
+         */
+        public Duration getRetryAfter() {
+            return this.retryAfter;
+        }
+
+        /**
+         * Client errors, other than timeouts and rate limiting, will fail the
+         * same way no matter how many times the request is repeated.
+         * @return Whether repeating the same request may succeed.
+         */
+        public boolean isRetryable() {
+            int responseCode = this.responseCode;
+            return responseCode < 400 || responseCode >= 500 ||
+                    responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT || responseCode == 429;
+        }
+    }
 }
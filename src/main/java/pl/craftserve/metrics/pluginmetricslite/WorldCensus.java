@@ -0,0 +1,232 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import org.bukkit.Chunk;
+import org.bukkit.NamespacedKey;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Counts loaded chunks, entities and tile entities of every world, a few
+ * chunks per tick.
+ *
+ * Each tick the census walks the loaded chunks until its time budget runs
+ * out, and picks up where it left off on the next tick. Counts are kept in
+ * primitive arrays. Once every world has been walked the census is
+ * published, and reports carry the last published census. A new census is
+ * only started after the previous one has been reported, so no time is
+ * spent on counts nobody reads.
+ */
+class WorldCensus extends TickTask {
+    private static final String NAMESPACE = NamespacedKey.BUKKIT;
+    private static final NamespacedKey LOADED_CHUNKS = key("loaded_chunks");
+    private static final NamespacedKey ENTITIES = key("entities");
+    private static final NamespacedKey TILE_ENTITIES = key("tile_entities");
+    private static final NamespacedKey ENTITY_TYPES = key("entity_types");
+    private static final NamespacedKey CENSUS_TICKS = key("census_ticks");
+    private static final EntityType[] TYPES = EntityType.values();
+    static final Duration DEFAULT_BUDGET = Duration.ofNanos(500_000L);
+
+    private final Server server;
+    private final AtomicBoolean requested = new AtomicBoolean(true);
+    private volatile long budgetNanos = DEFAULT_BUDGET.toNanos();
+    private volatile Result published;
+
+    //
+    // Census in progress, only touched on the main thread
+    //
+
+    private List<World> worlds;
+    private Chunk[] chunks;
+    private int worldIndex;
+    private int chunkIndex;
+    private int ticks;
+
+    private long[] loadedChunks = new long[0];
+    private long[] entities = new long[0];
+    private long[] tileEntities = new long[0];
+    private final long[] entityTypes = new long[TYPES.length];
+
+    WorldCensus(Server server) {
+        this.server = Objects.requireNonNull(server, "server");
+    }
+
+    Duration getBudget() {
+        return Duration.ofNanos(this.budgetNanos);
+    }
+
+    /**
+     * @param budget Time the census may take on a single tick.
+     */
+    void setBudget(Duration budget) {
+        Objects.requireNonNull(budget, "budget");
+        if (budget.isNegative() || budget.isZero()) {
+            throw new IllegalArgumentException("budget must be positive");
+        }
+
+        this.budgetNanos = budget.toNanos();
+    }
+
+    @Override
+    public void run() {
+        long startedAt = System.nanoTime();
+        if (this.worlds == null) {
+            if (!this.requested.compareAndSet(true, false)) {
+                return; // the last census wasn't reported yet
+            }
+            this.begin();
+        }
+
+        this.ticks++;
+        long budgetNanos = this.budgetNanos;
+        do {
+            if (this.chunks == null) {
+                if (this.worldIndex >= this.worlds.size()) {
+                    this.publish();
+                    return;
+                }
+
+                this.chunks = this.worlds.get(this.worldIndex).getLoadedChunks();
+                this.chunkIndex = 0;
+            }
+
+            if (this.chunkIndex >= this.chunks.length) {
+                this.chunks = null;
+                this.worldIndex++;
+                continue;
+            }
+
+            Chunk chunk = this.chunks[this.chunkIndex];
+            this.chunks[this.chunkIndex++] = null;
+            if (chunk.isLoaded()) { // could have been unloaded since
+                this.count(chunk);
+            }
+        } while (System.nanoTime() - startedAt < budgetNanos);
+    }
+
+    private void begin() {
+        this.worlds = new ArrayList<>(this.server.getWorlds());
+        this.chunks = null;
+        this.worldIndex = 0;
+        this.chunkIndex = 0;
+        this.ticks = 0;
+
+        int size = this.worlds.size();
+        if (this.loadedChunks.length != size) {
+            this.loadedChunks = new long[size];
+            this.entities = new long[size];
+            this.tileEntities = new long[size];
+        } else {
+            Arrays.fill(this.loadedChunks, 0L);
+            Arrays.fill(this.entities, 0L);
+            Arrays.fill(this.tileEntities, 0L);
+        }
+        Arrays.fill(this.entityTypes, 0L);
+    }
+
+    private void count(Chunk chunk) {
+        int world = this.worldIndex;
+        this.loadedChunks[world]++;
+        this.tileEntities[world] += chunk.getTileEntities().length;
+
+        Entity[] entities = chunk.getEntities();
+        this.entities[world] += entities.length;
+        for (Entity entity : entities) {
+            this.entityTypes[entity.getType().ordinal()]++;
+        }
+    }
+
+    private void publish() {
+        int size = this.worlds.size();
+        Map<String, Long> loadedChunks = new LinkedHashMap<>(size);
+        Map<String, Long> entities = new LinkedHashMap<>(size);
+        Map<String, Long> tileEntities = new LinkedHashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            String name = this.worlds.get(i).getName();
+            loadedChunks.put(name, this.loadedChunks[i]);
+            entities.put(name, this.entities[i]);
+            tileEntities.put(name, this.tileEntities[i]);
+        }
+
+        Map<String, Long> entityTypes = new LinkedHashMap<>();
+        for (int i = 0; i < this.entityTypes.length; i++) {
+            if (this.entityTypes[i] != 0L) {
+                entityTypes.put(TYPES[i].name().toLowerCase(Locale.ROOT), this.entityTypes[i]);
+            }
+        }
+
+        this.published = new Result(loadedChunks, entities, tileEntities, entityTypes, this.ticks);
+        this.worlds = null;
+        this.chunks = null;
+    }
+
+    /**
+     * Put the last complete census, and let the next one start.
+     */
+    void append(Map<NamespacedKey, Object> data) {
+        Objects.requireNonNull(data, "data");
+
+        Result result = this.published;
+        this.requested.set(true);
+        if (result == null) {
+            return; // the first census is still in progress
+        }
+
+        data.put(LOADED_CHUNKS, result.loadedChunks);
+        data.put(ENTITIES, result.entities);
+        data.put(TILE_ENTITIES, result.tileEntities);
+        data.put(ENTITY_TYPES, result.entityTypes);
+        data.put(CENSUS_TICKS, result.ticks);
+    }
+
+    private static NamespacedKey key(String key) {
+        Objects.requireNonNull(key, "key");
+        return new NamespacedKey(NAMESPACE, key);
+    }
+
+    private static class Result {
+        final Map<String, Long> loadedChunks;
+        final Map<String, Long> entities;
+        final Map<String, Long> tileEntities;
+        final Map<String, Long> entityTypes;
+        final int ticks;
+
+        Result(Map<String, Long> loadedChunks, Map<String, Long> entities, Map<String, Long> tileEntities,
+               Map<String, Long> entityTypes, int ticks) {
+            this.loadedChunks = Collections.unmodifiableMap(loadedChunks);
+            this.entities = Collections.unmodifiableMap(entities);
+            this.tileEntities = Collections.unmodifiableMap(tileEntities);
+            this.entityTypes = Collections.unmodifiableMap(entityTypes);
+            this.ticks = ticks;
+        }
+    }
+}
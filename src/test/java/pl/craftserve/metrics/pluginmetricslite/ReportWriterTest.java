@@ -0,0 +1,226 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ReportWriterTest {
+    private static final Gson GSON = new Gson();
+
+    private static final long[] INTEGERS = {
+            0L, 23L, 24L, 255L, 256L, 65535L, 65536L, 4294967295L, 4294967296L, Long.MAX_VALUE,
+            -1L, -24L, -25L, -256L, -257L, -65536L, -65537L, -4294967296L, -4294967297L, Long.MIN_VALUE
+    };
+
+    /**
+     * Size of each of {@link #INTEGERS} in CBOR, the head grows at each
+     * 8, 16, 32 and 64-bit boundary.
+     */
+    private static final int[] INTEGER_SIZES = {
+            1, 1, 2, 2, 3, 3, 5, 5, 9, 9,
+            1, 1, 2, 2, 3, 3, 5, 5, 9, 9
+    };
+
+    @FunctionalInterface
+    private interface Report {
+        void writeTo(ReportWriter writer) throws IOException;
+    }
+
+    private static ReportBuffer write(UrlEndpoint.Format format, Report report) throws IOException {
+        ReportBuffer buffer = new ReportBuffer();
+        ReportWriter writer = ReportWriter.create(buffer, format);
+        report.writeTo(writer);
+        writer.flush();
+        return buffer;
+    }
+
+    /**
+     * @return Report read back as a JSON tree, whichever format it's in.
+     */
+    private static JsonElement read(UrlEndpoint.Format format, ReportBuffer buffer) throws IOException {
+        if (format == UrlEndpoint.Format.CBOR) {
+            return GSON.toJsonTree(CborDecoder.decode(buffer.asByteBuffer()));
+        }
+        return GSON.fromJson(new String(buffer.toByteArray(), ReportBuffer.CHARSET), JsonElement.class);
+    }
+
+    private static JsonElement roundTrip(UrlEndpoint.Format format, Report report) throws IOException {
+        return read(format, write(format, report));
+    }
+
+    @Test
+    public void mapsAndLists() throws IOException {
+        Map<String, Object> nested = new LinkedHashMap<>();
+        nested.put("list", Arrays.asList(1, "two", null, true));
+        nested.put("empty", Arrays.asList());
+        nested.put("map", new LinkedHashMap<>());
+
+        Report report = writer -> {
+            writer.beginObject();
+            writer.name("string").value("value");
+            writer.name("long").value(42L);
+            writer.name("double").value(1.5D);
+            writer.name("boolean").value(false);
+            writer.name("array").beginArray().value(1L).value("x").beginObject().endObject().endArray();
+            writer.name("nested").value(GSON, nested);
+            writer.endObject();
+        };
+
+        JsonElement expected = GSON.fromJson("{\"string\":\"value\",\"long\":42,\"double\":1.5,\"boolean\":false," +
+                "\"array\":[1,\"x\",{}],\"nested\":{\"list\":[1,\"two\",null,true],\"empty\":[],\"map\":{}}}", JsonElement.class);
+        for (UrlEndpoint.Format format : UrlEndpoint.Format.values()) {
+            Assert.assertEquals(format.name(), expected, roundTrip(format, report));
+        }
+    }
+
+    @Test
+    public void surrogates() throws IOException {
+        String[][] cases = {
+                {"😀", "😀"},
+                {"a😀b", "a😀b"},
+                {"\uD800x", "?x"},
+                {"x\uDC00", "x?"},
+                {"\uDC00\uD800", "??"},
+                {"x\uD800", "x?"},
+        };
+
+        for (UrlEndpoint.Format format : UrlEndpoint.Format.values()) {
+            for (String[] test : cases) {
+                JsonElement value = roundTrip(format, writer -> writer.beginArray().value(test[0]).endArray());
+                Assert.assertEquals(format.name(), test[1], value.getAsJsonArray().get(0).getAsString());
+            }
+        }
+    }
+
+    @Test
+    public void integers() throws IOException {
+        for (UrlEndpoint.Format format : UrlEndpoint.Format.values()) {
+            for (long integer : INTEGERS) {
+                JsonElement value = roundTrip(format, writer -> writer.beginArray().value(integer).endArray());
+                Assert.assertEquals(format.name(), integer, value.getAsJsonArray().get(0).getAsLong());
+            }
+        }
+
+        for (int i = 0; i < INTEGERS.length; i++) {
+            long integer = INTEGERS[i];
+            ReportBuffer buffer = write(UrlEndpoint.Format.CBOR, writer -> writer.value(integer));
+            Assert.assertEquals(Long.toString(integer), INTEGER_SIZES[i], buffer.size());
+            Assert.assertEquals(integer, CborDecoder.decode(buffer.asByteBuffer()));
+        }
+    }
+
+    @Test
+    public void typedArrays() throws IOException {
+        Object[][] cases = {
+                {new long[] {1L, -128L, 127L}, CborReportWriter.TAG_SINT8},
+                {new long[] {1L, -129L, 128L}, CborReportWriter.TAG_SINT16},
+                {new long[] {-32769L, 32768L}, CborReportWriter.TAG_SINT32},
+                {new long[] {Integer.MIN_VALUE - 1L, Long.MAX_VALUE, Long.MIN_VALUE}, CborReportWriter.TAG_SINT64},
+                {new int[] {1, 2, Integer.MAX_VALUE}, CborReportWriter.TAG_SINT32},
+                {new double[] {0.5D, -1.25D}, CborReportWriter.TAG_FLOAT32},
+                {new double[] {0.1D, 1e300D}, CborReportWriter.TAG_FLOAT64},
+        };
+
+        for (Object[] test : cases) {
+            Object array = test[0];
+            JsonElement expected = GSON.toJsonTree(array);
+
+            for (UrlEndpoint.Format format : UrlEndpoint.Format.values()) {
+                JsonElement value = roundTrip(format, writer -> writer.beginArray().value(GSON, array).endArray());
+                Assert.assertEquals(format.name(), expected, value.getAsJsonArray().get(0));
+            }
+
+            ReportBuffer buffer = write(UrlEndpoint.Format.CBOR, writer -> writer.value(GSON, array));
+            Assert.assertEquals((byte) (CborReportWriter.MAJOR_TAG << 5 | 24), buffer.array()[0]);
+            Assert.assertEquals((byte) (int) test[1], buffer.array()[1]);
+
+            Object decoded = CborDecoder.decode(buffer.asByteBuffer());
+            if (array instanceof double[]) {
+                Assert.assertArrayEquals((double[]) array, (double[]) decoded, 0D);
+            } else {
+                Assert.assertEquals(expected, GSON.toJsonTree(decoded));
+            }
+        }
+    }
+
+    @Test
+    public void nonFiniteDoubles() throws IOException {
+        double[] values = {Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+
+        for (UrlEndpoint.Format format : UrlEndpoint.Format.values()) {
+            JsonElement value = roundTrip(format, writer -> {
+                writer.beginArray();
+                for (double d : values) {
+                    writer.value(d);
+                }
+                writer.endArray();
+            });
+            Assert.assertEquals(format.name(), GSON.fromJson("[null,null,null]", JsonElement.class), value);
+
+            // Gson refuses them in arrays the same way for both formats
+            try {
+                write(format, writer -> writer.beginArray().value(GSON, new double[] {1D, Double.NaN}).endArray());
+                Assert.fail(format.name());
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void rollbackAcrossWindows() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            builder.append((char) ('a' + i % 26)).append('ę');
+        }
+        String large = builder.toString();
+
+        for (UrlEndpoint.Format format : UrlEndpoint.Format.values()) {
+            ReportBuffer expected = write(format, writer -> {
+                writer.beginObject();
+                writer.name("before").value(large);
+                writer.name("after").value(1L);
+                writer.endObject();
+            });
+
+            ReportBuffer actual = write(format, writer -> {
+                writer.beginObject();
+                writer.name("before").value(large);
+
+                long checkpoint = writer.checkpoint();
+                writer.name("discarded").value(large);
+                writer.name("numbers").value(GSON, new long[] {1L, 2L, 3L});
+                writer.rollback(checkpoint);
+
+                writer.name("after").value(1L);
+                writer.endObject();
+            });
+
+            Assert.assertEquals(format.name(), expected.size(), actual.size());
+            Assert.assertArrayEquals(format.name(), expected.toByteArray(), actual.toByteArray());
+        }
+    }
+}
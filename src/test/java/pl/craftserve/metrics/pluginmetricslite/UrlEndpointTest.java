@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 Aleksander Jagiełło <themolkapl@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package pl.craftserve.metrics.pluginmetricslite;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class UrlEndpointTest {
+    private static final Gson GSON = new Gson();
+
+    private static ReportBuffer report(UrlEndpoint.Format format) throws IOException {
+        ReportBuffer buffer = new ReportBuffer();
+        ReportWriter writer = ReportWriter.create(buffer, format);
+        writer.beginObject();
+        writer.name("string").value("a😀b\uD800");
+        writer.name("integers").beginArray().value(23L).value(-25L).value(65536L).value(Long.MIN_VALUE).endArray();
+        writer.name("double").value(0.1D);
+        writer.name("nan").value(Double.NaN);
+        writer.name("boolean").value(true);
+        writer.name("longs").value(GSON, new long[] {1L, -300L, 70000L});
+        writer.name("doubles").value(GSON, new double[] {0.5D, 0.1D});
+        writer.name("nested").value(GSON, Collections.singletonMap("list", Arrays.asList(1, "<&>", null)));
+        writer.endObject();
+        writer.flush();
+        return buffer;
+    }
+
+    /**
+     * An endpoint which advertised CBOR and then went back to JSON gets the
+     * very same report the JSON writer would have written.
+     */
+    @Test
+    public void transcodesRejectedCbor() throws Throwable {
+        List<String> contentTypes = new ArrayList<>();
+        List<byte[]> bodies = new ArrayList<>();
+        boolean[] binaryAccepted = {true};
+
+        UrlEndpoint endpoint = new UrlEndpoint(UrlEndpoint.CRAFTSERVE_METRICS, request -> {
+            String contentType = request.getHeaders().get("Content-Type");
+            contentTypes.add(contentType);
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            request.getBody().writeTo(body);
+            bodies.add(body.toByteArray());
+
+            if (contentType.equals(UrlEndpoint.Format.CBOR.getContentType()) && !binaryAccepted[0]) {
+                return new Transport.Response(HttpURLConnection.HTTP_UNSUPPORTED_TYPE, Collections.emptyMap());
+            } else if (binaryAccepted[0]) {
+                return new Transport.Response(HttpURLConnection.HTTP_NO_CONTENT, Collections.singletonMap(
+                        UrlEndpoint.ACCEPT_HEADER, "application/json, application/cbor"));
+            }
+            return new Transport.Response(HttpURLConnection.HTTP_NO_CONTENT, Collections.emptyMap());
+        });
+
+        Assert.assertEquals(UrlEndpoint.Format.JSON, endpoint.getFormat());
+        endpoint.submit(new JsonObject());
+        Assert.assertEquals(UrlEndpoint.Format.CBOR, endpoint.getFormat());
+
+        ReportBuffer cbor = report(UrlEndpoint.Format.CBOR);
+        endpoint.submit(cbor);
+        Assert.assertArrayEquals(cbor.toByteArray(), bodies.get(bodies.size() - 1));
+
+        binaryAccepted[0] = false;
+        endpoint.submit(cbor);
+        Assert.assertTrue(endpoint.isBinaryRejected());
+        Assert.assertEquals(UrlEndpoint.Format.JSON, endpoint.getFormat());
+        Assert.assertEquals(Arrays.asList(
+                UrlEndpoint.Format.JSON.getContentType(),
+                UrlEndpoint.Format.CBOR.getContentType(),
+                UrlEndpoint.Format.CBOR.getContentType(),
+                UrlEndpoint.Format.JSON.getContentType()), contentTypes);
+
+        String expected = new String(report(UrlEndpoint.Format.JSON).toByteArray(), ReportBuffer.CHARSET);
+        String actual = new String(bodies.get(bodies.size() - 1), ReportBuffer.CHARSET);
+        Assert.assertEquals(GSON.fromJson(expected, JsonElement.class), GSON.fromJson(actual, JsonElement.class));
+    }
+}